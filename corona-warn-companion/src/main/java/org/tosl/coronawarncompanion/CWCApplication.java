@@ -47,9 +47,6 @@ public class CWCApplication extends Application {
     private static int timeZoneOffsetSeconds;
     public static int getTimeZoneOffsetSeconds() {return timeZoneOffsetSeconds;}
 
-    public static boolean backgroundThreadsRunning = false;
-    public static boolean backgroundThreadsShouldStop = false;
-
     public static int getNumberOfActiveCountries() {
         int num = 0;
         for (Country country : Country.values()) {
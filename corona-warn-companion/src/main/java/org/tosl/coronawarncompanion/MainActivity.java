@@ -32,8 +32,6 @@ import android.content.res.Resources;
 import android.graphics.Color;
 import android.os.Bundle;
 import android.util.Log;
-import android.util.Pair;
-import android.view.Gravity;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
@@ -57,9 +55,17 @@ import org.tosl.coronawarncompanion.ramblereadout.RambleDbOnDisk;
 import org.tosl.coronawarncompanion.microgreadout.MicroGDbOnDisk;
 import org.tosl.coronawarncompanion.rpis.RpiList;
 import org.tosl.coronawarncompanion.matchentries.MatchEntryContent;
+import org.tosl.coronawarncompanion.matcher.DerivedRpiCache;
+import org.tosl.coronawarncompanion.matcher.DiagnosisKeyPruner;
+import org.tosl.coronawarncompanion.matcher.ForkJoinMatcher;
+import org.tosl.coronawarncompanion.matcher.IncrementalMatchState;
 import org.tosl.coronawarncompanion.matcher.Matcher;
+import org.tosl.coronawarncompanion.matcher.MatchingMetrics;
+import org.tosl.coronawarncompanion.matcher.ParallelismController;
+import org.tosl.coronawarncompanion.tools.CancellationToken;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
@@ -75,18 +81,17 @@ import java.util.TimeZone;
 import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 
-import io.reactivex.Observable;
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
 import io.reactivex.android.schedulers.AndroidSchedulers;
-import io.reactivex.observers.DisposableObserver;
 import io.reactivex.schedulers.Schedulers;
+import io.reactivex.subscribers.DisposableSubscriber;
 import okhttp3.OkHttpClient;
 
 import static org.tosl.coronawarncompanion.CWCApplication.AppModeOptions.DEMO_MODE;
 import static org.tosl.coronawarncompanion.CWCApplication.AppModeOptions.NORMAL_MODE;
 import static org.tosl.coronawarncompanion.CWCApplication.AppModeOptions.RAMBLE_MODE;
 import static org.tosl.coronawarncompanion.CWCApplication.AppModeOptions.MICROG_MODE;
-import static org.tosl.coronawarncompanion.CWCApplication.backgroundThreadsShouldStop;
-import static org.tosl.coronawarncompanion.CWCApplication.backgroundThreadsRunning;
 import static org.tosl.coronawarncompanion.tools.Utils.getDaysSinceEpochFromENIN;
 import static org.tosl.coronawarncompanion.tools.Utils.getDaysFromMillis;
 import static org.tosl.coronawarncompanion.tools.Utils.getENINFromDate;
@@ -99,13 +104,26 @@ public class MainActivity extends AppCompatActivity {
     private static final String TAG = "MainActivity";
     public static final String EXTRA_MESSAGE_DAY = "org.tosl.coronawarncompanion.DAY_MESSAGE";
     public static final String EXTRA_MESSAGE_COUNT = "org.tosl.coronawarncompanion.COUNT_MESSAGE";
-    private static boolean mainActivityShouldBeRecreated = false;
     private static CWCApplication.AppModeOptions desiredAppMode;
+    private static CancellationToken currentRun = null;  // of the latest MainActivity, survives recreate()
+    private static final long maxStopWaitMillis = 10000;  // for the previous run to become quiescent
+    private CancellationToken cancellationToken;  // of the run started by this MainActivity
+    private CancellationToken previousRun;
     private RpiList rpiList = null;
     private Date maxDate = null;
     private Date minDate = null;
-    private int numMatchingThreads;
-    DisposableObserver<Matcher.ProgressAndMatchEntryAndDkAndDay> mergedObserver;
+    private static final String derivedRpiCacheFileName = "derived_rpis.bin";
+    private static final String incrementalMatchStateFileName = "match_state.bin";
+    private static final String parallelismFileName = "parallelism.bin";
+    private static final String matchingMetricsFileName = "matching_metrics.json";
+    // HASH or SORT_MERGE, both find the same matches (SORT_MERGE is meant for very large DK lists).
+    // Saved in the SharedPreferences, and switched in the menu of debug builds.
+    private Matcher.MatchingEngine matchingEngine = Matcher.MatchingEngine.HASH;
+    DisposableSubscriber<ForkJoinMatcher.MatchingUpdate> matchingUpdatesSubscriber;
+    private ForkJoinMatcher forkJoinMatcher;
+    private TreeMap<Integer, Integer> diagnosisKeyCountMap;  // Key: ENIN (==date), Value: count
+    private int diagnosisKeyCount = 0;
+    private volatile boolean diagnosisKeyDownloadFailed = false;
 
     @SuppressWarnings("SpellCheckingInspection")
     private final int normalBarColor = Color.parseColor("#8CEAFF");
@@ -140,6 +158,9 @@ public class MainActivity extends AppCompatActivity {
         } if (CWCApplication.appMode == MICROG_MODE) {
             menu.findItem(R.id.microgmode).setChecked(true);
         }
+        MenuItem sortMergeItem = menu.findItem(R.id.sortmergematching);
+        sortMergeItem.setVisible(BuildConfig.DEBUG);
+        sortMergeItem.setChecked(matchingEngine == Matcher.MatchingEngine.SORT_MERGE);
         for (Country country : Country.values()) {
             if (country.isDownloadKeysFrom()) {
                 menu.findItem(country.getId()).setChecked(true);
@@ -160,14 +181,6 @@ public class MainActivity extends AppCompatActivity {
             return true;
         } else if (item.getItemId() == R.id.normalmode || item.getItemId() == R.id.demomode ||
                 item.getItemId() == R.id.ramblemode || item.getItemId() == R.id.microgmode) {
-            if (backgroundThreadsShouldStop) {
-                // user has to wait a little bit longer
-                CharSequence text = getString(R.string.error_app_mode_switching_not_possible);
-                Toast toast = Toast.makeText(this, text, Toast.LENGTH_SHORT);
-                toast.setGravity(Gravity.CENTER, 0, 0);
-                toast.show();
-                return false;
-            }
             item.setChecked(true);
             if (item.getItemId() == R.id.normalmode) {
                 desiredAppMode = NORMAL_MODE;
@@ -184,7 +197,16 @@ public class MainActivity extends AppCompatActivity {
                 editor.putInt(getString(R.string.saved_app_mode), desiredAppMode.ordinal());
                 editor.apply();
             }
-            recreateMainActivityOnNextPossibleOccasion();
+            recreateMainActivityNow();
+            return true;
+        } else if (item.getItemId() == R.id.sortmergematching) {
+            item.setChecked(!item.isChecked());
+            SharedPreferences sharedPreferences = this.getPreferences(Context.MODE_PRIVATE);
+            SharedPreferences.Editor editor = sharedPreferences.edit();
+            editor.putInt(getString(R.string.saved_matching_engine), (item.isChecked() ?
+                    Matcher.MatchingEngine.SORT_MERGE : Matcher.MatchingEngine.HASH).ordinal());
+            editor.apply();
+            recreateMainActivityNow();
             return true;
         } else if (item.getItemId() == R.id.osslicenses) {
             startActivity(new Intent(this, DisplayLicensesActivity.class));
@@ -201,7 +223,7 @@ public class MainActivity extends AppCompatActivity {
                         SharedPreferences.Editor editor = sharedPreferences.edit();
                         editor.putBoolean(country.getCode(context), desiredNewState);
                         editor.apply();
-                        recreateMainActivityOnNextPossibleOccasion();
+                        recreateMainActivityNow();
                         return true;
                     }
                     return false;
@@ -213,17 +235,10 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
-    private void recreateMainActivityOnNextPossibleOccasion() {
-        if (backgroundThreadsRunning) {  // don't do recreate() while background threads are running
-            mainActivityShouldBeRecreated = true;
-            backgroundThreadsShouldStop = true;
-        } else {
-            recreateMainActivityNow();
-        }
-    }
-
+    /*
+     Doesn't wait for the background threads: onDestroy() cancels them, and the next run waits for them to stop.
+     */
     private void recreateMainActivityNow() {
-        mainActivityShouldBeRecreated = false;
         CWCApplication.appMode = desiredAppMode;
         recreate();
     }
@@ -249,6 +264,15 @@ public class MainActivity extends AppCompatActivity {
         }
         desiredAppMode = CWCApplication.appMode;
 
+        // get the Matching Engine from SharedPreferences
+        int matchingEngineOrdinal = sharedPreferences.getInt(getString(R.string.saved_matching_engine),
+                Matcher.MatchingEngine.HASH.ordinal());
+        try {
+            matchingEngine = Matcher.MatchingEngine.values()[matchingEngineOrdinal];
+        } catch (ArrayIndexOutOfBoundsException e) {
+            matchingEngine = Matcher.MatchingEngine.HASH;
+        }
+
         // get the active countries from SharedPreferences
         for (Country country : Country.values()) {
             country.setDownloadKeysFrom(sharedPreferences.getBoolean(country.getCode(context), false));
@@ -281,18 +305,14 @@ public class MainActivity extends AppCompatActivity {
             Log.i(TAG, "--- RAMBLE MODE ---");
         }
 
-        if(backgroundThreadsRunning) {
-            // reCreate() was called, e.g. by switching from portrait to landscape, etc.
-            backgroundThreadsShouldStop = true;
-            while(backgroundThreadsRunning) {
-                try {
-                    //noinspection BusyWait
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
+        // If recreate() was called, e.g. by switching from portrait to landscape, etc., the previous run
+        // is still stopping: it is cancelled without waiting here, and matching waits until it is quiescent.
+        previousRun = currentRun;
+        if (previousRun != null) {
+            previousRun.cancel();
         }
+        cancellationToken = new CancellationToken();
+        currentRun = cancellationToken;
 
         int timeZoneOffsetSeconds = CWCApplication.getTimeZoneOffsetSeconds();
         Log.d(TAG, "Local TimeZone Offset in seconds: "+ timeZoneOffsetSeconds);
@@ -330,6 +350,7 @@ public class MainActivity extends AppCompatActivity {
         }
 
         if ((rpiList != null) && (!rpiList.isEmpty())) {  // check that getting the RPIs didn't fail, e.g. because we didn't get root rights
+            rpiList.freeze();  // loading has finished, build the search index
             SortedSet<Integer> rpiListDaysSinceEpochLocalTZ = rpiList.getAvailableDaysSinceEpochLocalTZ();
             List<BarEntry> dataPoints1 = new ArrayList<>();
 
@@ -384,13 +405,8 @@ public class MainActivity extends AppCompatActivity {
                 }
             }
 
-            //noinspection ResultOfMethodCallIgnored
-            DKDownloadUtils.getDKsForCountries(context, OK_HTTP_CLIENT, minDate, dkDownloadCountries)
-                    .subscribe(this::processDownloadedDiagnosisKeys, error -> {
-                        Log.e(TAG, "Error downloading diagnosis keys: " + error);
-                        showDownloadError();
-                        showMatchingNotPossible();
-                    });
+            startDownloadingAndMatching(DKDownloadUtils.getDKBatchesForCountries(context, OK_HTTP_CLIENT, minDate,
+                    dkDownloadCountries, cancellationToken));
         } else if (CWCApplication.appMode == DEMO_MODE) {
             try {
                 InputStream inputStream = getAssets().open("demo_dks.zip");
@@ -400,8 +416,8 @@ public class MainActivity extends AppCompatActivity {
                 while ((bytesRead = inputStream.read(buffer)) != -1) {
                     output.write(buffer, 0, bytesRead);
                 }
-                processDownloadedDiagnosisKeys(DKDownloadUtils.parseBytesToTeks(context, output.toByteArray(),
-                        getString(R.string.country_code_germany)));
+                startDownloadingAndMatching(Flowable.just(DKDownloadUtils.parseBytesToTeks(context,
+                        output.toByteArray(), getString(R.string.country_code_germany))));
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -451,23 +467,53 @@ public class MainActivity extends AppCompatActivity {
                 permissions[0].equals(Manifest.permission.WRITE_EXTERNAL_STORAGE) &&
                 grantResults[0] == PackageManager.PERMISSION_GRANTED)
         {
-            recreateMainActivityOnNextPossibleOccasion();
+            recreateMainActivityNow();
         }
     }
 
 
-    private void processDownloadedDiagnosisKeys(List<DiagnosisKey> diagnosisKeysList) {
-        // Count the downloaded Diagnosis Keys
-        Log.d(TAG, "Number of keys that have been downloaded: " + diagnosisKeysList.size());
-
-        TreeMap<Integer, Integer> diagnosisKeyCountMap = new TreeMap<>();  // Key: ENIN (==date), Value: count
+    /*
+     The Diagnosis Keys arrive file by file: the count and the chart are updated with every file,
+     and every file is matched as soon as it has been downloaded.
+     */
+    private void startDownloadingAndMatching(Flowable<List<DiagnosisKey>> diagnosisKeyBatches) {
+        diagnosisKeyCountMap = new TreeMap<>();
         int minENIN = getENINFromDate(minDate);
         int maxENIN = getENINFromDate(maxDate);
         for (int ENIN = minENIN; ENIN <= maxENIN; ENIN += standardRollingPeriod) {
             diagnosisKeyCountMap.put(ENIN, 0);
         }
-        int count = 0;
+        diagnosisKeyCount = 0;
+        diagnosisKeyDownloadFailed = false;
+
+        Flowable<List<DiagnosisKey>> countedDiagnosisKeyBatches = diagnosisKeyBatches
+                .doOnNext(diagnosisKeysList -> runOnUiThread(() -> countDownloadedDiagnosisKeys(diagnosisKeysList)))
+                .doOnComplete(() -> runOnUiThread(() -> showDownloadedDiagnosisKeys(true)))
+                .doOnError(error -> {
+                    diagnosisKeyDownloadFailed = true;
+                    runOnUiThread(() -> {
+                        Log.e(TAG, "Error downloading diagnosis keys: " + error);
+                        showDownloadError();
+                    });
+                });
+        if ((rpiList != null) && (!rpiList.isEmpty())) {
+            textViewMatches.setText(getString(R.string.title_matching_not_done_yet));
+            startMatching(countedDiagnosisKeyBatches);
+        } else {
+            showMatchingNotPossible();
+            //noinspection ResultOfMethodCallIgnored
+            countedDiagnosisKeyBatches
+                    .subscribeOn(Schedulers.io())
+                    .subscribe(diagnosisKeysList -> { }, error -> { });
+        }
+    }
+
+    private void countDownloadedDiagnosisKeys(List<DiagnosisKey> diagnosisKeysList) {
+        Log.d(TAG, "Number of keys that have been downloaded: " + diagnosisKeysList.size());
         for (DiagnosisKey diagnosisKeyEntry : diagnosisKeysList) {
+            if (diagnosisKeyEntry.extendedDk != null) {
+                continue;  // the rest of a DK that has already been counted
+            }
             int ENIN = diagnosisKeyEntry.dk.getRollingStartIntervalNumber();
             Integer bin = diagnosisKeyCountMap.floorKey(ENIN);
             if (bin != null) {
@@ -476,15 +522,19 @@ public class MainActivity extends AppCompatActivity {
                     binCount++;
                     diagnosisKeyCountMap.put(bin, binCount);
                 }
-                count++;
+                diagnosisKeyCount++;
             }
         }
+        showDownloadedDiagnosisKeys(false);
+    }
 
+    private void showDownloadedDiagnosisKeys(boolean downloadComplete) {
         StringBuilder sb = new StringBuilder();
-        sb.append(getString(R.string.title_diagnosis_keys_downloaded, count, CWCApplication.getFlagsString(context)));
+        sb.append(getString(R.string.title_diagnosis_keys_downloaded, diagnosisKeyCount,
+                CWCApplication.getFlagsString(context)));
 
         int errorCount = DKDownloadUtils.getErrorCount();
-        if (errorCount != 0) {
+        if (downloadComplete && errorCount != 0) {
             sb.append(" ");
             sb.append(getResources().getQuantityString(R.plurals.title_diagnosis_keys_downloaded_warning,
                     errorCount, errorCount));
@@ -506,52 +556,42 @@ public class MainActivity extends AppCompatActivity {
 
         chartDks.setData(dataPoints2, normalBarColor,"DKs", false, this);
         chartDks.setFormatAndRefresh(this);
-
-        if ((rpiList != null) && (!rpiList.isEmpty()) && (count > 0)) {
-            textViewMatches.setText(getString(R.string.title_matching_not_done_yet));
-            startMatching(diagnosisKeysList);
-        } else {
-            showMatchingNotPossible();
-        }
     }
 
-    private void startMatching(List<DiagnosisKey> diagnosisKeysList) {
-        backgroundThreadsRunning = true;  // required so that DEMO_MODE toggle can safely stop the background threads
-        backgroundThreadsShouldStop = false;
-
-        DisposableObserver<Matcher.ProgressAndMatchEntryAndDkAndDay> matchingObserver =
-                new DisposableObserver<Matcher.ProgressAndMatchEntryAndDkAndDay>() {
+    private void startMatching(Flowable<List<DiagnosisKey>> diagnosisKeyBatches) {
+        DisposableSubscriber<ForkJoinMatcher.MatchingUpdate> matchingSubscriber =
+                new DisposableSubscriber<ForkJoinMatcher.MatchingUpdate>() {
             private MatchEntryContent matchEntryContent;
             private int numMatches = 0;
-            private int[] progressArray;
 
             @Override
             protected void onStart() {
                 matchEntryContent = new MatchEntryContent();
-                progressArray = new int[numMatchingThreads];
+                request(Long.MAX_VALUE);
             }
 
             @Override
-            public void onNext(@io.reactivex.annotations.NonNull Matcher.ProgressAndMatchEntryAndDkAndDay progressAndMatchEntryAndDkAndDay) {
-                // if available, add match
-                if (progressAndMatchEntryAndDkAndDay.matchEntryAndDkAndDay != null) {
-                    matchEntryContent.matchEntries.add(progressAndMatchEntryAndDkAndDay.matchEntryAndDkAndDay);
+            public void onNext(ForkJoinMatcher.MatchingUpdate matchingUpdate) {
+                // add the matches found since the last update
+                if (!matchingUpdate.matches.isEmpty()) {
+                    for (Matcher.MatchEntryAndDkAndDay matchEntryAndDkAndDay : matchingUpdate.matches) {
+                        matchEntryContent.matchEntries.add(matchEntryAndDkAndDay);
+                    }
                     numMatches = matchEntryContent.matchEntries.getTotalMatchingDkCount();
                 }
                 // update progress
-                progressArray[progressAndMatchEntryAndDkAndDay.threadNumber] = progressAndMatchEntryAndDkAndDay.currentProgress;
-                int progressSum = 0;
-                for (int i = 0; i < numMatchingThreads; i++) {
-                    progressSum += progressArray[i];
-                }
                 textViewMatches.setText(getResources().getString(R.string.title_matching_not_done_yet_with_progress,
-                        progressSum / numMatchingThreads, numMatches));
+                        matchingUpdate.progress, numMatches));
             }
 
             @Override
-            public void onError(@io.reactivex.annotations.NonNull Throwable e) {
-                Log.e(TAG, "ERROR during matching!", e);
-                showMatchingError(e);
+            public void onError(Throwable e) {
+                if (diagnosisKeyDownloadFailed) {
+                    showMatchingNotPossible();
+                } else {
+                    Log.e(TAG, "ERROR during matching!", e);
+                    showMatchingError(e);
+                }
             }
 
             @Override
@@ -559,58 +599,65 @@ public class MainActivity extends AppCompatActivity {
                 CWCApplication.setMatchEntryContent(matchEntryContent);
                 CWCApplication.setLocationDataAvailable(rpiList.getHaveLocation());
                 Log.d(TAG, "Matching finished.");
-                backgroundThreadsRunning = false;
-                backgroundThreadsShouldStop = false;
-                presentMatchResults();
+                // for sizing the RPI filter: its positives without match, an upper bound of its false positives
+                Log.d(TAG, rpiList.getRpiBloomFilterStatistics().toString());
+                Log.d(TAG, forkJoinMatcher.getWorkerUtilisationSummary());
+                if (diagnosisKeyCount > 0) {
+                    presentMatchResults();
+                } else {
+                    showMatchingNotPossible();
+                }
             }
         };
 
-        int dkListLen = diagnosisKeysList.size();
-        if ((rpiList != null) && (dkListLen != 0)) {
-            int desiredThreads = Runtime.getRuntime().availableProcessors();
-            if (desiredThreads < 1) {
-                desiredThreads = 1;
-            }
-            Log.d(TAG, "Matching: Trying to split into " + desiredThreads + " threads.");
-            if (desiredThreads > dkListLen) {
-                desiredThreads = dkListLen;
-                Log.d(TAG, "Matching: Reduced to " + desiredThreads + " threads, because of short list");
-            }
-            ArrayList<Pair<Integer, Integer>> ranges = new ArrayList<>();
-            int lastEndExclusive = 0;
-            int newEndExclusive = 0;
-            int i = 1;
-            while (newEndExclusive < dkListLen) {
-                newEndExclusive = dkListLen * i / desiredThreads;
-                if (newEndExclusive < lastEndExclusive) {
-                    newEndExclusive = lastEndExclusive;
-                }
-                if (newEndExclusive > dkListLen) {
-                    newEndExclusive = dkListLen;
-                }
-                if (newEndExclusive > lastEndExclusive) {
-                    ranges.add(new Pair<>(lastEndExclusive, newEndExclusive));
-                    Log.d(TAG, "Matching: Range " + lastEndExclusive + ".." + newEndExclusive);
-                }
-                lastEndExclusive = newEndExclusive;
-                i++;
-            }
-            numMatchingThreads = ranges.size();
-            
-            ArrayList<Observable<Matcher.ProgressAndMatchEntryAndDkAndDay>> observables = new ArrayList<>();
-            for (int threadNum = 0; threadNum < numMatchingThreads; threadNum++) {
-                Matcher matcher = new Matcher(rpiList,
-                        diagnosisKeysList.subList(ranges.get(threadNum).first, ranges.get(threadNum).second), threadNum);
-                observables.add(
-                        matcher.getMatchingObservable()
-                                .subscribeOn(Schedulers.computation())
-                                .observeOn(AndroidSchedulers.mainThread())
-                );
+        // one work-stealing matcher for all DKs, with progress and matches coalesced to the display frame rate,
+        // and as many active workers as turned out to be fastest on this device.
+        // It matches every downloaded file as soon as it arrives, without the DKs that can't match any observed RPI.
+        forkJoinMatcher = new ForkJoinMatcher(rpiList,
+                diagnosisKeyBatches.map(diagnosisKeysList ->
+                        DiagnosisKeyPruner.prune(rpiList, diagnosisKeysList).diagnosisKeys),
+                Runtime.getRuntime().availableProcessors(), matchingEngine,
+                new DerivedRpiCache(new File(getCacheDir(), derivedRpiCacheFileName)),
+                new IncrementalMatchState(new File(getCacheDir(), incrementalMatchStateFileName)),
+                new ParallelismController(new File(getCacheDir(), parallelismFileName),
+                        Runtime.getRuntime().availableProcessors()),
+                cancellationToken);
+        MatchingMetrics matchingMetrics = forkJoinMatcher.getMetrics();
+        File matchingMetricsFile = new File(getCacheDir(), matchingMetricsFileName);
+        // the previous run may still be saving its state to the same files,
+        // and the metrics are written before the completion reaches the main thread
+        matchingUpdatesSubscriber = awaitQuiescence(previousRun)
+                .andThen(forkJoinMatcher.getMatchingFlowable(ForkJoinMatcher.frameIntervalMillis))
+                .concatWith(Completable.fromAction(() -> matchingMetrics.writeJson(matchingMetricsFile))
+                        .subscribeOn(Schedulers.io()))
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribeWith(matchingSubscriber);
+    }
+
+    /*
+     Completes when the previous run has stopped (or after maxStopWaitMillis). Waits off the main thread.
+     */
+    private static Completable awaitQuiescence(CancellationToken previousRun) {
+        if (previousRun == null) {
+            return Completable.complete();
+        }
+        return Completable.fromAction(() -> {
+            if (!previousRun.awaitQuiescence(maxStopWaitMillis, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "The previous run didn't stop within " + maxStopWaitMillis + " ms");
             }
-            Observable<Matcher.ProgressAndMatchEntryAndDkAndDay> mergedObservable =
-                    Observable.merge(observables);
-            mergedObserver = mergedObservable.subscribeWith(matchingObserver);
+        }).subscribeOn(Schedulers.io());
+    }
+
+    @Override
+    protected void onDestroy() {
+        // doesn't block: the download and the matching stop in the background
+        if (cancellationToken != null) {
+            cancellationToken.cancel();
         }
+        if (matchingUpdatesSubscriber != null) {
+            matchingUpdatesSubscriber.dispose();
+        }
+        super.onDestroy();
     }
 
     private void presentMatchResults() {
@@ -652,10 +699,6 @@ public class MainActivity extends AppCompatActivity {
             // End of this path.
             // From now on, the user can scroll the charts,
             // or tap on a match to reach the DisplayDetailsActivity.
-
-            if (mainActivityShouldBeRecreated) {
-                recreateMainActivityNow();
-            }
         } else {
             showMatchingNotPossible();
         }
@@ -17,6 +17,8 @@
  * Michael Huebler, 2020-08: As required by the license
  * ("You must cause any modified files to carry prominent notices stating that You changed the files")
  * I hereby state that I changed this file: I modified the "package" line.
+ * Later, the creation of the Cipher was factored out into createCipher(), and aesCtr(Cipher, ...) was added,
+ * so that a Cipher can be reused for many calls.
 */
 
 package org.tosl.coronawarncompanion.crypto;
@@ -40,14 +42,26 @@ public class AesCtrEncryptor {
     }
 
     public static byte[] aesCtr(byte[] key, byte[] iv, byte[] data) throws CryptoException {
+        return aesCtr(createCipher(), key, iv, data);
+    }
+
+    public static Cipher createCipher() throws CryptoException {
+        try {
+            return Cipher.getInstance("AES/CTR/NoPadding");
+        } catch (NoSuchPaddingException | NoSuchAlgorithmException e) {
+            throw new CryptoException(e);
+        }
+    }
+
+    /**
+     * Same as {@link #aesCtr(byte[], byte[], byte[])}, with a reusable cipher from {@link #createCipher()}.
+     */
+    public static byte[] aesCtr(Cipher cipher, byte[] key, byte[] iv, byte[] data) throws CryptoException {
         try {
-            Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
             cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
 
             return cipher.doFinal(data);
-        } catch (NoSuchPaddingException
-                | NoSuchAlgorithmException
-                | InvalidAlgorithmParameterException
+        } catch (InvalidAlgorithmParameterException
                 | InvalidKeyException
                 | BadPaddingException
                 | IllegalBlockSizeException e) {
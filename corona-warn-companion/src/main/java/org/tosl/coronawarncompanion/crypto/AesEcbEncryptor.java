@@ -21,67 +21,41 @@
 
 package org.tosl.coronawarncompanion.crypto;
 
-import android.annotation.SuppressLint;
-
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.ShortBufferException;
-import javax.crypto.spec.SecretKeySpec;
-
 /**
  * Encryptor that encapsulates aes/ecb encryption, but separates initialization and encryption steps.
- *
- * <p>If used repeatedly, call {@link #AesEcbEncryptor()} and {@link #init(byte[])} sparingly.
  */
-public final class AesEcbEncryptor {
+public interface AesEcbEncryptor {
 
-    private final Cipher cipher;
+    /**
+     * The available implementations.
+     */
+    enum Implementation {
+        JCE,    // the platform's Cipher, any key length
+        TABLE;  // pure Java AES-128 with T-tables, see TableAesEcbEncryptor
 
-    @SuppressLint("GetInstance")
-    public AesEcbEncryptor() throws CryptoException {
-        try {
-            this.cipher = Cipher.getInstance("AES/ECB/NoPadding");
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-            throw new CryptoException(e);
+        public AesEcbEncryptor create() throws CryptoException {
+            return (this == TABLE) ? new TableAesEcbEncryptor() : new JceAesEcbEncryptor();
         }
     }
 
     /**
      * Initializes encryption with provided key.
      */
-    public void init(byte[] key) throws CryptoException {
-        try {
-            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
-        } catch (InvalidKeyException e) {
-            throw new CryptoException(e);
-        }
-    }
+    void init(byte[] key) throws CryptoException;
 
     /**
      * Encrypts provided data.
      */
-    public byte[] encrypt(byte[] data) throws CryptoException {
-        try {
-            return cipher.doFinal(data);
-        } catch (BadPaddingException | IllegalBlockSizeException e) {
-            throw new CryptoException(e);
-        }
-    }
+    byte[] encrypt(byte[] data) throws CryptoException;
+
+    /**
+     * Encrypts numBlocks consecutive 16-byte blocks of input in a single call, to a given output buffer.
+     */
+    void encryptBlocks(byte[] input, int inputOffset, int numBlocks, byte[] output, int outputOffset)
+            throws CryptoException;
 
     /**
      * Encrypts provided data to a given output buffer.
      */
-    public byte[] encrypt(byte[] data, byte[] output) throws CryptoException {
-        try {
-            cipher.doFinal(data, /*inputOffset =*/ 0, data.length, output, /* outputOffset =*/ 0);
-            return output;
-        } catch (BadPaddingException | IllegalBlockSizeException | ShortBufferException e) {
-            throw new CryptoException(e);
-        }
-    }
-}
\ No newline at end of file
+    byte[] encrypt(byte[] data, byte[] output) throws CryptoException;
+}
@@ -0,0 +1,197 @@
+/*
+ * Corona-Warn-Companion. An app that shows COVID-19 Exposure Notifications details.
+ * Copyright (C) 2020  Michael Huebler <corona-warn-companion@tosl.org> and other contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tosl.coronawarncompanion.crypto;
+
+/*
+ HKDF-SHA256 (RFC 5869) with the all-zero salt and 16 bytes of output, as used by the Exposure Notification
+ key derivation, see KeyDerivation.
+ The extract step always uses the same HMAC key, so the SHA-256 states after its inner and outer pad blocks
+ are computed once for all instances. The expand step reuses the states of the PRK for every info string.
+ An instance is not thread-safe and keeps all its buffers, so use one per thread instead of a shared lock.
+ */
+public final class HkdfSha256 {
+    public static final int outputLength = 16;
+    private static final int hashLength = 32;
+    private static final int blockLength = 64;
+
+    private static final int[] k = {
+            0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+            0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+            0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+            0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+            0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+            0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+            0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+            0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2};
+    private static final int[] initialState = {
+            0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19};
+
+    // the midstates of HMAC-SHA256 with the all-zero salt as key
+    private static final int[] zeroSaltInnerState = new int[8];
+    private static final int[] zeroSaltOuterState = new int[8];
+
+    static {
+        new HkdfSha256().computePadStates(new byte[hashLength], zeroSaltInnerState, zeroSaltOuterState);
+    }
+
+    // SHA-256
+    private final int[] state = new int[8];
+    private final int[] w = new int[64];
+    private final byte[] block = new byte[blockLength];
+    private int blockPosition;
+    private long byteCount;
+
+    private final byte[] innerHash = new byte[hashLength];
+    private final byte[] pseudoRandomKey = new byte[hashLength];
+    private final int[] prkInnerState = new int[8];
+    private final int[] prkOuterState = new int[8];
+    private final byte[] counter = {0x01};  // for 16 bytes of output, the counter is always 1
+    private boolean extracted = false;
+
+    /*
+     PRK = HMAC-SHA256(zero salt, IKM)
+     */
+    public void extract(byte[] inputKeyingMaterial) {
+        hmac(zeroSaltInnerState, zeroSaltOuterState, inputKeyingMaterial, null, pseudoRandomKey, 0, hashLength);
+        computePadStates(pseudoRandomKey, prkInnerState, prkOuterState);
+        extracted = true;
+    }
+
+    /*
+     Writes the first 16 bytes of HMAC-SHA256(PRK, info | 0x01) of the last extract() to output.
+     */
+    public void expand(byte[] info, byte[] output, int outputOffset) {
+        if (!extracted) {
+            throw new IllegalStateException("expand() without extract()");
+        }
+        hmac(prkInnerState, prkOuterState, info, counter, output, outputOffset, outputLength);
+    }
+
+    public byte[] deriveKey(byte[] inputKeyingMaterial, byte[] info) {
+        byte[] key = new byte[outputLength];
+        extract(inputKeyingMaterial);
+        expand(info, key, 0);
+        return key;
+    }
+
+    private void hmac(int[] innerState, int[] outerState, byte[] message1, byte[] message2,
+                      byte[] output, int outputOffset, int length) {
+        reset(innerState, blockLength);
+        update(message1, 0, message1.length);
+        if (message2 != null) {
+            update(message2, 0, message2.length);
+        }
+        digest(innerHash, 0, hashLength);
+        reset(outerState, blockLength);
+        update(innerHash, 0, hashLength);
+        digest(output, outputOffset, length);
+    }
+
+    private void computePadStates(byte[] key, int[] innerState, int[] outerState) {
+        // the keys are never longer than one block here, so they are just zero-padded
+        for (int i = 0; i < blockLength; i++) {
+            block[i] = (byte) (((i < key.length) ? key[i] : 0) ^ 0x36);
+        }
+        System.arraycopy(initialState, 0, innerState, 0, 8);
+        compress(innerState, block);
+        for (int i = 0; i < blockLength; i++) {
+            block[i] = (byte) (((i < key.length) ? key[i] : 0) ^ 0x5c);
+        }
+        System.arraycopy(initialState, 0, outerState, 0, 8);
+        compress(outerState, block);
+    }
+
+    private void reset(int[] midstate, long midstateByteCount) {
+        System.arraycopy(midstate, 0, state, 0, 8);
+        blockPosition = 0;
+        byteCount = midstateByteCount;
+    }
+
+    private void update(byte[] input, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            block[blockPosition++] = input[i];
+            if (blockPosition == blockLength) {
+                compress(state, block);
+                blockPosition = 0;
+            }
+        }
+        byteCount += length;
+    }
+
+    private void digest(byte[] output, int outputOffset, int length) {
+        long bitCount = byteCount * 8;
+        block[blockPosition++] = (byte) 0x80;
+        if (blockPosition > blockLength - 8) {
+            while (blockPosition < blockLength) {
+                block[blockPosition++] = 0;
+            }
+            compress(state, block);
+            blockPosition = 0;
+        }
+        while (blockPosition < blockLength - 8) {
+            block[blockPosition++] = 0;
+        }
+        for (int i = 7; i >= 0; i--) {
+            block[blockPosition++] = (byte) (bitCount >>> (8 * i));
+        }
+        compress(state, block);
+        for (int i = 0; i < length; i++) {
+            output[outputOffset + i] = (byte) (state[i >>> 2] >>> (24 - 8 * (i & 3)));
+        }
+    }
+
+    private void compress(int[] h, byte[] data) {
+        for (int i = 0; i < 16; i++) {
+            w[i] = ((data[4 * i] & 0xff) << 24) | ((data[4 * i + 1] & 0xff) << 16)
+                    | ((data[4 * i + 2] & 0xff) << 8) | (data[4 * i + 3] & 0xff);
+        }
+        for (int i = 16; i < 64; i++) {
+            int w15 = w[i - 15];
+            int w2 = w[i - 2];
+            int s0 = Integer.rotateRight(w15, 7) ^ Integer.rotateRight(w15, 18) ^ (w15 >>> 3);
+            int s1 = Integer.rotateRight(w2, 17) ^ Integer.rotateRight(w2, 19) ^ (w2 >>> 10);
+            w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+        }
+        int a = h[0], b = h[1], c = h[2], d = h[3], e = h[4], f = h[5], g = h[6], hh = h[7];
+        for (int i = 0; i < 64; i++) {
+            int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+            int ch = (e & f) ^ (~e & g);
+            int temp1 = hh + s1 + ch + k[i] + w[i];
+            int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+            int maj = (a & b) ^ (a & c) ^ (b & c);
+            int temp2 = s0 + maj;
+            hh = g;
+            g = f;
+            f = e;
+            e = d + temp1;
+            d = c;
+            c = b;
+            b = a;
+            a = temp1 + temp2;
+        }
+        h[0] += a;
+        h[1] += b;
+        h[2] += c;
+        h[3] += d;
+        h[4] += e;
+        h[5] += f;
+        h[6] += g;
+        h[7] += hh;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Corona-Warn-Companion. An app that shows COVID-19 Exposure Notifications details.
+ * Copyright (C) 2020  Michael Huebler <corona-warn-companion@tosl.org> and other contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tosl.coronawarncompanion.crypto;
+
+/*
+ Pure Java AES-128 encryption (FIPS-197) with T-tables, for RPI generation: a new key for every DK and
+ only a few hundred blocks per key. The key is expanded once per init(), and the blocks are encrypted
+ directly between the caller's buffers, without the provider dispatch, SecretKeySpec and Cipher.init() of JCE.
+ T-table lookups are not constant-time. That doesn't matter here, because the keys are derived from
+ published Diagnosis Keys, but this class must not be used for secret keys.
+ */
+public final class TableAesEcbEncryptor implements AesEcbEncryptor {
+    private static final int blockLength = 16;
+    private static final int numRounds = 10;
+
+    private static final int[] sBox = new int[256];
+    private static final int[] te0 = new int[256];
+    private static final int[] te1 = new int[256];
+    private static final int[] te2 = new int[256];
+    private static final int[] te3 = new int[256];
+    private static final int[] rcon = {0x01, 0x02, 0x04, 0x08, 0x10, 0x20, 0x40, 0x80, 0x1b, 0x36};
+
+    static {
+        // the S-box is the multiplicative inverse in GF(2^8), followed by an affine transformation
+        int p = 1;
+        int q = 1;
+        do {
+            p = p ^ ((p << 1) & 0xff) ^ (((p & 0x80) != 0) ? 0x1b : 0);  // p * 3
+            q ^= q << 1;  // q / 3
+            q ^= q << 2;
+            q ^= q << 4;
+            q &= 0xff;
+            if ((q & 0x80) != 0) {
+                q ^= 0x09;
+            }
+            int x = q ^ rotateLeft8(q, 1) ^ rotateLeft8(q, 2) ^ rotateLeft8(q, 3) ^ rotateLeft8(q, 4);
+            sBox[p] = (x ^ 0x63) & 0xff;
+        } while (p != 1);
+        sBox[0] = 0x63;
+
+        for (int i = 0; i < 256; i++) {
+            int s = sBox[i];
+            int s2 = ((s << 1) ^ (((s & 0x80) != 0) ? 0x1b : 0)) & 0xff;
+            int s3 = s2 ^ s;
+            int t = (s2 << 24) | (s << 16) | (s << 8) | s3;
+            te0[i] = t;
+            te1[i] = Integer.rotateRight(t, 8);
+            te2[i] = Integer.rotateRight(t, 16);
+            te3[i] = Integer.rotateRight(t, 24);
+        }
+    }
+
+    private static int rotateLeft8(int x, int shift) {
+        return ((x << shift) | (x >>> (8 - shift))) & 0xff;
+    }
+
+    private final int[] roundKeys = new int[4 * (numRounds + 1)];
+    private boolean initialized = false;
+
+    @Override
+    public void init(byte[] key) throws CryptoException {
+        if (key == null || key.length != 16) {
+            throw new CryptoException(new IllegalArgumentException("Only AES-128 keys are supported"));
+        }
+        int[] rk = roundKeys;
+        for (int i = 0; i < 4; i++) {
+            rk[i] = getInt(key, 4 * i);
+        }
+        for (int i = 4; i < rk.length; i++) {
+            int temp = rk[i - 1];
+            if ((i & 3) == 0) {
+                temp = ((sBox[(temp >>> 16) & 0xff] << 24) | (sBox[(temp >>> 8) & 0xff] << 16)
+                        | (sBox[temp & 0xff] << 8) | sBox[temp >>> 24]) ^ (rcon[(i >>> 2) - 1] << 24);
+            }
+            rk[i] = rk[i - 4] ^ temp;
+        }
+        initialized = true;
+    }
+
+    @Override
+    public byte[] encrypt(byte[] data) throws CryptoException {
+        return encrypt(data, new byte[data.length]);
+    }
+
+    @Override
+    public void encryptBlocks(byte[] input, int inputOffset, int numBlocks, byte[] output, int outputOffset)
+            throws CryptoException {
+        if (!initialized) {
+            throw new CryptoException(new IllegalStateException("Not initialized"));
+        }
+        if (inputOffset < 0 || outputOffset < 0 || numBlocks < 0
+                || input.length - inputOffset < numBlocks * blockLength
+                || output.length - outputOffset < numBlocks * blockLength) {
+            throw new CryptoException(new IndexOutOfBoundsException("Buffer too short"));
+        }
+        for (int i = 0; i < numBlocks; i++) {
+            encryptBlock(input, inputOffset + i * blockLength, output, outputOffset + i * blockLength);
+        }
+    }
+
+    @Override
+    public byte[] encrypt(byte[] data, byte[] output) throws CryptoException {
+        if (data.length % blockLength != 0) {
+            throw new CryptoException(new IllegalArgumentException("Data length must be a multiple of 16"));
+        }
+        encryptBlocks(data, 0, data.length / blockLength, output, 0);
+        return output;
+    }
+
+    private void encryptBlock(byte[] input, int inputOffset, byte[] output, int outputOffset) {
+        int[] rk = roundKeys;
+        int s0 = getInt(input, inputOffset) ^ rk[0];
+        int s1 = getInt(input, inputOffset + 4) ^ rk[1];
+        int s2 = getInt(input, inputOffset + 8) ^ rk[2];
+        int s3 = getInt(input, inputOffset + 12) ^ rk[3];
+        int k = 4;
+        for (int round = 1; round < numRounds; round++) {
+            int t0 = te0[s0 >>> 24] ^ te1[(s1 >>> 16) & 0xff] ^ te2[(s2 >>> 8) & 0xff] ^ te3[s3 & 0xff] ^ rk[k];
+            int t1 = te0[s1 >>> 24] ^ te1[(s2 >>> 16) & 0xff] ^ te2[(s3 >>> 8) & 0xff] ^ te3[s0 & 0xff] ^ rk[k + 1];
+            int t2 = te0[s2 >>> 24] ^ te1[(s3 >>> 16) & 0xff] ^ te2[(s0 >>> 8) & 0xff] ^ te3[s1 & 0xff] ^ rk[k + 2];
+            int t3 = te0[s3 >>> 24] ^ te1[(s0 >>> 16) & 0xff] ^ te2[(s1 >>> 8) & 0xff] ^ te3[s2 & 0xff] ^ rk[k + 3];
+            s0 = t0;
+            s1 = t1;
+            s2 = t2;
+            s3 = t3;
+            k += 4;
+        }
+        // the last round has no MixColumns
+        putInt(output, outputOffset, finalRound(s0, s1, s2, s3) ^ rk[k]);
+        putInt(output, outputOffset + 4, finalRound(s1, s2, s3, s0) ^ rk[k + 1]);
+        putInt(output, outputOffset + 8, finalRound(s2, s3, s0, s1) ^ rk[k + 2]);
+        putInt(output, outputOffset + 12, finalRound(s3, s0, s1, s2) ^ rk[k + 3]);
+    }
+
+    private static int finalRound(int a, int b, int c, int d) {
+        return (sBox[a >>> 24] << 24) | (sBox[(b >>> 16) & 0xff] << 16) | (sBox[(c >>> 8) & 0xff] << 8) | sBox[d & 0xff];
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16)
+                | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+}
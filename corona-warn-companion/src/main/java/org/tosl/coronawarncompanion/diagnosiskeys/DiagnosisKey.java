@@ -1,11 +1,58 @@
 package org.tosl.coronawarncompanion.diagnosiskeys;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 public class DiagnosisKey {
     public DiagnosisKeysProtos.TemporaryExposureKey dk;
-    public String countryCode;
+    public String countryCode;  // the source of this DK, and of the metadata in dk
+    private List<String> otherCountryCodes = null;  // the other sources of the same key, if duplicates have been merged
+    public final DiagnosisKey extendedDk;  // the DK whose rolling period this one continues, or null
 
     public DiagnosisKey(DiagnosisKeysProtos.TemporaryExposureKey dk, String countryCode) {
+        this(dk, countryCode, null);
+    }
+
+    public DiagnosisKey(DiagnosisKeysProtos.TemporaryExposureKey dk, String countryCode, DiagnosisKey extendedDk) {
         this.dk = dk;
         this.countryCode = countryCode;
+        this.extendedDk = extendedDk;
+    }
+
+    /*
+     The DK that the matches of this DK are shown and counted with: the same TEK is one DK in the results,
+     even if it is matched in two parts (see DiagnosisKeyDeduplicator.add()).
+     */
+    public DiagnosisKey getMatchGroup() {
+        return (extendedDk != null) ? extendedDk : this;
+    }
+
+    /*
+     Records another source of the same key. Only the country code is kept: dk stays the one of countryCode.
+     */
+    public synchronized void addCountryCode(String countryCode) {
+        if (this.countryCode.equals(countryCode)) {
+            return;
+        }
+        if (otherCountryCodes == null) {
+            otherCountryCodes = new ArrayList<>(1);
+        } else if (otherCountryCodes.contains(countryCode)) {
+            return;
+        }
+        otherCountryCodes.add(countryCode);
+    }
+
+    /*
+     All sources of this DK, its own countryCode first.
+     */
+    public synchronized List<String> getCountryCodes() {
+        if (otherCountryCodes == null) {
+            return Collections.singletonList(countryCode);
+        }
+        List<String> countryCodes = new ArrayList<>(otherCountryCodes.size() + 1);
+        countryCodes.add(countryCode);
+        countryCodes.addAll(otherCountryCodes);
+        return countryCodes;
     }
 }
@@ -0,0 +1,129 @@
+/*
+ * Corona-Warn-Companion. An app that shows COVID-19 Exposure Notifications details.
+ * Copyright (C) 2020  Michael Huebler <corona-warn-companion@tosl.org> and other contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tosl.coronawarncompanion.diagnosiskeys;
+
+import com.google.protobuf.ByteString;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ Deduplication stage after downloading: the same TEK can arrive from several countries (e.g. via EFGS)
+ and in several overlapping files of one country (e.g. day and hour packages). Duplicates are identified by
+ key data and rolling start interval number. The first occurrence is kept, with the metadata of its own country,
+ and the country codes of the others are merged into it (see DiagnosisKey.getCountryCodes()), so every key
+ is derived and encrypted only once. The duplicates are counted per source.
+ Works file by file while downloading, see add().
+ */
+public class DiagnosisKeyDeduplicator {
+    private static class Key {
+        private final ByteString keyData;
+        private final int rollingStartIntervalNumber;
+
+        Key(DiagnosisKey dk) {
+            this.keyData = dk.dk.getKeyData();
+            this.rollingStartIntervalNumber = dk.dk.getRollingStartIntervalNumber();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return rollingStartIntervalNumber == key.rollingStartIntervalNumber && keyData.equals(key.keyData);
+        }
+
+        @Override
+        public int hashCode() {
+            return keyData.hashCode() * 31 + rollingStartIntervalNumber;
+        }
+    }
+
+    /*
+     State of a streaming deduplication, see add().
+     */
+    private static class SeenKey {
+        final DiagnosisKey firstDk;
+        int endIntervalNumber;  // end of the intervals covered so far (exclusive)
+
+        SeenKey(DiagnosisKey firstDk) {
+            this.firstDk = firstDk;
+            this.endIntervalNumber = firstDk.dk.getRollingStartIntervalNumber() + firstDk.dk.getRollingPeriod();
+        }
+    }
+
+    private final Map<Key, SeenKey> seenKeys = new HashMap<>();
+    private final Map<String, Integer> numDuplicatesPerSource = new LinkedHashMap<>();
+    private int numDuplicates = 0;
+    private int numDiagnosisKeys = 0;
+
+    /*
+     Streaming deduplication, for one downloaded file after the other: returns the DKs of the file
+     that haven't been returned before. The DKs returned before may already be matched, so they are
+     not replaced by a duplicate with a longer rolling period. Instead, a DK for only the additional
+     intervals is returned, whose matches are grouped with the first DK (see DiagnosisKey.getMatchGroup()).
+     */
+    public List<DiagnosisKey> add(List<DiagnosisKey> diagnosisKeys) {
+        List<DiagnosisKey> newKeys = new ArrayList<>(diagnosisKeys.size());
+        for (DiagnosisKey dk : diagnosisKeys) {
+            Key key = new Key(dk);
+            SeenKey seenKey = seenKeys.get(key);
+            if (seenKey == null) {
+                seenKeys.put(key, new SeenKey(dk));
+                newKeys.add(dk);
+                continue;
+            }
+            int endIntervalNumber = dk.dk.getRollingStartIntervalNumber() + dk.dk.getRollingPeriod();
+            if (endIntervalNumber > seenKey.endIntervalNumber) {
+                newKeys.add(new DiagnosisKey(dk.dk.toBuilder()
+                        .setRollingStartIntervalNumber(seenKey.endIntervalNumber)
+                        .setRollingPeriod(endIntervalNumber - seenKey.endIntervalNumber)
+                        .build(), dk.countryCode, seenKey.firstDk));
+                seenKey.endIntervalNumber = endIntervalNumber;
+            }
+            seenKey.firstDk.addCountryCode(dk.countryCode);
+            countDuplicate(dk.countryCode);
+            numDuplicates++;
+        }
+        numDiagnosisKeys += newKeys.size();
+        return newKeys;
+    }
+
+    public int getNumDuplicates() {
+        return numDuplicates;
+    }
+
+    public Map<String, Integer> getNumDuplicatesPerSource() {
+        return numDuplicatesPerSource;
+    }
+
+    @Override
+    public String toString() {
+        return "Deduplication: " + numDuplicates + " duplicate DKs removed " + numDuplicatesPerSource + ", " +
+                numDiagnosisKeys + " DKs left";
+    }
+
+    private void countDuplicate(String countryCode) {
+        Integer numDuplicatesOfSource = numDuplicatesPerSource.get(countryCode);
+        numDuplicatesPerSource.put(countryCode, (numDuplicatesOfSource != null) ? numDuplicatesOfSource + 1 : 1);
+    }
+}
@@ -8,7 +8,7 @@ import org.tosl.coronawarncompanion.R;
 import java.util.Date;
 import java.util.List;
 import io.reactivex.Maybe;
-import io.reactivex.Observable;
+import io.reactivex.Flowable;
 import okhttp3.OkHttpClient;
 import okhttp3.ResponseBody;
 import retrofit2.Retrofit;
@@ -49,7 +49,7 @@ public class DKDownloadAustria implements DKDownloadCountry {
     }
 
     @Override
-    public Observable<byte[]> getDKBytes(Context context, OkHttpClient okHttpClient, Date minDate) {
+    public Flowable<byte[]> getDKBytes(Context context, OkHttpClient okHttpClient, Date minDate) {
 
         Retrofit retrofit = new Retrofit.Builder()
                 .baseUrl(DK_URL)
@@ -61,9 +61,10 @@ public class DKDownloadAustria implements DKDownloadCountry {
 
         return DKDownloadUtils.wrapRetrofit(context, api.getIndex())
                 .doOnSuccess(index -> Log.d(TAG, "Downloaded index"))
-                .flatMapObservable(index -> Observable.fromIterable(index.getFull14Batch().getBatchFilePaths()))
+                .flatMapPublisher(index -> Flowable.fromIterable(index.getFull14Batch().getBatchFilePaths()))
                 .flatMapMaybe(path -> DKDownloadUtils.wrapRetrofit(context, api.getFile(path))
-                        .doOnSuccess(responseBody -> Log.d(TAG, "Downloaded file: " + path)))
+                        .doOnSuccess(responseBody -> Log.d(TAG, "Downloaded file: " + path)),
+                        false, DKDownloadUtils.maxDownloadsInFlight)
                 .map(ResponseBody::bytes);
     }
 
@@ -12,7 +12,7 @@ import java.security.NoSuchAlgorithmException;
 import java.util.Date;
 
 import io.reactivex.Maybe;
-import io.reactivex.Observable;
+import io.reactivex.Flowable;
 import okhttp3.OkHttpClient;
 import okhttp3.ResponseBody;
 import retrofit2.Retrofit;
@@ -64,7 +64,7 @@ public class DKDownloadCanada implements DKDownloadCountry {
     }
 
     @Override
-    public Observable<byte[]> getDKBytes(Context context, OkHttpClient okHttpClient, Date minDate) {
+    public Flowable<byte[]> getDKBytes(Context context, OkHttpClient okHttpClient, Date minDate) {
 
         Retrofit retrofit = new Retrofit.Builder()
                 .baseUrl(DK_URL)
@@ -93,16 +93,16 @@ public class DKDownloadCanada implements DKDownloadCountry {
 
         }
         catch (NoSuchAlgorithmException | InvalidKeyException e) {
-            return Observable.error(e);
+            return Flowable.error(e);
         }
 
         return DKDownloadUtils.wrapRetrofit(context, api.getDKs(MCC_CODE, LAST_14_DAYS_PERIOD, hmac1))
                 .doOnSuccess(response -> Log.d(TAG, "downloaded DKs"))
-                .flatMapObservable(response -> Observable.just(response.bytes()))
+                .flatMapPublisher(response -> Flowable.just(response.bytes()))
                 .concatWith(
                         DKDownloadUtils.wrapRetrofit(context, api.getDKs(MCC_CODE, currentDayPeriodStr, hmac2))
                                 .doOnSuccess(response -> Log.d(TAG, "downloaded today's DKs"))
-                                .flatMapObservable(response -> Observable.just(response.bytes())));
+                                .flatMapPublisher(response -> Flowable.just(response.bytes())));
     }
 
     @Override
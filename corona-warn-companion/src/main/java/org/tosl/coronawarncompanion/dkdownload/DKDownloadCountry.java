@@ -2,11 +2,14 @@ package org.tosl.coronawarncompanion.dkdownload;
 
 import android.content.Context;
 import java.util.Date;
-import io.reactivex.Observable;
+import io.reactivex.Flowable;
 import okhttp3.OkHttpClient;
 
 
 public interface DKDownloadCountry {
-    Observable<byte[]> getDKBytes(Context context, OkHttpClient okHttpClient, Date minDate);
+    /*
+     Downloads the files one by one as requested, at most DKDownloadUtils.maxDownloadsInFlight at a time.
+     */
+    Flowable<byte[]> getDKBytes(Context context, OkHttpClient okHttpClient, Date minDate);
     String getCountryCode(Context context);
 }
@@ -6,7 +6,7 @@ import android.util.Log;
 import org.tosl.coronawarncompanion.R;
 import java.util.Date;
 import io.reactivex.Maybe;
-import io.reactivex.Observable;
+import io.reactivex.Flowable;
 import okhttp3.OkHttpClient;
 import okhttp3.ResponseBody;
 import retrofit2.Retrofit;
@@ -29,7 +29,7 @@ public class DKDownloadCzechia implements DKDownloadCountry {
     }
 
     @Override
-    public Observable<byte[]> getDKBytes(Context context, OkHttpClient okHttpClient, Date minDate) {
+    public Flowable<byte[]> getDKBytes(Context context, OkHttpClient okHttpClient, Date minDate) {
 
         Retrofit retrofit = new Retrofit.Builder()
                 .baseUrl(DK_URL)
@@ -42,9 +42,10 @@ public class DKDownloadCzechia implements DKDownloadCountry {
 
         return DKDownloadUtils.wrapRetrofit(context, api.getIndex())
                 .doOnSuccess(indexString -> Log.d(TAG, "Downloaded index"))
-                .flatMapObservable(indexString -> Observable.fromArray(indexString.split("\n")))
+                .flatMapPublisher(indexString -> Flowable.fromArray(indexString.split("\n")))
                 .flatMapMaybe(availableFile -> DKDownloadUtils.wrapRetrofit(context, api.getFile(availableFile))
-                        .doOnSuccess(responseBody -> Log.d(TAG, "Downloaded file: " + availableFile)))
+                        .doOnSuccess(responseBody -> Log.d(TAG, "Downloaded file: " + availableFile)),
+                        false, DKDownloadUtils.maxDownloadsInFlight)
                 .map(ResponseBody::bytes);
 
     }
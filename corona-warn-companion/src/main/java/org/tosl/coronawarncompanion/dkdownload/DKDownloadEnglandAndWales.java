@@ -15,7 +15,7 @@ import java.util.List;
 import java.util.TimeZone;
 
 import io.reactivex.Maybe;
-import io.reactivex.Observable;
+import io.reactivex.Flowable;
 import okhttp3.OkHttpClient;
 import okhttp3.ResponseBody;
 import retrofit2.Retrofit;
@@ -40,7 +40,7 @@ public class DKDownloadEnglandAndWales implements DKDownloadCountry {
     }
 
     @Override
-    public Observable<byte[]> getDKBytes(Context context, OkHttpClient okHttpClient, Date minDate) {
+    public Flowable<byte[]> getDKBytes(Context context, OkHttpClient okHttpClient, Date minDate) {
 
         Calendar firstAvailableDate = Calendar.getInstance();
         TimeZone tz = TimeZone.getTimeZone("UTC");
@@ -73,12 +73,14 @@ public class DKDownloadEnglandAndWales implements DKDownloadCountry {
             hourlyZips.add(DATE_FORMATTER.format(hourlyInstant) + ".zip");
         }
 
-        return Observable.fromIterable(dailyZips)
+        return Flowable.fromIterable(dailyZips)
                 .flatMapMaybe(timestamp -> DKDownloadUtils.wrapRetrofit(context, api.getDaily(timestamp))
-                        .doOnSuccess(responseBody -> Log.d(TAG, "Downloaded daily: " + timestamp)))
-                .concatWith(Observable.fromIterable(hourlyZips)
+                        .doOnSuccess(responseBody -> Log.d(TAG, "Downloaded daily: " + timestamp)),
+                        false, DKDownloadUtils.maxDownloadsInFlight)
+                .concatWith(Flowable.fromIterable(hourlyZips)
                         .flatMapMaybe(timestamp -> DKDownloadUtils.wrapRetrofit(context, api.getHourly(timestamp))
-                                .doOnSuccess(responseBody -> Log.d(TAG, "Download two-hourly: " + timestamp))))
+                                .doOnSuccess(responseBody -> Log.d(TAG, "Download two-hourly: " + timestamp)),
+                                false, DKDownloadUtils.maxDownloadsInFlight))
                 .map(ResponseBody::bytes);
     }
 
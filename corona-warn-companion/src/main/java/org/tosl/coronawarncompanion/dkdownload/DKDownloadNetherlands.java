@@ -8,7 +8,7 @@ import java.util.Date;
 import java.util.List;
 
 import io.reactivex.Maybe;
-import io.reactivex.Observable;
+import io.reactivex.Flowable;
 import okhttp3.OkHttpClient;
 import okhttp3.ResponseBody;
 import retrofit2.Retrofit;
@@ -43,7 +43,7 @@ public class DKDownloadNetherlands implements DKDownloadCountry {
     }
 
     @Override
-    public Observable<byte[]> getDKBytes(Context context, OkHttpClient okHttpClient, Date minDate) {
+    public Flowable<byte[]> getDKBytes(Context context, OkHttpClient okHttpClient, Date minDate) {
 
         Retrofit retrofit = new Retrofit.Builder()
                 .baseUrl(DK_URL)
@@ -55,13 +55,14 @@ public class DKDownloadNetherlands implements DKDownloadCountry {
 
         return DKDownloadUtils.wrapRetrofit(context, api.getManifest())
                 .doOnSuccess(response -> Log.d(TAG, "Downloaded manifest"))
-                .flatMapObservable(response -> {
+                .flatMapPublisher(response -> {
                     String manifestString = new String(Unzip.getUnzippedBytesFromZipFileBytes(response.bytes(), "content.bin"));
                     Manifest manifest = new Gson().fromJson(manifestString, Manifest.class);
-                    return Observable.fromIterable(manifest.getIds());
+                    return Flowable.fromIterable(manifest.getIds());
                 })
                 .flatMapMaybe(id -> DKDownloadUtils.wrapRetrofit(context, api.getDKs(id))
-                        .doOnSuccess(responseBody -> Log.d(TAG, "Downloaded file: " + id)))
+                        .doOnSuccess(responseBody -> Log.d(TAG, "Downloaded file: " + id)),
+                        false, DKDownloadUtils.maxDownloadsInFlight)
                 .map(ResponseBody::bytes);
     }
 
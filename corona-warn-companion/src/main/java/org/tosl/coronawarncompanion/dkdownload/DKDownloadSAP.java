@@ -12,7 +12,7 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 import io.reactivex.Maybe;
-import io.reactivex.Observable;
+import io.reactivex.Flowable;
 import okhttp3.OkHttpClient;
 import okhttp3.ResponseBody;
 import retrofit2.Retrofit;
@@ -76,7 +76,7 @@ public abstract class DKDownloadSAP implements DKDownloadCountry {
     }
 
     @Override
-    public Observable<byte[]> getDKBytes(Context context, OkHttpClient okHttpClient, Date minDate) {
+    public Flowable<byte[]> getDKBytes(Context context, OkHttpClient okHttpClient, Date minDate) {
 
         Retrofit retrofit = new Retrofit.Builder()
                 .baseUrl(DK_URL)
@@ -91,22 +91,24 @@ public abstract class DKDownloadSAP implements DKDownloadCountry {
                 .doOnSuccess(list -> Log.d(TAG, "retrieved dates: " + list))
                 .map(datesListString -> Arrays.asList(parseCwsListResponse(datesListString)))
                 .map(datesList -> new Pair<>(datesList, currentDate(datesList)))
-                .flatMapObservable(datesListCurrentDatePair -> Observable.fromIterable(datesListCurrentDatePair.first)
+                .flatMapPublisher(datesListCurrentDatePair -> Flowable.fromIterable(datesListCurrentDatePair.first)
                         .map(dateFormatter::parse)
                         .filter(date -> date.compareTo(minDate) > 0)
                         .map(DKDownloadSAP::getStringFromDate)
                         .flatMapMaybe(date -> DKDownloadUtils.wrapRetrofit(
                                 context, api.getDKsForDate(date))
-                                .doOnSuccess(responseBody -> Log.d(TAG, "Downloaded day: " + date)))
+                                .doOnSuccess(responseBody -> Log.d(TAG, "Downloaded day: " + date)),
+                                false, DKDownloadUtils.maxDownloadsInFlight)
                         .concatWith(
                                 DKDownloadUtils.wrapRetrofit(
                                         context, api.listHours(datesListCurrentDatePair.second))
                                         .doOnSuccess(list -> Log.d(TAG, "Downloaded hours list: " + list))
-                                        .flatMapObservable(hoursListString -> Observable
+                                        .flatMapPublisher(hoursListString -> Flowable
                                                 .fromIterable(Arrays.asList(parseCwsListResponse(hoursListString))))
                                         .flatMapMaybe(hour -> DKDownloadUtils.wrapRetrofit(
                                                 context, api.getDKsForDateAndHour(datesListCurrentDatePair.second, hour))
-                                                .doOnSuccess(responseBody -> Log.d(TAG, "Downloaded hour: " + hour)))))
+                                                .doOnSuccess(responseBody -> Log.d(TAG, "Downloaded hour: " + hour)),
+                                                false, DKDownloadUtils.maxDownloadsInFlight)))
                 .map(ResponseBody::bytes);
     }
 }
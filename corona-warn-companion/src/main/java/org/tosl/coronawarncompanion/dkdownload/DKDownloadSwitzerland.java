@@ -9,7 +9,7 @@ import java.util.Date;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 import io.reactivex.Maybe;
-import io.reactivex.Observable;
+import io.reactivex.Flowable;
 import okhttp3.OkHttpClient;
 import okhttp3.ResponseBody;
 import retrofit2.Retrofit;
@@ -44,7 +44,7 @@ public class DKDownloadSwitzerland implements DKDownloadCountry {
     }
 
     @Override
-    public Observable<byte[]> getDKBytes(Context context, OkHttpClient okHttpClient, Date minDate) {
+    public Flowable<byte[]> getDKBytes(Context context, OkHttpClient okHttpClient, Date minDate) {
 
         Retrofit retrofit = new Retrofit.Builder()
                 .baseUrl(DK_URL)
@@ -53,9 +53,10 @@ public class DKDownloadSwitzerland implements DKDownloadCountry {
                 .build();
         Api api = retrofit.create(Api.class);
 
-        return Observable.fromIterable(createTimestamps(minDate))
+        return Flowable.fromIterable(createTimestamps(minDate))
                 .flatMapMaybe(timestamp -> DKDownloadUtils.wrapRetrofit(context, api.getBytes(timestamp))
-                        .doOnSuccess(responseBody -> Log.d(TAG, "Downloaded timestamp: " + timestamp)))
+                        .doOnSuccess(responseBody -> Log.d(TAG, "Downloaded timestamp: " + timestamp)),
+                        false, DKDownloadUtils.maxDownloadsInFlight)
                 .map(ResponseBody::bytes);
     }
 
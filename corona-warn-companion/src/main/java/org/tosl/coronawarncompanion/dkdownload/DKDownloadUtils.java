@@ -7,15 +7,16 @@ import android.widget.Toast;
 
 import org.tosl.coronawarncompanion.R;
 import org.tosl.coronawarncompanion.diagnosiskeys.DiagnosisKey;
+import org.tosl.coronawarncompanion.diagnosiskeys.DiagnosisKeyDeduplicator;
 import org.tosl.coronawarncompanion.diagnosiskeys.DiagnosisKeysImport;
+import org.tosl.coronawarncompanion.tools.CancellationToken;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.stream.Collectors;
+import io.reactivex.Flowable;
 import io.reactivex.Maybe;
-import io.reactivex.Observable;
-import io.reactivex.Single;
 import io.reactivex.android.schedulers.AndroidSchedulers;
 import io.reactivex.schedulers.Schedulers;
 import okhttp3.OkHttpClient;
@@ -28,6 +29,9 @@ public class DKDownloadUtils {
 
     private static final String TAG = "DKDownloadUtils";
 
+    private static final int maxFilesInFlight = 2;  // downloaded files waiting to be parsed and matched
+    public static final int maxDownloadsInFlight = 2;  // per country, see DKDownloadCountry.getDKBytes()
+
     static private int errorCount = 0;
 
     public static <T> Maybe<T> wrapRetrofit(Context context, Maybe<T> request) {
@@ -44,26 +48,36 @@ public class DKDownloadUtils {
                 .onErrorComplete();
     }
 
-    public static Single<List<DiagnosisKey>>
-    getDKsForCountries(Context context, OkHttpClient okHttpClient, Date minDate, List<DKDownloadCountry> countries) {
-        errorCount = 0;
-        return Observable
-                .concat(countries
-                        .stream()
-                        .map(dkDownloadCountry -> dkDownloadCountry
-                                .getDKBytes(context, okHttpClient, minDate)
-                                .map(bytes -> new Pair<>(bytes, dkDownloadCountry.getCountryCode(context))))
-                        .collect(Collectors.toList()))
-                .map(bytesCountryPair -> parseBytesToTeks(
-                        context, bytesCountryPair.first, bytesCountryPair.second))
-                .toList()
-                .map(dkListList -> dkListList
-                        .stream()
-                        .flatMap(List::stream)
-                        .filter(dk -> dk.dk.getRollingStartIntervalNumber()
-                                >= getENINFromDate(minDate)-standardRollingPeriod) // -1 day because of the 2h window
-                        .collect(Collectors.toList())
-                );
+    /*
+     Emits the new Diagnosis Keys of every downloaded file as soon as it has been parsed (and deduplicated
+     against the files before), so that matching doesn't have to wait for the last file.
+     Files are downloaded, unzipped and parsed only when requested downstream: while the subscriber is busy,
+     at most maxFilesInFlight downloaded files wait, and at most maxDownloadsInFlight more are being downloaded.
+     The countries are downloaded one after the other.
+     Completes early, and cancels the downloads, when the cancellationToken is cancelled.
+     */
+    public static Flowable<List<DiagnosisKey>>
+    getDKBatchesForCountries(Context context, OkHttpClient okHttpClient, Date minDate, List<DKDownloadCountry> countries,
+                             CancellationToken cancellationToken) {
+        return Flowable.defer(() -> {
+            errorCount = 0;
+            DiagnosisKeyDeduplicator deduplicator = new DiagnosisKeyDeduplicator();
+            return Flowable.fromIterable(countries)
+                    .concatMap(dkDownloadCountry -> dkDownloadCountry
+                            .getDKBytes(context, okHttpClient, minDate)
+                            .map(bytes -> new Pair<>(bytes, dkDownloadCountry.getCountryCode(context))), 1)
+                    .takeUntil(cancellationToken.whenCancelled().toFlowable())
+                    .observeOn(Schedulers.computation(), false, maxFilesInFlight)
+                    .map(bytesCountryPair -> parseBytesToTeks(
+                            context, bytesCountryPair.first, bytesCountryPair.second)
+                            .stream()
+                            .filter(dk -> dk.dk.getRollingStartIntervalNumber()
+                                    >= getENINFromDate(minDate)-standardRollingPeriod) // -1 day because of the 2h window
+                            .collect(Collectors.toList()))
+                    .map(deduplicator::add)
+                    .filter(dkList -> !dkList.isEmpty())
+                    .doOnComplete(() -> Log.d(TAG, deduplicator.toString()));
+        });
     }
 
     public static List<DiagnosisKey>
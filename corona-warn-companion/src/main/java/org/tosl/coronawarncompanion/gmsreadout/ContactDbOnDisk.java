@@ -41,8 +41,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
-import static org.tosl.coronawarncompanion.gmsreadout.Sudo.sudo;
+import io.reactivex.Flowable;
+import io.reactivex.schedulers.Schedulers;
 
 public class ContactDbOnDisk {
     private static final String TAG = "ContactDbOnDisk";
@@ -61,27 +64,22 @@ public class ContactDbOnDisk {
         this.context = context;
     }
 
-    public void copyFromGMS() {
-        // Copy the GMS LevelDB to local app cache
+    public boolean copyFromGMS() {
+        // Stream the files of the GMS LevelDB that have changed since the last copy into the app's private cache,
+        // through the root shell, without renaming or copying anything in the GMS directory.
+        // Returns false if the copy couldn't be updated: then it's outdated, and must not be read.
         Log.d(TAG, "Trying to copy LevelDB");
-        File cacheDir = context.getExternalCacheDir();
-        if (cacheDir == null) {
-            cacheDir = context.getCacheDir();
-        }
-        assert cacheDir != null;
+        File cacheDir = context.getCacheDir();
         cachePathStr = cacheDir.getPath();
 
-        // First rename the LevelDB directory, then copy it, then rename to the original name
-        String result = sudo(
-                "rm -rf "+cachePathStr+"/"+dbNameModified,
-                "mv "+gmsPathStr+"/"+dbName+" "+gmsPathStr+"/"+dbNameModified,
-                "cp -R "+gmsPathStr+"/"+dbNameModified+" "+cachePathStr+"/",
-                "mv "+gmsPathStr+"/"+dbNameModified+" "+gmsPathStr+"/"+dbName,
-                "ls -la "+cachePathStr+"/"+dbNameModified
-        );
-        Log.d(TAG, "Result from trying to copy LevelDB: "+result);
-        if (result.length() < 10) {
-            Log.e(TAG, "ERROR: Super User rights not granted!");
+        long startMillis = System.currentTimeMillis();
+        try {
+            LevelDbSync.Result result = LevelDbSync.sync(gmsPathStr+"/"+dbName, new File(cacheDir, dbNameModified));
+            Log.d(TAG, result + " in " + (System.currentTimeMillis() - startMillis) + " ms");
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "ERROR: Super User rights not granted, or the LevelDB changed while copying it!", e);
+            return false;
         }
     }
 
@@ -186,53 +184,130 @@ public class ContactDbOnDisk {
     }
 
 
-    public RpiList readToRpiList() {
-        RpiList rpiList = new RpiList();
+    public RpiList readToRpiList() throws IOException {
+        return readToRpiList(levelDBStore, Runtime.getRuntime().availableProcessors());
+    }
 
+    private static void addEntry(RpiList rpiList, byte[] key, byte[] value) {
+        byte[] rpiBytes = new byte[16];
+        ByteBuffer keyBuf = ByteBuffer.wrap(key);
+        int daysSinceEpochUTC = keyBuf.getShort();  // get first 2 bytes: date
+        keyBuf.get(rpiBytes); // get the next 16 bytes: RPI
+
+        ContactRecordsProtos.ContactRecords contactRecords = null;
+        try {
+            contactRecords = ContactRecordsProtos.ContactRecords.parseFrom(value);
+        } catch (InvalidProtocolBufferException e) {
+            e.printStackTrace();
+        }
+        if (contactRecords != null) {
+            rpiList.addEntry(daysSinceEpochUTC, rpiBytes, contactRecords);
+        }
+    }
+
+    private static ReadOptions getReadOptions() {
         ReadOptions readOptions = new ReadOptions();
         readOptions.verifyChecksums(true);
         readOptions.fillCache(true);
+        return readOptions;
+    }
 
-        DBIterator iterator = levelDBStore.iterator(readOptions);
-        for(iterator.seekToFirst(); iterator.hasNext(); iterator.next()) {
-            byte[] key = iterator.peekNext().getKey();
-            byte[] value = iterator.peekNext().getValue();
-
-            byte[] rpiBytes = new byte[16];
-            ByteBuffer keyBuf = ByteBuffer.wrap(key);
-            int daysSinceEpochUTC = keyBuf.getShort();  // get first 2 bytes: date
-            keyBuf.get(rpiBytes); // get the next 16 bytes: RPI
-
-            ContactRecordsProtos.ContactRecords contactRecords = null;
-            try {
-                contactRecords = ContactRecordsProtos.ContactRecords.parseFrom(value);
-            } catch (InvalidProtocolBufferException e) {
-                e.printStackTrace();
+    // the first 2 bytes of the keys, i.e. the days, unsigned, in key order (one seek per day)
+    private static List<Integer> getDayPrefixes(DB db) throws IOException {
+        List<Integer> dayPrefixes = new ArrayList<>();
+        try (DBIterator iterator = db.iterator(getReadOptions())) {
+            iterator.seekToFirst();
+            while (iterator.hasNext()) {
+                byte[] key = iterator.peekNext().getKey();
+                int dayPrefix = ((key[0] & 0xFF) << 8) | (key[1] & 0xFF);
+                dayPrefixes.add(dayPrefix);
+                if (dayPrefix == 0xFFFF) {
+                    break;
+                }
+                iterator.seek(new byte[]{(byte) ((dayPrefix + 1) >> 8), (byte) (dayPrefix + 1)});
             }
-            if (contactRecords != null) {
-                rpiList.addEntry(daysSinceEpochUTC, rpiBytes, contactRecords);
+        }
+        return dayPrefixes;
+    }
+
+    private static RpiList readDay(DB db, int dayPrefix, RpiList segment) throws IOException {
+        byte[] dayKey = {(byte) (dayPrefix >> 8), (byte) dayPrefix};
+        try (DBIterator iterator = db.iterator(getReadOptions())) {
+            for (iterator.seek(dayKey); iterator.hasNext(); iterator.next()) {
+                byte[] key = iterator.peekNext().getKey();
+                if (key[0] != dayKey[0] || key[1] != dayKey[1]) {
+                    break;
+                }
+                addEntry(segment, key, iterator.peekNext().getValue());
+            }
+        }
+        return segment;
+    }
+
+    /*
+     Reads all contact records. The keys start with the day, so each day is a separate key range:
+     with more than one worker, the days are read in parallel, each worker adds the days it reads
+     to its own RpiList segment, and the segments are merged at the end.
+     The result is the same as with a single worker, which reads the whole database with one iterator.
+     */
+    public static RpiList readToRpiList(DB db, int numWorkers) throws IOException {
+        long startMillis = System.currentTimeMillis();
+        RpiList rpiList = new RpiList();
+        if (numWorkers <= 1) {
+            try (DBIterator iterator = db.iterator(getReadOptions())) {
+                for (iterator.seekToFirst(); iterator.hasNext(); iterator.next()) {
+                    addEntry(rpiList, iterator.peekNext().getKey(), iterator.peekNext().getValue());
+                }
+            }
+        } else {
+            List<Integer> dayPrefixes = getDayPrefixes(db);
+            List<RpiList> segments = Flowable.fromIterable(dayPrefixes)
+                    .parallel(Math.min(numWorkers, Math.max(dayPrefixes.size(), 1)), 1)
+                    .runOn(Schedulers.computation(), 1)  // a worker takes the next day when it's done
+                    .reduce(RpiList::new, (segment, dayPrefix) -> readDay(db, dayPrefix, segment))
+                    .sequential()
+                    .toList()
+                    .blockingGet();
+            for (RpiList segment : segments) {
+                rpiList.merge(segment);
             }
         }
+        Log.d(TAG, "Read contact records with " + numWorkers + " workers in " +
+                (System.currentTimeMillis() - startMillis) + " ms");
         return rpiList;
     }
 
     public RpiList getRpisFromContactDB() {
         RpiList rpiList = null;
         try {
-            // delete cache:
-            try {
-                File dir = context.getExternalCacheDir();
-                deleteDir(dir);
-            } catch (Exception e) { e.printStackTrace();}
-
+            boolean copied;
             if (CWCApplication.appMode == CWCApplication.AppModeOptions.NORMAL_MODE) {
-                copyFromGMS();
+                copied = copyFromGMS();  // keeps the unchanged files of the last copy
             } else if (CWCApplication.appMode == CWCApplication.AppModeOptions.DEMO_MODE) {
+                // delete the copies, one of them may be of the GMS database
+                try {
+                    deleteDir(new File(context.getCacheDir(), dbNameModified));
+                    File dir = context.getExternalCacheDir();
+                    if (dir != null) {
+                        deleteDir(new File(dir, dbNameModified));
+                    }
+                } catch (Exception e) { e.printStackTrace();}
                 copyFromAssets();
+                copied = true;
             } else {
                 throw new IllegalStateException();
             }
-            open();
+            if (copied) {
+                open();
+            }
+            if (levelDBStore == null && CWCApplication.appMode == CWCApplication.AppModeOptions.NORMAL_MODE) {
+                // e.g. a table file was created after the listing, or deleted before tar read it:
+                // copy everything again
+                deleteDir(new File(cachePathStr, dbNameModified));
+                if (copyFromGMS()) {
+                    open();
+                }
+            }
             if (levelDBStore != null) {
                 try {
                     // Use the db in here...
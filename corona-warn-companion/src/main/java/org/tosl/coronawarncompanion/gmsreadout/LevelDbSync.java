@@ -0,0 +1,213 @@
+/*
+ * Corona-Warn-Companion. An app that shows COVID-19 Exposure Notifications details.
+ * Copyright (C) 2020  Michael Huebler <corona-warn-companion@tosl.org> and other contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tosl.coronawarncompanion.gmsreadout;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+ Incremental copy of a LevelDB directory that only root can read, into a directory of the app.
+ The files are listed with one root shell command, and only the files that are needed are streamed
+ through a second one (as a tar stream, see Sudo.openTar()), straight into the copy.
+ LevelDB table files (.ldb, .sst) are immutable once written, so a table file is only fetched if the copy
+ doesn't have the same size and modification time (copies get the modification time of their source).
+ The log, MANIFEST and CURRENT files (and the other small files) are always fetched, and files that the
+ source doesn't have any more, e.g. tables merged by a compaction, are deleted from the copy.
+ The fetched files are written to temporary files first, and the copy is only changed once the whole tar stream
+ has been read and tar has exited with 0, so a failed sync leaves the previous copy as it was.
+ A file that is deleted between the listing and the tar command (e.g. by a compaction) makes tar fail,
+ so the sync fails, too.
+ The source directory isn't touched.
+ */
+public class LevelDbSync {
+    private static final String TAG = "LevelDbSync";
+    private static final String tempSuffix = ".part";
+
+    public static class FileInfo {
+        public final String name;
+        public final long size;
+        public final long mtimeSeconds;
+
+        FileInfo(String name, long size, long mtimeSeconds) {
+            this.name = name;
+            this.size = size;
+            this.mtimeSeconds = mtimeSeconds;
+        }
+    }
+
+    public static class Plan {
+        public final List<String> namesToFetch = new ArrayList<>();
+        public final List<String> namesToDelete = new ArrayList<>();
+        public int numKept = 0;
+        public long bytesKept = 0;
+    }
+
+    public static class Result {
+        public int numCopied = 0;
+        public int numSkipped = 0;
+        public int numDeleted = 0;
+        public long bytesCopied = 0;
+        public long bytesSkipped = 0;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "LevelDB sync: copied %d files (%d bytes), kept %d table files (%d bytes), deleted %d",
+                    numCopied, bytesCopied, numSkipped, bytesSkipped, numDeleted);
+        }
+    }
+
+    public static String getListCommand(String sourceDir) {
+        return "cd " + Sudo.quote(sourceDir) + " && stat -c '%n %s %Y' *";
+    }
+
+    /*
+     Parses the output of getListCommand(): one "<name> <size> <mtime>" line per file. Other lines are ignored.
+     */
+    public static List<FileInfo> parseListing(String listing) {
+        List<FileInfo> fileInfos = new ArrayList<>();
+        for (String line : listing.split("\n")) {
+            String[] fields = line.trim().split(" ");
+            if (fields.length == 3) {
+                try {
+                    fileInfos.add(new FileInfo(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+                } catch (NumberFormatException e) {
+                    Log.d(TAG, "Ignored: " + line);
+                }
+            }
+        }
+        return fileInfos;
+    }
+
+    private static boolean isTableFile(String name) {
+        return name.endsWith(".ldb") || name.endsWith(".sst");
+    }
+
+    public static Plan plan(List<FileInfo> sourceFiles, File destinationDir) {
+        Plan plan = new Plan();
+        Map<String, FileInfo> sourceFilesByName = new HashMap<>();
+        for (FileInfo fileInfo : sourceFiles) {
+            sourceFilesByName.put(fileInfo.name, fileInfo);
+        }
+        String[] destinationNames = destinationDir.list();
+        if (destinationNames != null) {
+            for (String name : destinationNames) {
+                if (!sourceFilesByName.containsKey(name)) {
+                    plan.namesToDelete.add(name);
+                }
+            }
+        }
+        for (FileInfo fileInfo : sourceFiles) {
+            if (fileInfo.name.equals("LOCK")) {
+                continue;
+            }
+            File copy = new File(destinationDir, fileInfo.name);
+            if (isTableFile(fileInfo.name) && copy.isFile() && copy.length() == fileInfo.size &&
+                    copy.lastModified() / 1000 == fileInfo.mtimeSeconds) {
+                plan.numKept++;
+                plan.bytesKept += fileInfo.size;
+            } else {
+                plan.namesToFetch.add(fileInfo.name);
+            }
+        }
+        return plan;
+    }
+
+    /*
+     Writes the files of the tar stream to destinationDir, with the modification times of their sources,
+     and deletes the files of the plan. If the tar stream can't be read to its end, or tar hasn't exited with 0
+     (e.g. because a file was missing), nothing is changed.
+     */
+    public static Result extract(RootShell.CommandOutput tarStream, Plan plan, File destinationDir)
+            throws IOException {
+        Result result = new Result();
+        result.numSkipped = plan.numKept;
+        result.bytesSkipped = plan.bytesKept;
+        List<String> extractedNames = new ArrayList<>();
+        byte[] buffer = new byte[65536];
+        try (TarReader tarReader = new TarReader(tarStream)) {
+            TarReader.Entry entry;
+            while ((entry = tarReader.next()) != null) {
+                if (entry.name.contains("/")) {
+                    continue;  // only the files of the directory itself
+                }
+                File tempFile = new File(destinationDir, entry.name + tempSuffix);
+                extractedNames.add(entry.name);
+                try (OutputStream outputStream = new FileOutputStream(tempFile)) {
+                    int read;
+                    while ((read = tarReader.read(buffer, 0, buffer.length)) != -1) {
+                        outputStream.write(buffer, 0, read);
+                    }
+                }
+                //noinspection ResultOfMethodCallIgnored
+                tempFile.setLastModified(entry.mtimeSeconds * 1000);
+                result.numCopied++;
+                result.bytesCopied += entry.size;
+            }
+            // the end of the archive may be followed by padding, and the exit code comes after it
+            //noinspection StatementWithEmptyBody
+            while (tarStream.read(buffer) != -1) {
+            }
+            if (tarStream.getExitCode() != 0) {
+                throw new IOException("tar exited with " + tarStream.getExitCode());
+            }
+        } catch (IOException e) {
+            for (String name : extractedNames) {
+                //noinspection ResultOfMethodCallIgnored
+                new File(destinationDir, name + tempSuffix).delete();
+            }
+            throw e;
+        }
+        for (String name : extractedNames) {
+            if (!new File(destinationDir, name + tempSuffix).renameTo(new File(destinationDir, name))) {
+                throw new IOException("Could not rename " + name + tempSuffix);
+            }
+        }
+        for (String name : plan.namesToDelete) {
+            if (new File(destinationDir, name).delete()) {
+                result.numDeleted++;
+            }
+        }
+        return result;
+    }
+
+    /*
+     Updates the copy in destinationDir. Throws an IOException if the source can't be listed, e.g. without root.
+     */
+    public static Result sync(String sourceDir, File destinationDir) throws IOException {
+        List<FileInfo> sourceFiles = parseListing(Sudo.sudo(getListCommand(sourceDir)));
+        if (sourceFiles.isEmpty()) {
+            throw new IOException("Could not list " + sourceDir);
+        }
+        if (!destinationDir.isDirectory() && !destinationDir.mkdirs()) {
+            throw new IOException("Could not create " + destinationDir);
+        }
+        Plan plan = plan(sourceFiles, destinationDir);
+        return extract(Sudo.openTar(sourceDir, plan.namesToFetch.toArray(new String[0])), plan, destinationDir);
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ * Corona-Warn-Companion. An app that shows COVID-19 Exposure Notifications details.
+ * Copyright (C) 2020  Michael Huebler <corona-warn-companion@tosl.org> and other contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tosl.coronawarncompanion.gmsreadout;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.tosl.coronawarncompanion.tools.Utils.byteArrayToHexString;
+
+/*
+ A long-lived root shell. Starting su is slow (and may show a prompt), so a single shell process is used
+ for all commands, one after the other, for the lifetime of the app process (see getInstance()).
+ Each command runs in a subshell (so that it can't change the directory or the variables of the shell),
+ without input and without error output, and is followed by a line with a unique end marker and its exit code,
+ which frames its output on the shared standard output of the shell.
+ The output can be read as a whole (run()) or as a stream (openStream()), e.g. for binary data.
+ The output is read by a thread of the shell, so that waiting for it can time out even if the command hangs.
+ After a timeout the shell is killed, and the next command starts a new one.
+ */
+public class RootShell implements Closeable {
+    private static final String TAG = "RootShell";
+    private static final int chunkSize = 65536;
+    private static final int maxQueuedChunks = 16;
+    private static final byte[] endOfOutput = new byte[0];
+    private static RootShell instance = null;
+
+    public static class Result {
+        public final String output;
+        public final int exitCode;
+
+        Result(String output, int exitCode) {
+            this.output = output;
+            this.exitCode = exitCode;
+        }
+    }
+
+    private final String shellCommand;
+    private final String markerPrefix;
+    private final Semaphore busy = new Semaphore(1);  // held until the output of the last command has been read
+    private int numCommands = 0;
+    private Process process = null;
+    private OutputStream stdin = null;
+    private BlockingQueue<byte[]> chunks = null;  // the standard output of the shell
+    private byte[] leftover = new byte[0];  // output of the next command, read together with the previous one
+
+    /*
+     The shell shared by the whole app, started with Sudo.rootShellCommand.
+     */
+    public static synchronized RootShell getInstance() {
+        String shellCommand = Sudo.rootShellCommand;
+        if (instance == null || !instance.shellCommand.equals(shellCommand)) {
+            if (instance != null) {
+                instance.close();
+            }
+            instance = new RootShell(shellCommand);
+        }
+        return instance;
+    }
+
+    public RootShell(String shellCommand) {
+        this.shellCommand = shellCommand;
+        byte[] random = new byte[8];
+        new SecureRandom().nextBytes(random);
+        markerPrefix = "cwc_end_" + byteArrayToHexString(random) + "_";
+    }
+
+    private synchronized void start() throws IOException {
+        if (process != null) {
+            try {
+                process.exitValue();
+                Log.d(TAG, "The shell has ended");
+                kill(process);
+            } catch (IllegalThreadStateException e) {
+                return;  // still running
+            }
+        }
+        Log.d(TAG, "Starting " + shellCommand);
+        process = Runtime.getRuntime().exec(shellCommand);
+        stdin = process.getOutputStream();
+        chunks = new ArrayBlockingQueue<>(maxQueuedChunks);
+        leftover = new byte[0];
+        startReader(process, chunks);
+        stdin.write("exec 2>/dev/null\n".getBytes(StandardCharsets.UTF_8));  // nobody reads the error output
+        stdin.flush();
+    }
+
+    private static void startReader(final Process process, final BlockingQueue<byte[]> chunks) {
+        Thread thread = new Thread(() -> {
+            byte[] buffer = new byte[chunkSize];
+            try (InputStream inputStream = process.getInputStream()) {
+                int length;
+                while ((length = inputStream.read(buffer)) != -1) {
+                    if (!put(chunks, Arrays.copyOf(buffer, length), process)) {
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                Log.d(TAG, "Reader: " + e);
+            }
+            put(chunks, endOfOutput, process);
+        }, "RootShellReader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // false if the shell has been killed while the queue was full
+    private static boolean put(BlockingQueue<byte[]> chunks, byte[] chunk, Process process) {
+        try {
+            while (!chunks.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                try {
+                    process.exitValue();
+                    return false;
+                } catch (IllegalThreadStateException e) {
+                    // still running
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    private synchronized void kill(Process expectedProcess) {
+        if (process == expectedProcess && process != null) {
+            process.destroy();
+            Sudo.CloseablesCloser.close(stdin);
+            process = null;
+            stdin = null;
+            chunks = null;
+        }
+    }
+
+    private void acquire(long timeoutMillis) throws IOException {
+        try {
+            if (!busy.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new IOException("The root shell is busy");
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    // writes the commands (all at once, the shell runs them one after the other), returns their responses
+    private List<Response> send(long timeoutMillis, String... commands) throws IOException {
+        start();
+        long deadlineMillis = System.currentTimeMillis() + timeoutMillis;
+        StringBuilder script = new StringBuilder();
+        List<Response> responses = new ArrayList<>();
+        for (String command : commands) {
+            String marker = markerPrefix + (numCommands++);
+            script.append("(\n").append(command).append("\n) </dev/null 2>/dev/null; printf '%s %d\\n' ")
+                    .append(marker).append(" $?\n");
+            responses.add(new Response(marker, process, chunks, deadlineMillis));
+        }
+        try {
+            stdin.write(script.toString().getBytes(StandardCharsets.UTF_8));
+            stdin.flush();
+        } catch (IOException e) {
+            kill(process);
+            throw e;
+        }
+        return responses;
+    }
+
+    /*
+     Runs the commands, one after the other, and returns their output and exit codes.
+     The commands are sent together, so that the shell doesn't wait for each round trip.
+     */
+    public List<Result> run(long timeoutMillis, String... commands) throws IOException {
+        acquire(timeoutMillis);
+        try {
+            List<Result> results = new ArrayList<>();
+            for (Response response : send(timeoutMillis, commands)) {
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                byte[] buffer = new byte[1024];
+                int length;
+                while ((length = response.read(buffer, 0, buffer.length)) != -1) {
+                    output.write(buffer, 0, length);
+                }
+                results.add(new Result(output.toString("UTF-8"), response.exitCode));
+            }
+            return results;
+        } finally {
+            busy.release();
+        }
+    }
+
+    public Result run(String command, long timeoutMillis) throws IOException {
+        return run(timeoutMillis, command).get(0);
+    }
+
+    /*
+     The output of a command as a stream, and its exit code once the stream has been read to its end.
+     */
+    public abstract static class CommandOutput extends InputStream {
+        // -1 before the end of the output has been read
+        public abstract int getExitCode();
+    }
+
+    /*
+     Runs the command, and returns its output as a stream. No other command runs until the stream has been closed.
+     Closing the stream before its end reads (and discards) the rest of the output.
+     */
+    public CommandOutput openStream(String command, long timeoutMillis) throws IOException {
+        acquire(timeoutMillis);
+        try {
+            Response response = send(timeoutMillis, command).get(0);
+            response.holdsLock = true;
+            return response;
+        } catch (IOException e) {
+            busy.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        kill(process);
+    }
+
+    /*
+     The output of one command, up to its end marker.
+     The bytes after the end marker line belong to the next command, and are left for it.
+     */
+    private class Response extends CommandOutput {
+        private final byte[] marker;  // including the space before the exit code
+        private final Process responseProcess;
+        private final BlockingQueue<byte[]> responseChunks;
+        private final long deadlineMillis;
+        private byte[] buffer = new byte[2 * chunkSize];
+        private int start = 0;
+        private int outputEnd = 0;  // buffer[start, outputEnd) is known to be output
+        private int end = 0;
+        private boolean started = false;
+        private boolean ended = false;
+        private int exitCode = -1;
+        private boolean holdsLock = false;
+
+        Response(String marker, Process responseProcess, BlockingQueue<byte[]> responseChunks, long deadlineMillis) {
+            this.marker = (marker + " ").getBytes(StandardCharsets.UTF_8);
+            this.responseProcess = responseProcess;
+            this.responseChunks = responseChunks;
+            this.deadlineMillis = deadlineMillis;
+        }
+
+        private int indexOf(byte[] pattern, int from) {
+            for (int i = from; i <= end - pattern.length; i++) {
+                int j = 0;
+                while (j < pattern.length && buffer[i + j] == pattern[j]) {
+                    j++;
+                }
+                if (j == pattern.length) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void append(byte[] chunk) {
+            if (start > 0) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+                outputEnd = 0;
+            }
+            if (end + chunk.length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, end + chunk.length);
+            }
+            System.arraycopy(chunk, 0, buffer, end, chunk.length);
+            end += chunk.length;
+        }
+
+        // the number of output bytes at buffer[start], 0 at the end of the output
+        private int fill() throws IOException, InterruptedException {
+            if (!started) {
+                started = true;
+                append(leftover);
+            }
+            while (!ended) {
+                if (outputEnd > start) {
+                    return outputEnd - start;
+                }
+                int markerPosition = indexOf(marker, start);
+                if (markerPosition > start) {
+                    outputEnd = markerPosition;
+                    return outputEnd - start;
+                } else if (markerPosition == start) {
+                    int exitCodeStart = start + marker.length;
+                    for (int i = exitCodeStart; i < end; i++) {
+                        if (buffer[i] == '\n') {
+                            exitCode = Integer.parseInt(new String(buffer, exitCodeStart, i - exitCodeStart,
+                                    StandardCharsets.UTF_8).trim());
+                            leftover = Arrays.copyOfRange(buffer, i + 1, end);
+                            start = end;
+                            finish();
+                            return 0;
+                        }
+                    }
+                } else if (end - start - (marker.length - 1) > 0) {
+                    // the last bytes may be the beginning of the end marker
+                    outputEnd = end - (marker.length - 1);
+                    return outputEnd - start;
+                }
+                byte[] chunk = responseChunks.poll(Math.max(deadlineMillis - System.currentTimeMillis(), 0),
+                        TimeUnit.MILLISECONDS);
+                if (chunk == null) {
+                    throw new IOException("The root shell command timed out");
+                } else if (chunk == endOfOutput) {
+                    throw new IOException("The root shell has ended");
+                }
+                append(chunk);
+            }
+            return 0;
+        }
+
+        private void finish() {
+            ended = true;
+            if (holdsLock) {
+                holdsLock = false;
+                busy.release();
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int available;
+            try {
+                available = fill();
+            } catch (IOException | InterruptedException | NumberFormatException e) {
+                // the shell is out of step with the commands
+                Log.e(TAG, "Killing the shell: " + e);
+                kill(responseProcess);
+                finish();
+                throw (e instanceof IOException) ? (IOException) e : new IOException(e);
+            }
+            if (available == 0) {
+                return -1;
+            }
+            int length = Math.min(len, available);
+            System.arraycopy(buffer, start, b, off, length);
+            start += length;
+            return length;
+        }
+
+        @Override
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public void close() throws IOException {
+            byte[] discarded = new byte[chunkSize];
+            while (!ended) {
+                if (read(discarded, 0, discarded.length) == -1) {
+                    break;
+                }
+            }
+        }
+    }
+}
@@ -20,49 +20,63 @@ package org.tosl.coronawarncompanion.gmsreadout;
 
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 
 public class Sudo {
-    private static String readFromStream(InputStream is) throws IOException {
-        ByteArrayOutputStream s = new ByteArrayOutputStream();
-        byte[] buffer = new byte[1024];
-        int length;
-        while ((length = is.read(buffer)) != -1) {
-            s.write(buffer, 0, length);
+    // the command that starts the root shell (tests use "sh" instead)
+    public static volatile String rootShellCommand = "su";
+
+    // including the time that the user needs to grant root access
+    public static final long commandTimeoutMillis = 60000;
+    public static final long streamTimeoutMillis = 5 * 60000;
+
+    /*
+     Runs the lines as one script in the root shell (see RootShell), and returns its output,
+     or an empty string if the root shell isn't available.
+     */
+    public static String sudo(String...strings) {
+        StringBuilder script = new StringBuilder();
+        for (String s : strings) {
+            script.append(s).append('\n');
+        }
+        try {
+            return RootShell.getInstance().run(script.toString(), commandTimeoutMillis).output;
+        } catch (IOException e) {
+            Log.e("Sudo", "Root shell command failed", e);
+            return "";
         }
-        return s.toString("UTF-8");
     }
 
-    public static String sudo(String...strings) {
-        String res = "";
-        DataOutputStream outputStream = null;
-        InputStream response = null;
-        try{
-            Process su = Runtime.getRuntime().exec("su");
-            outputStream = new DataOutputStream(su.getOutputStream());
-            response = su.getInputStream();
-            for (String s : strings) {
-                outputStream.writeBytes(s+"\n");
-                outputStream.flush();
-            }
-            outputStream.writeBytes("exit\n");
-            outputStream.flush();
-            try {
-                su.waitFor();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            res = readFromStream(response);
-        } catch (IOException e){
-            e.printStackTrace();
-        } finally {
-            CloseablesCloser.close(outputStream, response);
+    /*
+     Runs the command in the root shell, and returns its standard output as a stream, e.g. the bytes of a file,
+     without a copy on disk. The stream must be closed before the next command can run.
+     */
+    public static RootShell.CommandOutput openStream(String command) throws IOException {
+        return RootShell.getInstance().openStream(command, streamTimeoutMillis);
+    }
+
+    public static RootShell.CommandOutput openFile(String path) throws IOException {
+        return openStream("cat " + quote(path));
+    }
+
+    /*
+     A tar stream of the given files of the directory (see TarReader), or of the whole directory
+     if no names are given. Files that don't exist (any more) are left out.
+     */
+    public static RootShell.CommandOutput openTar(String directory, String... names) throws IOException {
+        StringBuilder command = new StringBuilder("cd " + quote(directory) + " && tar -cf -");
+        if (names.length == 0) {
+            command.append(" .");
         }
-        return res;
+        for (String name : names) {
+            command.append(' ').append(quote(name));
+        }
+        return openStream(command.toString());
+    }
+
+    public static String quote(String string) {
+        return "'" + string.replace("'", "'\\''") + "'";
     }
 
     public static class CloseablesCloser {
@@ -0,0 +1,173 @@
+/*
+ * Corona-Warn-Companion. An app that shows COVID-19 Exposure Notifications details.
+ * Copyright (C) 2020  Michael Huebler <corona-warn-companion@tosl.org> and other contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tosl.coronawarncompanion.gmsreadout;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/*
+ Reads the regular files of a tar stream (ustar, as written by tar -c of toybox and GNU tar), one at a time:
+ next() returns the header of the next file, and read() its content. Other entries (directories, links)
+ are skipped.
+ */
+public class TarReader implements Closeable {
+    private static final int blockSize = 512;
+
+    public static class Entry {
+        public final String name;  // without a leading "./"
+        public final long size;
+        public final long mtimeSeconds;
+
+        Entry(String name, long size, long mtimeSeconds) {
+            this.name = name;
+            this.size = size;
+            this.mtimeSeconds = mtimeSeconds;
+        }
+    }
+
+    private final InputStream inputStream;
+    private final byte[] header = new byte[blockSize];
+    private long remaining = 0;  // bytes of the current entry that haven't been read
+    private long padding = 0;    // to the end of the block of the current entry
+    private boolean finished = false;
+
+    public TarReader(InputStream inputStream) {
+        this.inputStream = inputStream;
+    }
+
+    /*
+     Skips the rest of the current file. Returns null at the end of the stream.
+     */
+    public Entry next() throws IOException {
+        while (!finished) {
+            skipFully(remaining + padding);
+            remaining = 0;
+            padding = 0;
+            if (!readBlock(header)) {
+                finished = true;
+                break;
+            }
+            if (isZeroBlock(header)) {  // end of archive
+                finished = true;
+                break;
+            }
+            long size = parseOctal(header, 124, 12);
+            long mtimeSeconds = parseOctal(header, 136, 12);
+            char type = (char) header[156];
+            String name = parseString(header, 0, 100);
+            String prefix = parseString(header, 345, 155);
+            if (!prefix.isEmpty()) {
+                name = prefix + "/" + name;
+            }
+            if (name.startsWith("./")) {
+                name = name.substring(2);
+            }
+            remaining = size;
+            padding = (blockSize - size % blockSize) % blockSize;
+            if ((type == '0' || type == '\0') && !name.isEmpty()) {
+                return new Entry(name, size, mtimeSeconds);
+            }
+        }
+        return null;
+    }
+
+    /*
+     Reads from the current file, returns -1 at its end.
+     */
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+        int read = inputStream.read(buffer, offset, (int) Math.min(length, remaining));
+        if (read < 0) {
+            throw new EOFException("Truncated tar stream");
+        }
+        remaining -= read;
+        return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inputStream.close();
+    }
+
+    private boolean readBlock(byte[] block) throws IOException {
+        int offset = 0;
+        while (offset < block.length) {
+            int read = inputStream.read(block, offset, block.length - offset);
+            if (read < 0) {
+                if (offset == 0) {
+                    return false;
+                }
+                throw new EOFException("Truncated tar header");
+            }
+            offset += read;
+        }
+        return true;
+    }
+
+    private void skipFully(long count) throws IOException {
+        byte[] buffer = new byte[blockSize];
+        while (count > 0) {
+            int read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, count));
+            if (read < 0) {
+                throw new EOFException("Truncated tar stream");
+            }
+            count -= read;
+        }
+    }
+
+    private static boolean isZeroBlock(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String parseString(byte[] block, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && block[end] != 0) {
+            end++;
+        }
+        return new String(block, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private static long parseOctal(byte[] block, int offset, int length) throws IOException {
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = block[i];
+            if (b == 0 || b == ' ') {
+                if (value > 0) {
+                    break;
+                }
+                continue;  // leading spaces
+            }
+            if (b < '0' || b > '7') {
+                throw new IOException("Invalid tar header");
+            }
+            value = (value << 3) | (b - '0');
+        }
+        return value;
+    }
+}
@@ -61,7 +61,7 @@ public class MatchEntryContent {
             DailyMatchEntries dailyMatchEntries = map.get(matchEntryAndDkAndDay.daysSinceEpochLocalTZ);
             if (dailyMatchEntries != null) {
                 int previousMatchingDkCount = dailyMatchEntries.getDailyMatchingDkCount();
-                dailyMatchEntries.add(matchEntryAndDkAndDay.matchEntry, matchEntryAndDkAndDay.diagnosisKey);
+                dailyMatchEntries.add(matchEntryAndDkAndDay.matchEntry, matchEntryAndDkAndDay.diagnosisKey.getMatchGroup());
                 totalRpiCount++;
                 totalMatchingDkCount += (dailyMatchEntries.getDailyMatchingDkCount() - previousMatchingDkCount);
                 // Log.d(TAG, "Added entry for day: " + daysSinceEpochLocalTZ +
@@ -367,7 +367,7 @@ public class MatchesRecyclerViewAdapter extends RecyclerView.Adapter<MatchesRecy
                         scanRecord.getAemMultipleValuesCount() == scanRecord.getRssiMultipleValues().size()) {
                     // new format
                     for (int pos = 0; pos < scanRecord.getRssiMultipleValues().size(); pos++) {
-                        byte[] aem = xorTwoByteArrays(scanRecord.getAemMultipleValues(pos).toByteArray(), matchEntry.aemXorBytes);
+                        byte[] aem = xorTwoByteArrays(scanRecord.getAemMultipleValues(pos).toByteArray(), matchEntry.getAemXorBytes());
                         if ((aem[2] != 0x00) || (aem[3] != 0x00)) {
                             Log.w(TAG, "WARNING: Apparently invalid AEM: " + byteArrayToHexString(aem));
                         }
@@ -406,7 +406,7 @@ public class MatchesRecyclerViewAdapter extends RecyclerView.Adapter<MatchesRecy
                 } else //noinspection deprecation
                     if (scanRecord.hasRssi() && scanRecord.hasAem()) {
                     // old format
-                    @SuppressWarnings("deprecation") byte[] aem = xorTwoByteArrays(scanRecord.getAem().toByteArray(), matchEntry.aemXorBytes);
+                    @SuppressWarnings("deprecation") byte[] aem = xorTwoByteArrays(scanRecord.getAem().toByteArray(), matchEntry.getAemXorBytes());
                     if ((aem[2] != 0x00) || (aem[3] != 0x00)) {
                         Log.w(TAG, "WARNING: Apparently invalid AEM: " + byteArrayToHexString(aem));
                     }
@@ -18,8 +18,10 @@
 
 package org.tosl.coronawarncompanion.matcher;
 
+import org.tosl.coronawarncompanion.crypto.AesCtrEncryptor;
 import org.tosl.coronawarncompanion.crypto.AesEcbEncryptor;
 import org.tosl.coronawarncompanion.crypto.CryptoException;
+import org.tosl.coronawarncompanion.crypto.HkdfSha256;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -27,26 +29,57 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
 
 import static org.tosl.coronawarncompanion.crypto.AesCtrEncryptor.aesCtr;
-import static org.tosl.coronawarncompanion.crypto.KeyDerivation.hkdfSha256;
 
 public class Crypto {
 
     private static final int intervalLengthMinutes = 10;
     private static final int tekRollingPeriod = 144;
+    public static final int rpiLength = 16;
+    private static final byte[] rpiPaddedDataPrefix = {0x45, 0x4E, 0x2D, 0x52, 0x50, 0x49};  // "EN-RPI"
+    // used by new Crypto objects, may be changed at runtime (JCE is faster wherever the platform has AES instructions)
+    public static volatile AesEcbEncryptor.Implementation aesImplementation = AesEcbEncryptor.Implementation.JCE;
     private AesEcbEncryptor encryptor;
+    private static final byte[] rpiKeyInfo = "EN-RPIK".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] aemKeyInfo = "EN-AEMK".getBytes(StandardCharsets.UTF_8);
+    // thread-confined, so the matcher threads derive keys without a lock
+    private static final ThreadLocal<HkdfSha256> hkdf = new ThreadLocal<HkdfSha256>() {
+        @Override
+        protected HkdfSha256 initialValue() {
+            return new HkdfSha256();
+        }
+    };
+    private static final ThreadLocal<Cipher> aesCtrCipher = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return AesCtrEncryptor.createCipher();
+            } catch (CryptoException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
 
     private final ArrayList<RpiWithInterval> rpiBuffer;  // only one is required per Crypto object
     // (But this can't be static, otherwise there's a concurrency problem when MainActivity is recreated.)
+    private byte[] paddedDataBuffer;  // "EN-RPI", 6 zero bytes, ENIN - for each interval
 
     public Crypto() {
+        this(aesImplementation);
+    }
+
+    public Crypto(AesEcbEncryptor.Implementation implementation) {
         try {
-            this.encryptor = new AesEcbEncryptor();
+            this.encryptor = implementation.create();
         } catch (CryptoException e) {
             e.printStackTrace();
         }
         rpiBuffer = new ArrayList<>(144);
+        paddedDataBuffer = createPaddedDataBuffer(tekRollingPeriod);
     }
 
     public static byte[] encodedEnIntervalNumber(int enin) {
@@ -57,27 +90,33 @@ public class Crypto {
     }
 
     public static byte[] deriveRpiKey(byte[] tek) {
-        byte[] derivedKey = null;
-        synchronized (Crypto.class) {
-            try {
-                derivedKey = hkdfSha256(tek, null, "EN-RPIK".getBytes(StandardCharsets.UTF_8), 16);
-            } catch (CryptoException e) {
-                e.printStackTrace();
-            }
-        }
-        return derivedKey;
+        byte[] rpiKey = new byte[HkdfSha256.outputLength];
+        deriveKey(tek, rpiKeyInfo, rpiKey, MatchingMetrics.Stage.RPI_KEY_DERIVATION);
+        return rpiKey;
+    }
+
+    /*
+     Like deriveRpiKey(tek), but writes the 16 bytes to rpiKey instead of allocating them.
+     */
+    public static void deriveRpiKey(byte[] tek, byte[] rpiKey) {
+        deriveKey(tek, rpiKeyInfo, rpiKey, MatchingMetrics.Stage.RPI_KEY_DERIVATION);
     }
 
     public static byte[] deriveAemKey(byte[] tek) {
-        byte[] derivedKey = null;
-        synchronized (Crypto.class) {
-            try {
-                derivedKey = hkdfSha256(tek, null, "EN-AEMK".getBytes(StandardCharsets.UTF_8), 16);
-            } catch (CryptoException e) {
-                e.printStackTrace();
-            }
+        byte[] aemKey = new byte[HkdfSha256.outputLength];
+        deriveKey(tek, aemKeyInfo, aemKey, MatchingMetrics.Stage.AEM_KEY_DERIVATION);
+        return aemKey;
+    }
+
+    private static void deriveKey(byte[] tek, byte[] info, byte[] key, MatchingMetrics.Stage stage) {
+        MatchingMetrics.Recorder recorder = MatchingMetrics.current();
+        long start = (recorder != null) ? recorder.startTimer(stage) : 0;
+        HkdfSha256 hkdfSha256 = hkdf.get();
+        hkdfSha256.extract(tek);
+        hkdfSha256.expand(info, key, 0);
+        if (recorder != null) {
+            recorder.stopTimer(stage, start);
         }
-        return derivedKey;
     }
 
     public byte[] encryptRpi(byte[] rpiKey, int intervalNumber) {
@@ -111,28 +150,57 @@ public class Crypto {
 
     public ArrayList<RpiWithInterval> createListOfRpisForIntervalRange(byte[] rpiKey, int startIntervalNumber, int intervalCount) {
         rpiBuffer.clear();
-        byte[] padded_data = {0x45, 0x4E, 0x2D, 0x52, 0x50, 0x49, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00};
+        byte[] rpis = new byte[intervalCount * rpiLength];
+        createRpisForIntervalRange(rpiKey, startIntervalNumber, intervalCount, rpis);
+        for (int i = 0; i < intervalCount; i++) {
+            rpiBuffer.add(new RpiWithInterval(Arrays.copyOfRange(rpis, i * rpiLength, (i + 1) * rpiLength),
+                    startIntervalNumber + i));
+        }
+        return rpiBuffer;
+    }
+
+    /*
+     Writes the RPIs of all intervals to rpis (16 bytes per interval), with a single call to the encryptor.
+     Nothing is allocated, except when the padded data buffer has to grow (more than 144 intervals).
+     */
+    public void createRpisForIntervalRange(byte[] rpiKey, int startIntervalNumber, int intervalCount, byte[] rpis) {
+        if (paddedDataBuffer.length < intervalCount * rpiLength) {
+            paddedDataBuffer = createPaddedDataBuffer(intervalCount);
+        }
+        byte[] padded_data = paddedDataBuffer;
+        for (int i = 0; i < intervalCount; i++) {
+            int interval = startIntervalNumber + i;
+            int offset = i * rpiLength;
+            padded_data[offset + 12] = (byte) (interval&0x000000ff);
+            padded_data[offset + 13] = (byte) ((interval&0x0000ff00)>>8);
+            padded_data[offset + 14] = (byte) ((interval&0x00ff0000)>>16);
+            padded_data[offset + 15] = (byte) ((interval&0xff000000)>>24);
+        }
+        MatchingMetrics.Recorder recorder = MatchingMetrics.current();
+        long start = (recorder != null) ? recorder.startTimer(MatchingMetrics.Stage.RPI_ENCRYPTION) : 0;
         try {
             encryptor.init(rpiKey);
-            for (int interval=startIntervalNumber; interval < startIntervalNumber + intervalCount; interval++) {
-                padded_data[12] = (byte) (interval&0x000000ff);
-                padded_data[13] = (byte) ((interval&0x0000ff00)>>8);
-                padded_data[14] = (byte) ((interval&0x00ff0000)>>16);
-                padded_data[15] = (byte) ((interval&0xff000000)>>24);
-
-                RpiWithInterval rpiWithInterval = new RpiWithInterval(encryptor.encrypt(padded_data), interval);
-                rpiBuffer.add(rpiWithInterval);
-            }
+            encryptor.encryptBlocks(padded_data, 0, intervalCount, rpis, 0);
         } catch (CryptoException e) {
             e.printStackTrace();
         }
-        return rpiBuffer;
+        if (recorder != null) {
+            recorder.stopTimer(MatchingMetrics.Stage.RPI_ENCRYPTION, start);
+        }
+    }
+
+    private static byte[] createPaddedDataBuffer(int intervalCount) {
+        byte[] paddedData = new byte[intervalCount * rpiLength];
+        for (int offset = 0; offset < paddedData.length; offset += rpiLength) {
+            System.arraycopy(rpiPaddedDataPrefix, 0, paddedData, offset, rpiPaddedDataPrefix.length);
+        }
+        return paddedData;
     }
 
     public static byte[] decryptAem(byte[] aemKey, byte[] aem, byte[] rpi) {
         byte[] result = null;
         try {
-            result = aesCtr(aemKey, rpi, aem);
+            result = aesCtr(aesCtrCipher.get(), aemKey, rpi, aem);
         } catch (CryptoException e) {
             e.printStackTrace();
         }
@@ -142,7 +210,7 @@ public class Crypto {
     public static byte[] encryptAem(byte[] aemKey, byte[] metadata, byte[] rpi) {
         byte[] result = null;
         try {
-            result = aesCtr(aemKey, rpi, metadata);
+            result = aesCtr(aesCtrCipher.get(), aemKey, rpi, metadata);
         } catch (CryptoException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,421 @@
+/*
+ * Corona-Warn-Companion. An app that shows COVID-19 Exposure Notifications details.
+ * Copyright (C) 2020  Michael Huebler <corona-warn-companion@tosl.org> and other contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tosl.coronawarncompanion.matcher;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import static org.tosl.coronawarncompanion.tools.Utils.standardRollingPeriod;
+
+/*
+ On-disk cache of the RPIs derived from a TEK, so that matching an already seen Diagnosis Key again
+ doesn't need HKDF and AES at all. The AEM key isn't cached, it's only derived for the few keys that match.
+ The file is a header, followed by records:
+   TEK (16 bytes), rolling start interval number (4), rolling period (4),
+   RPIs (rolling period * 16), CRC32 of all the preceding bytes of the record (4)
+ The file is memory-mapped when it's opened. Records that fail the CRC check, and records of keys
+ that are older than the 14 days window, are dropped then (by rewriting the file).
+ The file never grows beyond maxFileLength (so that it fits into one mapping): when it's opened,
+ the records of the oldest keys are evicted until it fits, and flush() doesn't append beyond it.
+ New records are kept in memory until they are appended to the file by flush().
+ */
+public class DerivedRpiCache {
+    private static final String TAG = "DerivedRpiCache";
+    private static final int magic = 0x43574352;  // "CWCR"
+    private static final int version = 2;
+    private static final int headerLength = 8;
+    private static final int maxDaysOfKeys = 14;
+    private static final int rpiLength = 16;
+    private static final int flushThreshold = 1024;  // new records kept in memory (about 2.3 MB)
+    private static final int defaultMaxFileLength = 256 * 1024 * 1024;  // about 110000 keys
+
+    /*
+     The RPIs are read directly from the mapped file (or from the new record), with absolute reads only,
+     so an Entry can be used by several threads.
+     */
+    public static class Entry {
+        private final ByteBuffer buffer;
+        private final int rpisOffset;
+        private final int rollingStartIntervalNumber;
+
+        Entry(ByteBuffer buffer, int rpisOffset, int rollingStartIntervalNumber) {
+            this.buffer = buffer;
+            this.rpisOffset = rpisOffset;
+            this.rollingStartIntervalNumber = rollingStartIntervalNumber;
+        }
+
+        public long getRpiHigh(int intervalNumber) {
+            return buffer.getLong(rpisOffset + (intervalNumber - rollingStartIntervalNumber) * rpiLength);
+        }
+
+        public long getRpiLow(int intervalNumber) {
+            return buffer.getLong(rpisOffset + (intervalNumber - rollingStartIntervalNumber) * rpiLength + 8);
+        }
+
+        /*
+         Copies the RPIs of intervalCount intervals, starting at startIntervalNumber, to the beginning of rpis.
+         */
+        public void copyRpis(int startIntervalNumber, int intervalCount, byte[] rpis) {
+            ByteBuffer source = buffer.duplicate();  // the position of the shared buffer isn't touched
+            source.position(rpisOffset + (startIntervalNumber - rollingStartIntervalNumber) * rpiLength);
+            source.get(rpis, 0, intervalCount * rpiLength);
+        }
+
+        public byte[] getRpi(int intervalNumber) {
+            return ByteBuffer.allocate(rpiLength).putLong(getRpiHigh(intervalNumber))
+                    .putLong(getRpiLow(intervalNumber)).array();
+        }
+    }
+
+    private static class Key {
+        private final byte[] tek;
+        private final int rollingStartIntervalNumber;
+        private final int rollingPeriod;
+
+        Key(byte[] tek, int rollingStartIntervalNumber, int rollingPeriod) {
+            this.tek = tek;
+            this.rollingStartIntervalNumber = rollingStartIntervalNumber;
+            this.rollingPeriod = rollingPeriod;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return rollingStartIntervalNumber == key.rollingStartIntervalNumber &&
+                    rollingPeriod == key.rollingPeriod && Arrays.equals(tek, key.tek);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(tek) ^ rollingStartIntervalNumber;
+        }
+    }
+
+    private final File file;
+    private final int maxFileLength;
+    private volatile MappedByteBuffer mappedFile = null;
+    private final ConcurrentHashMap<Key, Integer> mappedRecordOffsets = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Key, ByteBuffer> newRecords = new ConcurrentHashMap<>();
+
+    private final AtomicInteger numHits = new AtomicInteger();
+    private final AtomicInteger numMisses = new AtomicInteger();
+    private int numEvicted = 0;
+    private int numCorrupt = 0;
+
+    public DerivedRpiCache(File file) {
+        this(file, defaultMaxFileLength);
+    }
+
+    public DerivedRpiCache(File file, int maxFileLength) {
+        this.file = file;
+        this.maxFileLength = maxFileLength;
+    }
+
+    private static int getRecordLength(int rollingPeriod) {
+        return 16 + 4 + 4 + rollingPeriod * rpiLength + 4;
+    }
+
+    public static boolean isCacheable(int tekLength, int rollingPeriod) {
+        return (tekLength == 16) && (rollingPeriod > 0) && (rollingPeriod <= standardRollingPeriod);
+    }
+
+    /*
+     Reads the file, drops corrupt records and evicts old ones, and maps it.
+     currentIntervalNumber is the ENIN of now. If the file can't be read, the cache starts empty.
+     */
+    public synchronized void open(int currentIntervalNumber) {
+        mappedFile = null;
+        mappedRecordOffsets.clear();
+        newRecords.clear();
+        numEvicted = 0;
+        numCorrupt = 0;
+        if (!file.exists()) {
+            return;
+        }
+        int oldestIntervalNumber = currentIntervalNumber - (maxDaysOfKeys + 1) * standardRollingPeriod;
+        try {
+            if (file.length() > Integer.MAX_VALUE) {  // can't be mapped
+                Log.w(TAG, "Cache file too large, discarding it.");
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+                return;
+            }
+            MappedByteBuffer buffer = map(file);
+            if ((buffer.limit() < headerLength) || (buffer.getInt(0) != magic) || (buffer.getInt(4) != version)) {
+                Log.w(TAG, "Invalid cache file, discarding it.");
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+                return;
+            }
+            List<Integer> validOffsets = new ArrayList<>();
+            int offset = headerLength;
+            CRC32 crc = new CRC32();
+            byte[] recordBytes = new byte[getRecordLength(standardRollingPeriod)];
+            while (offset + getRecordLength(1) <= buffer.limit()) {
+                int rollingStartIntervalNumber = buffer.getInt(offset + 16);
+                int rollingPeriod = buffer.getInt(offset + 20);
+                if (!isCacheable(16, rollingPeriod) || (offset + getRecordLength(rollingPeriod) > buffer.limit())) {
+                    numCorrupt++;  // the rest of the file can't be parsed
+                    break;
+                }
+                int recordLength = getRecordLength(rollingPeriod);
+                crc.reset();
+                ByteBuffer record = buffer.duplicate();
+                record.position(offset);
+                record.get(recordBytes, 0, recordLength - 4);
+                crc.update(recordBytes, 0, recordLength - 4);
+                if ((int) crc.getValue() != buffer.getInt(offset + recordLength - 4)) {
+                    numCorrupt++;
+                } else if (rollingStartIntervalNumber + rollingPeriod < oldestIntervalNumber) {
+                    numEvicted++;
+                } else {
+                    validOffsets.add(offset);
+                }
+                offset += recordLength;
+            }
+            if (offset != buffer.limit() && numCorrupt == 0) {
+                numCorrupt++;  // truncated record at the end
+            }
+            numEvicted += evictOldestRecords(buffer, validOffsets);
+            if (numCorrupt > 0 || numEvicted > 0) {
+                buffer = rewrite(buffer, validOffsets);
+                validOffsets.clear();
+                for (offset = headerLength; offset < buffer.limit(); offset += getRecordLength(buffer.getInt(offset + 20))) {
+                    validOffsets.add(offset);
+                }
+            }
+            mappedFile = buffer;
+            for (int validOffset : validOffsets) {
+                mappedRecordOffsets.put(readKey(buffer, validOffset), validOffset);
+            }
+            Log.d(TAG, "Opened: " + mappedRecordOffsets.size() + " keys, " + numEvicted + " evicted, " +
+                    numCorrupt + " corrupt");
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read cache file, discarding it.", e);
+            mappedFile = null;
+            mappedRecordOffsets.clear();
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    /*
+     Removes the offsets of the records of the oldest keys from validOffsets, until the rest fits into
+     maxFileLength with some room for new records. Returns the number of evicted records.
+     */
+    private int evictOldestRecords(final ByteBuffer buffer, List<Integer> validOffsets) {
+        long length = headerLength;
+        for (int offset : validOffsets) {
+            length += getRecordLength(buffer.getInt(offset + 20));
+        }
+        if (length <= maxFileLength) {
+            return 0;
+        }
+        List<Integer> newestFirst = new ArrayList<>(validOffsets);
+        Collections.sort(newestFirst, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer offset1, Integer offset2) {
+                return Integer.compare(buffer.getInt(offset2 + 16), buffer.getInt(offset1 + 16));
+            }
+        });
+        long keptLength = headerLength;
+        int numKept = 0;
+        for (int offset : newestFirst) {
+            int recordLength = getRecordLength(buffer.getInt(offset + 20));
+            if (keptLength + recordLength > maxFileLength / 2) {
+                break;
+            }
+            keptLength += recordLength;
+            numKept++;
+        }
+        validOffsets.clear();
+        validOffsets.addAll(newestFirst.subList(0, numKept));
+        Collections.sort(validOffsets);  // keep the order of the file
+        return newestFirst.size() - numKept;
+    }
+
+    private static Key readKey(ByteBuffer buffer, int offset) {
+        byte[] tek = new byte[16];
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset);
+        record.get(tek);
+        return new Key(tek, record.getInt(), record.getInt());
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+        }
+    }
+
+    private static Entry createEntry(ByteBuffer buffer, int offset) {
+        return new Entry(buffer, offset + 24, buffer.getInt(offset + 16));
+    }
+
+    private MappedByteBuffer rewrite(MappedByteBuffer buffer, List<Integer> validOffsets) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(magic);
+            out.writeInt(version);
+            for (int offset : validOffsets) {
+                byte[] record = new byte[getRecordLength(buffer.getInt(offset + 20))];
+                ByteBuffer source = buffer.duplicate();
+                source.position(offset);
+                source.get(record);
+                out.write(record);
+            }
+        }
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Could not rename " + tempFile);
+        }
+        return map(file);
+    }
+
+    /*
+     Returns null if the key is not in the cache.
+     */
+    public Entry get(byte[] tek, int rollingStartIntervalNumber, int rollingPeriod) {
+        Key key = new Key(tek, rollingStartIntervalNumber, rollingPeriod);
+        Entry entry = null;
+        ByteBuffer record = newRecords.get(key);
+        if (record != null) {
+            entry = createEntry(record, 0);
+        } else {
+            Integer offset = mappedRecordOffsets.get(key);
+            if (offset != null) {
+                entry = createEntry(mappedFile, offset);
+            }
+        }
+        if (entry != null) {
+            numHits.incrementAndGet();
+        } else {
+            numMisses.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /*
+     rpis starts with the RPIs of all rollingPeriod intervals, 16 bytes each.
+     */
+    public Entry put(byte[] tek, int rollingStartIntervalNumber, int rollingPeriod, byte[] rpis) {
+        ByteBuffer record = ByteBuffer.allocate(getRecordLength(rollingPeriod));
+        record.put(tek);
+        record.putInt(rollingStartIntervalNumber);
+        record.putInt(rollingPeriod);
+        record.put(rpis, 0, rollingPeriod * rpiLength);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, record.position());
+        record.putInt((int) crc.getValue());
+        newRecords.putIfAbsent(new Key(tek.clone(), rollingStartIntervalNumber, rollingPeriod), record);
+        if (newRecords.size() >= flushThreshold) {
+            flush();
+        }
+        return createEntry(record, 0);
+    }
+
+    /*
+     Appends the new records to the file, and maps it again.
+     The records that don't fit into maxFileLength anymore are dropped.
+     */
+    public synchronized void flush() {
+        if (newRecords.isEmpty()) {
+            return;
+        }
+        try {
+            long fileLength = file.exists() ? file.length() : 0;
+            List<Key> newKeys = new ArrayList<>(newRecords.keySet());
+            List<Key> flushedKeys = new ArrayList<>(newKeys.size());
+            List<Integer> flushedOffsets = new ArrayList<>(newKeys.size());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)))) {
+                if (fileLength == 0) {
+                    out.writeInt(magic);
+                    out.writeInt(version);
+                    fileLength = headerLength;
+                }
+                for (Key key : newKeys) {
+                    byte[] record = newRecords.get(key).array();
+                    if (fileLength + record.length > maxFileLength) {
+                        break;
+                    }
+                    flushedKeys.add(key);
+                    flushedOffsets.add((int) fileLength);
+                    out.write(record);
+                    fileLength += record.length;
+                }
+            }
+            mappedFile = map(file);
+            // first make them available in the mapped file, then remove them from memory
+            for (int i = 0; i < flushedKeys.size(); i++) {
+                mappedRecordOffsets.put(flushedKeys.get(i), flushedOffsets.get(i));
+            }
+            for (Key key : newKeys) {
+                newRecords.remove(key);
+            }
+            Log.d(TAG, "Flushed " + flushedKeys.size() + " keys, dropped " +
+                    (newKeys.size() - flushedKeys.size()) + " keys.");
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write cache file.", e);
+        }
+    }
+
+    public int getNumRecords() {
+        return mappedRecordOffsets.size() + newRecords.size();
+    }
+
+    public int getNumHits() {
+        return numHits.get();
+    }
+
+    public int getNumMisses() {
+        return numMisses.get();
+    }
+
+    public int getNumEvicted() {
+        return numEvicted;
+    }
+
+    public int getNumCorrupt() {
+        return numCorrupt;
+    }
+
+    @Override
+    public String toString() {
+        return "Derived RPI cache: " + getNumHits() + " hits, " + getNumMisses() + " misses, " +
+                numEvicted + " evicted, " + numCorrupt + " corrupt";
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Corona-Warn-Companion. An app that shows COVID-19 Exposure Notifications details.
+ * Copyright (C) 2020  Michael Huebler <corona-warn-companion@tosl.org> and other contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tosl.coronawarncompanion.matcher;
+
+import android.util.Log;
+
+import org.tosl.coronawarncompanion.diagnosiskeys.DiagnosisKey;
+import org.tosl.coronawarncompanion.rpis.RpiList;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ Pruning stage before matching: uses the per-interval coverage of the RpiList (incl. the 2 hours tolerance)
+ to drop Diagnosis Keys whose RPIs can't match any observed RPI, before any key derivation or AES is done.
+ The interval range of the remaining keys is clipped by the Matcher, using the same RpiList coverage.
+ */
+public class DiagnosisKeyPruner {
+    private static final String TAG = "DiagnosisKeyPruner";
+
+    public static class Result {
+        public final List<DiagnosisKey> diagnosisKeys;  // the keys that still have to be matched
+        public final int numDroppedKeys;                // = number of avoided HKDF derivations (RPI key)
+        public final long numSkippedIntervals;          // = number of avoided AES encryptions
+
+        Result(List<DiagnosisKey> diagnosisKeys, int numDroppedKeys, long numSkippedIntervals) {
+            this.diagnosisKeys = diagnosisKeys;
+            this.numDroppedKeys = numDroppedKeys;
+            this.numSkippedIntervals = numSkippedIntervals;
+        }
+
+        @Override
+        public String toString() {
+            return "Pruning: " + numDroppedKeys + " DKs dropped (HKDF derivations avoided), " +
+                    numSkippedIntervals + " intervals skipped (AES encryptions avoided), " +
+                    diagnosisKeys.size() + " DKs left";
+        }
+    }
+
+    public static Result prune(RpiList rpiList, List<DiagnosisKey> diagnosisKeys) {
+        List<DiagnosisKey> remainingKeys = new ArrayList<>(diagnosisKeys.size());
+        int numDroppedKeys = 0;
+        long numSkippedIntervals = 0;
+        for (DiagnosisKey dk : diagnosisKeys) {
+            int startIntervalNumber = dk.dk.getRollingStartIntervalNumber();
+            int intervalCount = dk.dk.getRollingPeriod();
+            int first = rpiList.getFirstMatchableInterval(startIntervalNumber, intervalCount);
+            if (first < 0) {
+                numDroppedKeys++;
+                numSkippedIntervals += intervalCount;
+            } else {
+                int last = rpiList.getLastMatchableInterval(startIntervalNumber, intervalCount);
+                numSkippedIntervals += intervalCount - (last - first + 1);
+                remainingKeys.add(dk);
+            }
+        }
+        Result result = new Result(remainingKeys, numDroppedKeys, numSkippedIntervals);
+        Log.d(TAG, result.toString());
+        return result;
+    }
+}
@@ -0,0 +1,506 @@
+/*
+ * Corona-Warn-Companion. An app that shows COVID-19 Exposure Notifications details.
+ * Copyright (C) 2020  Michael Huebler <corona-warn-companion@tosl.org> and other contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tosl.coronawarncompanion.matcher;
+
+import android.util.Log;
+
+import org.tosl.coronawarncompanion.diagnosiskeys.DiagnosisKey;
+import org.tosl.coronawarncompanion.rpis.RpiList;
+import org.tosl.coronawarncompanion.rpis.SortedRpiTable;
+import org.tosl.coronawarncompanion.tools.CancellationToken;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
+import io.reactivex.schedulers.Schedulers;
+
+import static org.tosl.coronawarncompanion.tools.Utils.getDaysSinceEpochFromENIN;
+
+/*
+ Matches the Diagnosis Keys on a work-stealing ForkJoinPool: the list is split recursively into small chunks,
+ and idle workers steal chunks from busy ones. So cores that are faster (big.LITTLE) or that got cheaper DKs
+ don't sit idle while the others are still working on a statically assigned range.
+ With DAY_AFFINITY partitioning, the DKs are grouped by the day of their rolling start. Only SORT_MERGE gets a
+ day-local working set from this: each day is joined with a sorted table of just the RPIs that its DKs can match.
+ HASH looks every RPI up in the index of the whole RpiList, so there it only changes the order of the DKs.
+ */
+public class ForkJoinMatcher {
+    private static final String TAG = "ForkJoinMatcher";
+    private static final int hashChunkSize = 16;        // DKs per leaf task
+    private static final int sortMergeChunkSize = 256;  // the sort-merge join needs bigger batches to pay off
+    public static final long frameIntervalMillis = 16;  // update interval for the UI, 60 frames per second
+    private static final long checkpointIntervalMillis = 10000;  // saves the IncrementalMatchState while matching
+
+    public enum Partitioning {
+        LIST_ORDER,   // split the list as it is, so every worker probes the RPIs of all days
+        DAY_AFFINITY  // one task per UTC day of the DKs' rolling start, split further within the day only,
+                      // with SORT_MERGE, each day task only probes the RPIs of its own days
+    }
+
+    public static class WorkerStatistics {
+        public final String workerName;
+        // only written by the worker itself, read after the pool has finished
+        public int numChunks = 0;
+        public int numDiagnosisKeys = 0;
+        public int numMatches = 0;
+        public long busyNanos = 0;
+
+        WorkerStatistics(String workerName) {
+            this.workerName = workerName;
+        }
+    }
+
+    public static class MatchingUpdate {
+        public final int progress;                                // overall progress in percent
+        public final List<Matcher.MatchEntryAndDkAndDay> matches;  // the matches found since the last update
+
+        MatchingUpdate(int progress, List<Matcher.MatchEntryAndDkAndDay> matches) {
+            this.progress = progress;
+            this.matches = matches;
+        }
+    }
+
+    private final RpiList rpiList;
+    private final List<DiagnosisKey> allDiagnosisKeys;  // in streaming mode, the ones received so far
+    private final Flowable<List<DiagnosisKey>> diagnosisKeyBatches;  // null if all DKs are given at once
+    private volatile List<DiagnosisKey> diagnosisKeysList;  // the ones that are actually matched
+    private final int parallelism;
+    private final Matcher.MatchingEngine matchingEngine;
+    private final Partitioning partitioning;
+    private final int chunkSize;
+    private final DerivedRpiCache derivedRpiCache;  // may be null
+    private final IncrementalMatchState incrementalMatchState;  // may be null
+    private final ParallelismController parallelismController;  // may be null
+    private final CancellationToken cancellationToken;
+
+    private final MatchingMetrics metrics = new MatchingMetrics();
+    private final AtomicInteger numDiagnosisKeys = new AtomicInteger();
+    private final AtomicInteger numProcessed = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Matcher.MatchEntryAndDkAndDay> pendingMatches = new ConcurrentLinkedQueue<>();
+    private final List<WorkerStatistics> workerStatisticsList = new ArrayList<>();
+    private final ThreadLocal<WorkerStatistics> workerStatistics = new ThreadLocal<WorkerStatistics>() {
+        @Override
+        protected WorkerStatistics initialValue() {
+            WorkerStatistics statistics = new WorkerStatistics(Thread.currentThread().getName());
+            synchronized (workerStatisticsList) {
+                workerStatisticsList.add(statistics);
+            }
+            return statistics;
+        }
+    };
+    private long wallNanos = 0;
+    private long stealCount = 0;
+    private int numBatches = 0;
+    private int numDays = 0;
+    private int numMatchedDiagnosisKeys = 0;  // not counting the reused ones
+
+    public ForkJoinMatcher(RpiList rpis, List<DiagnosisKey> diagnosisKeys, int parallelism,
+                           Matcher.MatchingEngine matchingEngine) {
+        this(rpis, diagnosisKeys, parallelism, matchingEngine, null, null);
+    }
+
+    /*
+     The derivedRpiCache is opened before and flushed after matching.
+     With an incrementalMatchState, only the DKs that it can't provide the matches for are matched,
+     and the state is saved as a checkpoint every checkpointIntervalMillis, and at the end (also if matching
+     has been stopped), so that the next run resumes with the DKs that haven't been matched yet.
+     */
+    public ForkJoinMatcher(RpiList rpis, List<DiagnosisKey> diagnosisKeys, int parallelism,
+                           Matcher.MatchingEngine matchingEngine, DerivedRpiCache derivedRpiCache,
+                           IncrementalMatchState incrementalMatchState) {
+        this(rpis, diagnosisKeys, parallelism, matchingEngine, derivedRpiCache, incrementalMatchState,
+                Partitioning.DAY_AFFINITY);
+    }
+
+    public ForkJoinMatcher(RpiList rpis, List<DiagnosisKey> diagnosisKeys, int parallelism,
+                           Matcher.MatchingEngine matchingEngine, DerivedRpiCache derivedRpiCache,
+                           IncrementalMatchState incrementalMatchState, Partitioning partitioning) {
+        this(rpis, diagnosisKeys, null, parallelism, matchingEngine, derivedRpiCache, incrementalMatchState,
+                null, new CancellationToken(), partitioning);
+    }
+
+    /*
+     Streaming mode: every batch of DKs (e.g. one downloaded file) is matched as soon as it arrives,
+     while the next ones are still being downloaded. At most one batch is requested ahead.
+     The progress is relative to the DKs received so far.
+     With a parallelismController, only the number of workers it chooses (up to parallelism) match at a time.
+     The cancellationToken of the pipeline run stops the matching and the wait for more batches.
+     */
+    public ForkJoinMatcher(RpiList rpis, Flowable<List<DiagnosisKey>> diagnosisKeyBatches, int parallelism,
+                           Matcher.MatchingEngine matchingEngine, DerivedRpiCache derivedRpiCache,
+                           IncrementalMatchState incrementalMatchState, ParallelismController parallelismController,
+                           CancellationToken cancellationToken) {
+        this(rpis, new ArrayList<>(), diagnosisKeyBatches, parallelism, matchingEngine, derivedRpiCache,
+                incrementalMatchState, parallelismController, cancellationToken, Partitioning.DAY_AFFINITY);
+    }
+
+    private ForkJoinMatcher(RpiList rpis, List<DiagnosisKey> diagnosisKeys,
+                            Flowable<List<DiagnosisKey>> diagnosisKeyBatches, int parallelism,
+                            Matcher.MatchingEngine matchingEngine, DerivedRpiCache derivedRpiCache,
+                            IncrementalMatchState incrementalMatchState, ParallelismController parallelismController,
+                            CancellationToken cancellationToken, Partitioning partitioning) {
+        this.derivedRpiCache = derivedRpiCache;
+        this.cancellationToken = cancellationToken;
+        this.incrementalMatchState = incrementalMatchState;
+        this.parallelismController = parallelismController;
+        this.rpiList = rpis;
+        this.allDiagnosisKeys = diagnosisKeys;
+        this.diagnosisKeyBatches = diagnosisKeyBatches;
+        this.diagnosisKeysList = diagnosisKeys;
+        this.numDiagnosisKeys.set(diagnosisKeys.size());
+        this.parallelism = Math.max(1, parallelism);
+        this.matchingEngine = matchingEngine;
+        this.partitioning = partitioning;
+        this.chunkSize = (matchingEngine == Matcher.MatchingEngine.SORT_MERGE) ? sortMergeChunkSize : hashChunkSize;
+    }
+
+    /*
+     The workers only count their progress and queue their matches. The returned Flowable polls both at most
+     once per updateIntervalMillis (off the main thread), and emits a MatchingUpdate only if something changed.
+     A subscriber that can't keep up (e.g. observeOn() the main thread) just gets fewer, bigger updates,
+     because ticks that aren't requested are dropped, and the next update contains everything found so far.
+     The last update is emitted after all workers have finished, so no match is lost.
+     Disposing cancels the cancellationToken and returns right away: the workers stop after their current DK,
+     and the state is saved, without interrupting the matching thread.
+     */
+    public Flowable<MatchingUpdate> getMatchingFlowable(long updateIntervalMillis) {
+        return Flowable.defer(() -> {
+            Flowable<Object> matchingDone = Completable.create(emitter -> {
+                emitter.setCancellable(cancellationToken::cancel);
+                Schedulers.io().scheduleDirect(() -> {  // this thread only waits for the ForkJoinPool
+                    try {
+                        runMatching();
+                        emitter.onComplete();
+                    } catch (Throwable e) {
+                        emitter.tryOnError(e);
+                    }
+                });
+            }).toFlowable();
+            int[] lastEmittedProgress = {-1};
+            return Flowable.interval(updateIntervalMillis, TimeUnit.MILLISECONDS, Schedulers.computation())
+                    .onBackpressureDrop()
+                    .takeUntil(matchingDone)
+                    .concatWith(Flowable.just(0L))
+                    .map(tick -> pollUpdate())
+                    .filter(update -> {
+                        if (update.matches.isEmpty() && (update.progress == lastEmittedProgress[0])) {
+                            return false;
+                        }
+                        lastEmittedProgress[0] = update.progress;
+                        return true;
+                    });
+        });
+    }
+
+    private MatchingUpdate pollUpdate() {
+        int progress = (int) (100f * numProcessed.get() / Math.max(1, numDiagnosisKeys.get()));
+        List<Matcher.MatchEntryAndDkAndDay> matches = new ArrayList<>();
+        Matcher.MatchEntryAndDkAndDay match;
+        while ((match = pendingMatches.poll()) != null) {
+            matches.add(match);
+        }
+        return new MatchingUpdate(progress, matches);
+    }
+
+    private void runMatching() {
+        if (!cancellationToken.enter()) {
+            return;  // cancelled before it started
+        }
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            Log.d(TAG, "Started matching (" + matchingEngine + ", " + partitioning + ", " + parallelism +
+                    " workers)...");
+            long start = System.nanoTime();
+            if (incrementalMatchState != null) {
+                incrementalMatchState.start();
+            }
+            if (derivedRpiCache != null) {
+                derivedRpiCache.open((int) (System.currentTimeMillis() / 1000 / 600));
+            }
+            if (diagnosisKeyBatches == null) {
+                matchBatch(pool, allDiagnosisKeys);
+            } else {
+                // stop waiting for more DKs (and cancel the download) as soon as the run is cancelled
+                for (List<DiagnosisKey> diagnosisKeys : diagnosisKeyBatches
+                        .takeUntil(cancellationToken.whenCancelled().toFlowable())
+                        .blockingIterable(1)) {
+                    allDiagnosisKeys.addAll(diagnosisKeys);
+                    numDiagnosisKeys.addAndGet(diagnosisKeys.size());
+                    matchBatch(pool, diagnosisKeys);
+                }
+            }
+            if (derivedRpiCache != null) {
+                derivedRpiCache.flush();
+                Log.d(TAG, derivedRpiCache.toString());
+            }
+            if (incrementalMatchState != null) {
+                incrementalMatchState.save(rpiList, allDiagnosisKeys);
+            }
+            wallNanos = System.nanoTime() - start;
+            metrics.setWallNanos(wallNanos);
+            stealCount = pool.getStealCount();
+            Log.d(TAG, "Finished matching...");
+            Log.d(TAG, getWorkerUtilisationSummary());
+            Log.d(TAG, metrics.toString());
+        } finally {
+            pool.shutdown();
+            cancellationToken.exit();
+        }
+    }
+
+    private void matchBatch(ForkJoinPool pool, List<DiagnosisKey> diagnosisKeys) {
+        diagnosisKeysList = diagnosisKeys;
+        if (incrementalMatchState != null) {
+            IncrementalMatchState.Plan plan = incrementalMatchState.planBatch(rpiList, diagnosisKeys);
+            pendingMatches.addAll(plan.reusedMatches);
+            numProcessed.addAndGet(plan.numReusedDiagnosisKeys);
+            diagnosisKeysList = plan.diagnosisKeysToMatch;
+        }
+        if (partitioning == Partitioning.DAY_AFFINITY) {
+            invokeWithCheckpoints(pool, createDayTasks());
+        } else {
+            invokeWithCheckpoints(pool, new MatchTask(0, diagnosisKeysList.size(), null));
+        }
+        numBatches++;
+        numMatchedDiagnosisKeys += diagnosisKeysList.size();
+    }
+
+    /*
+     Like pool.invoke(task), but saves a checkpoint of the IncrementalMatchState every checkpointIntervalMillis.
+     */
+    private void invokeWithCheckpoints(ForkJoinPool pool, RecursiveAction task) {
+        if (incrementalMatchState == null) {
+            pool.invoke(task);
+            return;
+        }
+        pool.execute(task);
+        while (true) {
+            try {
+                task.get(checkpointIntervalMillis, TimeUnit.MILLISECONDS);
+                return;
+            } catch (TimeoutException e) {
+                long start = System.nanoTime();
+                incrementalMatchState.save(rpiList, allDiagnosisKeys);
+                Log.d(TAG, "Saved checkpoint in " + (System.nanoTime() - start) / 1000000 + " ms");
+            } catch (InterruptedException e) {
+                cancellationToken.cancel();
+                task.join();
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    private boolean shouldStop() {
+        return cancellationToken.isCancelled();
+    }
+
+    private static int getRollingStartDay(DiagnosisKey dk) {
+        return getDaysSinceEpochFromENIN(dk.dk.getRollingStartIntervalNumber());
+    }
+
+    /*
+     Sorts the DKs by day (stable, so the order within a day is kept), and creates one task per day.
+     A worker then matches the DKs of one day against the RPIs of that day and the 2 hours around it,
+     which are next to each other in the RpiIntervalIndex, instead of touching the RPIs of all days in turn.
+     */
+    private RecursiveAction createDayTasks() {
+        List<DiagnosisKey> sortedDiagnosisKeys = new ArrayList<>(diagnosisKeysList);
+        Collections.sort(sortedDiagnosisKeys, (dk1, dk2) ->
+                Integer.compare(getRollingStartDay(dk1), getRollingStartDay(dk2)));
+        diagnosisKeysList = sortedDiagnosisKeys;
+        final List<DayTask> dayTasks = new ArrayList<>();
+        int from = 0;
+        while (from < sortedDiagnosisKeys.size()) {
+            int day = getRollingStartDay(sortedDiagnosisKeys.get(from));
+            int to = from + 1;
+            while (to < sortedDiagnosisKeys.size() && getRollingStartDay(sortedDiagnosisKeys.get(to)) == day) {
+                to++;
+            }
+            dayTasks.add(new DayTask(from, to));
+            from = to;
+        }
+        numDays += dayTasks.size();
+        return new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(dayTasks);
+            }
+        };
+    }
+
+    private class DayTask extends RecursiveAction {
+        private final int from;
+        private final int to;
+
+        DayTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (shouldStop()) {
+                return;
+            }
+            SortedRpiTable sortedRpiTable = null;
+            if (matchingEngine == Matcher.MatchingEngine.SORT_MERGE) {
+                // only the RPIs that the DKs of this day can match
+                int firstInterval = Integer.MAX_VALUE;
+                int lastInterval = Integer.MIN_VALUE;
+                for (DiagnosisKey dk : diagnosisKeysList.subList(from, to)) {
+                    firstInterval = Math.min(firstInterval, dk.dk.getRollingStartIntervalNumber());
+                    lastInterval = Math.max(lastInterval,
+                            dk.dk.getRollingStartIntervalNumber() + dk.dk.getRollingPeriod() - 1);
+                }
+                sortedRpiTable = rpiList.getSortedRpiTable(firstInterval, lastInterval);
+            }
+            new MatchTask(from, to, sortedRpiTable).invoke();
+        }
+    }
+
+    private class MatchTask extends RecursiveAction {
+        private final int from;
+        private final int to;
+        private final SortedRpiTable sortedRpiTable;  // null: the table of the whole RpiList
+
+        MatchTask(int from, int to, SortedRpiTable sortedRpiTable) {
+            this.from = from;
+            this.to = to;
+            this.sortedRpiTable = sortedRpiTable;
+        }
+
+        @Override
+        protected void compute() {
+            if (shouldStop()) {
+                return;
+            }
+            if (to - from > chunkSize) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new MatchTask(from, middle, sortedRpiTable), new MatchTask(middle, to, sortedRpiTable));
+            } else {
+                matchChunk();
+            }
+        }
+
+        private void matchChunk() {
+            final WorkerStatistics statistics = workerStatistics.get();
+            List<DiagnosisKey> diagnosisKeys = diagnosisKeysList.subList(from, to);
+            if (parallelismController != null) {
+                parallelismController.acquire();
+            }
+            long start = System.nanoTime();
+            final boolean[] interrupted = {false};
+            Matcher matcher = new Matcher(rpiList, diagnosisKeys, 0, matchingEngine, derivedRpiCache);
+            matcher.setSortedRpiTable(sortedRpiTable);
+            matcher.setMetrics(metrics);
+            matcher.match(new Matcher.MatchingListener() {
+                @Override
+                public boolean shouldStop() {
+                    if (ForkJoinMatcher.this.shouldStop()) {
+                        interrupted[0] = true;  // so the chunk may not have been matched completely
+                    }
+                    return interrupted[0];
+                }
+
+                @Override
+                public void onDiagnosisKeysProcessed(int numDiagnosisKeys) {
+                    statistics.numDiagnosisKeys += numDiagnosisKeys;
+                    numProcessed.addAndGet(numDiagnosisKeys);
+                }
+
+                @Override
+                public void onMatch(Matcher.MatchEntryAndDkAndDay matchEntryAndDkAndDay, int intervalNumber,
+                                    RpiList.RpiEntry rpiEntry) {
+                    statistics.numMatches++;
+                    if (incrementalMatchState != null) {
+                        incrementalMatchState.addMatch(matchEntryAndDkAndDay.diagnosisKey, intervalNumber, rpiEntry,
+                                matchEntryAndDkAndDay.matchEntry.getAemKey());
+                    }
+                    pendingMatches.add(matchEntryAndDkAndDay);
+                }
+            });
+            if (incrementalMatchState != null && !interrupted[0]) {
+                incrementalMatchState.addCompleted(diagnosisKeys);
+            }
+            statistics.numChunks++;
+            statistics.busyNanos += System.nanoTime() - start;
+            if (parallelismController != null) {
+                parallelismController.release(diagnosisKeys.size());
+            }
+        }
+    }
+
+    public CancellationToken getCancellationToken() {
+        return cancellationToken;
+    }
+
+    /*
+     Valid after the matching observable has completed.
+     */
+    public MatchingMetrics getMetrics() {
+        return metrics;
+    }
+
+    /*
+     Valid after the matching observable has completed.
+     */
+    public List<WorkerStatistics> getWorkerStatistics() {
+        synchronized (workerStatisticsList) {
+            return new ArrayList<>(workerStatisticsList);
+        }
+    }
+
+    public String getWorkerUtilisationSummary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "Matching workers (%s): %d DKs", partitioning, numMatchedDiagnosisKeys));
+        if (diagnosisKeyBatches != null) {
+            sb.append(String.format(Locale.ROOT, " in %d batches", numBatches));
+        }
+        if (partitioning == Partitioning.DAY_AFFINITY) {
+            sb.append(String.format(Locale.ROOT, ", %d day tasks", numDays));
+        }
+        sb.append(String.format(Locale.ROOT, " in %d ms, %d steals", wallNanos / 1000000, stealCount));
+        if (parallelismController != null) {
+            sb.append(String.format(Locale.ROOT, ", %d of %d workers active", parallelismController.getActiveWorkers(),
+                    parallelism));
+        }
+        for (WorkerStatistics statistics : getWorkerStatistics()) {
+            sb.append(String.format(Locale.ROOT, "\n  %s: %d chunks, %d DKs, %d matches, busy %d ms (%.0f%%), %.0f DKs/s",
+                    statistics.workerName, statistics.numChunks, statistics.numDiagnosisKeys, statistics.numMatches,
+                    statistics.busyNanos / 1000000,
+                    (wallNanos > 0) ? 100.0 * statistics.busyNanos / wallNanos : 0.0,
+                    (statistics.busyNanos > 0) ? statistics.numDiagnosisKeys * 1e9 / statistics.busyNanos : 0.0));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Corona-Warn-Companion. An app that shows COVID-19 Exposure Notifications details.
+ * Copyright (C) 2020  Michael Huebler <corona-warn-companion@tosl.org> and other contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tosl.coronawarncompanion.matcher;
+
+import android.util.Log;
+
+import org.tosl.coronawarncompanion.CWCApplication;
+import org.tosl.coronawarncompanion.diagnosiskeys.DiagnosisKey;
+import org.tosl.coronawarncompanion.rpis.RpiList;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import static org.tosl.coronawarncompanion.tools.Utils.getDaysFromSeconds;
+import static org.tosl.coronawarncompanion.tools.Utils.getDaysSinceEpochFromENIN;
+import static org.tosl.coronawarncompanion.tools.Utils.standardRollingPeriod;
+
+/*
+ Persists which Diagnosis Keys have been matched against which RPIs, and their matches, between runs.
+ The RPIs are described by one fingerprint per day (UTC). A DK has to be matched again only if it is new,
+ or if one of the days its RPIs can be found on (the days of its intervals, and one day before and after)
+ has changed since the last run. Usually that's only the last day or two, so most DKs are not matched again.
+ For the other DKs, the stored matches are looked up again in the RpiList (without any crypto),
+ so the result is exactly the same as the one of a full match.
+ The state is also saved as a checkpoint while matching, and when matching is stopped (e.g. by rotating the device),
+ with only the DKs that have been matched completely. So a restarted run resumes where the last one stopped,
+ even after the process has been killed.
+ */
+public class IncrementalMatchState {
+    private static final String TAG = "IncrementalMatchState";
+    private static final int magic = 0x43574349;  // "CWCI"
+    private static final int version = 2;
+
+    private static class MatchRecord {
+        final int intervalNumber;
+        final long rpiHigh;
+        final long rpiLow;
+        final byte[] aemKey;  // the same for all matches of a DK
+
+        MatchRecord(int intervalNumber, long rpiHigh, long rpiLow, byte[] aemKey) {
+            this.intervalNumber = intervalNumber;
+            this.rpiHigh = rpiHigh;
+            this.rpiLow = rpiLow;
+            this.aemKey = aemKey;
+        }
+    }
+
+    private static class DkKey {
+        final byte[] tek;
+        final int rollingStartIntervalNumber;
+        final int rollingPeriod;
+        final String countryCode;
+
+        DkKey(byte[] tek, int rollingStartIntervalNumber, int rollingPeriod, String countryCode) {
+            this.tek = tek;
+            this.rollingStartIntervalNumber = rollingStartIntervalNumber;
+            this.rollingPeriod = rollingPeriod;
+            this.countryCode = countryCode;
+        }
+
+        DkKey(DiagnosisKey dk) {
+            this(dk.dk.getKeyData().toByteArray(), dk.dk.getRollingStartIntervalNumber(), dk.dk.getRollingPeriod(),
+                    dk.countryCode);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof DkKey)) return false;
+            DkKey key = (DkKey) o;
+            return rollingStartIntervalNumber == key.rollingStartIntervalNumber &&
+                    rollingPeriod == key.rollingPeriod && Arrays.equals(tek, key.tek) &&
+                    countryCode.equals(key.countryCode);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(tek) ^ rollingStartIntervalNumber;
+        }
+    }
+
+    public static class Plan {
+        public final List<DiagnosisKey> diagnosisKeysToMatch;
+        public final List<Matcher.MatchEntryAndDkAndDay> reusedMatches;
+        public final int numReusedDiagnosisKeys;
+
+        Plan(List<DiagnosisKey> diagnosisKeysToMatch, List<Matcher.MatchEntryAndDkAndDay> reusedMatches,
+             int numReusedDiagnosisKeys) {
+            this.diagnosisKeysToMatch = diagnosisKeysToMatch;
+            this.reusedMatches = reusedMatches;
+            this.numReusedDiagnosisKeys = numReusedDiagnosisKeys;
+        }
+
+        @Override
+        public String toString() {
+            return "Incremental matching: " + numReusedDiagnosisKeys + " DKs reused (" + reusedMatches.size() +
+                    " matches), " + diagnosisKeysToMatch.size() + " DKs to match";
+        }
+    }
+
+    private final File file;
+    private final Map<Integer, Long> savedDayFingerprints = new HashMap<>();
+    private final Map<DkKey, List<MatchRecord>> savedMatches = new HashMap<>();
+    // current run: the reused matches, and the matches of the DKs to match (DiagnosisKey compares by identity)
+    private final Map<DkKey, List<MatchRecord>> reusedMatches = new HashMap<>();
+    private final Set<DiagnosisKey> diagnosisKeysToMatch = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final ConcurrentHashMap<DiagnosisKey, List<MatchRecord>> newMatches = new ConcurrentHashMap<>();
+    private final Set<DiagnosisKey> completedDiagnosisKeys = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    public IncrementalMatchState(File file) {
+        this.file = file;
+    }
+
+    private void load() {
+        savedDayFingerprints.clear();
+        savedMatches.clear();
+        if (!file.exists()) {
+            return;
+        }
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(file)), crc))) {
+            if (in.readInt() != magic || in.readInt() != version) {
+                throw new IOException("Invalid header");
+            }
+            int numDays = in.readInt();
+            for (int i = 0; i < numDays; i++) {
+                savedDayFingerprints.put(in.readInt(), in.readLong());
+            }
+            int numDks = in.readInt();
+            for (int i = 0; i < numDks; i++) {
+                byte[] tek = new byte[in.readUnsignedByte()];
+                in.readFully(tek);
+                DkKey dkKey = new DkKey(tek, in.readInt(), in.readInt(), in.readUTF());
+                int numMatches = in.readInt();
+                if (numMatches < 0 || numMatches > standardRollingPeriod * 3) {
+                    throw new IOException("Invalid number of matches");
+                }
+                List<MatchRecord> matchRecords = new ArrayList<>(numMatches);
+                byte[] aemKey = null;
+                if (numMatches > 0) {
+                    aemKey = new byte[in.readUnsignedByte()];
+                    in.readFully(aemKey);
+                }
+                for (int j = 0; j < numMatches; j++) {
+                    int intervalNumber = in.readInt();
+                    long rpiHigh = in.readLong();
+                    long rpiLow = in.readLong();
+                    matchRecords.add(new MatchRecord(intervalNumber, rpiHigh, rpiLow, aemKey));
+                }
+                savedMatches.put(dkKey, matchRecords);
+            }
+            long expectedCrc = crc.getValue();
+            if (in.readLong() != expectedCrc) {
+                throw new IOException("CRC mismatch");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read state, all DKs will be matched: " + e);
+            savedDayFingerprints.clear();
+            savedMatches.clear();
+        }
+    }
+
+    private boolean haveDaysChanged(RpiList rpiList, DiagnosisKey dk) {
+        int firstDay = getDaysSinceEpochFromENIN(dk.dk.getRollingStartIntervalNumber()) - 1;
+        int lastDay = getDaysSinceEpochFromENIN(dk.dk.getRollingStartIntervalNumber() + dk.dk.getRollingPeriod() - 1) + 1;
+        for (int day = firstDay; day <= lastDay; day++) {
+            Long savedDayFingerprint = savedDayFingerprints.get(day);
+            if (rpiList.getDayFingerprint(day) != ((savedDayFingerprint != null) ? savedDayFingerprint : 0L)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     Loads the state of the last run, and splits the DKs into the ones that have to be matched,
+     and the ones whose matches can be reused.
+     */
+    public Plan plan(RpiList rpiList, List<DiagnosisKey> diagnosisKeys) {
+        start();
+        return planBatch(rpiList, diagnosisKeys);
+    }
+
+    /*
+     Loads the state of the last run, for planBatch().
+     */
+    public void start() {
+        load();
+        reusedMatches.clear();
+        diagnosisKeysToMatch.clear();
+        newMatches.clear();
+        completedDiagnosisKeys.clear();
+    }
+
+    /*
+     Like plan(), for the DKs arriving one batch after the other (see ForkJoinMatcher).
+     save() then needs the DKs of all batches.
+     */
+    public Plan planBatch(RpiList rpiList, List<DiagnosisKey> diagnosisKeys) {
+        int timeZoneOffsetSeconds = CWCApplication.getTimeZoneOffsetSeconds();
+        List<DiagnosisKey> diagnosisKeysToMatch = new ArrayList<>();
+        List<Matcher.MatchEntryAndDkAndDay> reusedMatchEntries = new ArrayList<>();
+        int numReusedDiagnosisKeys = 0;
+        for (DiagnosisKey dk : diagnosisKeys) {
+            DkKey dkKey = new DkKey(dk);
+            List<MatchRecord> matchRecords = savedMatches.get(dkKey);
+            List<Matcher.MatchEntryAndDkAndDay> matches = null;
+            if (matchRecords != null && !haveDaysChanged(rpiList, dk)) {
+                matches = new ArrayList<>(matchRecords.size());
+                for (MatchRecord matchRecord : matchRecords) {
+                    RpiList.RpiEntry rpiEntry = rpiList.searchForRpiOnDaySinceEpochUTCWith2HoursTolerance(
+                            matchRecord.rpiHigh, matchRecord.rpiLow, matchRecord.intervalNumber);
+                    if (rpiEntry == null) {  // can't happen with unchanged days, but then better match it again
+                        matches = null;
+                        break;
+                    }
+                    matches.add(new Matcher.MatchEntryAndDkAndDay(
+                            new Matcher.MatchEntry(rpiEntry.contactRecords, rpiEntry.startTimeStampUTC,
+                                    matchRecord.aemKey, rpiEntry.rpiBytes),
+                            dk, getDaysFromSeconds(rpiEntry.startTimeStampUTC + timeZoneOffsetSeconds)));
+                }
+            }
+            if (matches != null) {
+                reusedMatchEntries.addAll(matches);
+                reusedMatches.put(dkKey, matchRecords);
+                numReusedDiagnosisKeys++;
+            } else {
+                diagnosisKeysToMatch.add(dk);
+                this.diagnosisKeysToMatch.add(dk);
+            }
+        }
+        Plan plan = new Plan(diagnosisKeysToMatch, reusedMatchEntries, numReusedDiagnosisKeys);
+        Log.d(TAG, plan.toString());
+        return plan;
+    }
+
+    /*
+     Called for every match of the DKs to match. Thread-safe.
+     */
+    public void addMatch(DiagnosisKey dk, int intervalNumber, RpiList.RpiEntry rpiEntry, byte[] aemKey) {
+        List<MatchRecord> matchRecords = newMatches.get(dk);
+        if (matchRecords == null) {
+            List<MatchRecord> newMatchRecords = Collections.synchronizedList(new ArrayList<>());
+            matchRecords = newMatches.putIfAbsent(dk, newMatchRecords);
+            if (matchRecords == null) {
+                matchRecords = newMatchRecords;
+            }
+        }
+        matchRecords.add(new MatchRecord(intervalNumber, rpiEntry.rpiBytes.getHigh(), rpiEntry.rpiBytes.getLow(),
+                aemKey));
+    }
+
+    /*
+     Called when all matches of the DKs have been added, i.e. they have been matched completely. Thread-safe.
+     */
+    public void addCompleted(List<DiagnosisKey> diagnosisKeys) {
+        completedDiagnosisKeys.addAll(diagnosisKeys);
+    }
+
+    /*
+     Saves the state, at a checkpoint or after all DKs of the plan have been matched.
+     diagnosisKeys are all DKs passed to plan() or planBatch(). The DKs to match that haven't been completed yet
+     are left out, so they will be matched again.
+     */
+    public void save(RpiList rpiList, List<DiagnosisKey> diagnosisKeys) {
+        File tempFile = new File(file.getPath() + ".tmp");
+        CRC32 crc = new CRC32();
+        try (DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)), crc))) {
+            out.writeInt(magic);
+            out.writeInt(version);
+            Map<Integer, Long> dayFingerprints = rpiList.getDayFingerprints();
+            out.writeInt(dayFingerprints.size());
+            for (Map.Entry<Integer, Long> dayFingerprint : dayFingerprints.entrySet()) {
+                out.writeInt(dayFingerprint.getKey());
+                out.writeLong(dayFingerprint.getValue());
+            }
+            Map<DkKey, List<MatchRecord>> matchesPerDk = new HashMap<>();
+            for (DiagnosisKey dk : diagnosisKeys) {
+                boolean toMatch = diagnosisKeysToMatch.contains(dk);
+                if (toMatch && !completedDiagnosisKeys.contains(dk)) {
+                    continue;
+                }
+                DkKey dkKey = new DkKey(dk);
+                List<MatchRecord> matchRecords = toMatch ? newMatches.get(dk) : reusedMatches.get(dkKey);
+                matchesPerDk.put(dkKey, (matchRecords != null) ? matchRecords : Collections.emptyList());
+            }
+            out.writeInt(matchesPerDk.size());
+            for (Map.Entry<DkKey, List<MatchRecord>> entry : matchesPerDk.entrySet()) {
+                DkKey dkKey = entry.getKey();
+                out.writeByte(dkKey.tek.length);
+                out.write(dkKey.tek);
+                out.writeInt(dkKey.rollingStartIntervalNumber);
+                out.writeInt(dkKey.rollingPeriod);
+                out.writeUTF(dkKey.countryCode);
+                out.writeInt(entry.getValue().size());
+                if (!entry.getValue().isEmpty()) {
+                    byte[] aemKey = entry.getValue().get(0).aemKey;  // once per DK
+                    out.writeByte(aemKey.length);
+                    out.write(aemKey);
+                }
+                for (MatchRecord matchRecord : entry.getValue()) {
+                    out.writeInt(matchRecord.intervalNumber);
+                    out.writeLong(matchRecord.rpiHigh);
+                    out.writeLong(matchRecord.rpiLow);
+                }
+            }
+            out.flush();
+            out.writeLong(crc.getValue());
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save state.", e);
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            return;
+        }
+        if (!tempFile.renameTo(file)) {
+            Log.e(TAG, "Could not rename " + tempFile);
+        }
+    }
+}
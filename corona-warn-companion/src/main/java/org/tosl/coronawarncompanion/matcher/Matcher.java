@@ -20,39 +20,80 @@ package org.tosl.coronawarncompanion.matcher;
 
 import android.util.Log;
 
+import com.google.protobuf.ByteString;
+
 import org.tosl.coronawarncompanion.CWCApplication;
 import org.tosl.coronawarncompanion.diagnosiskeys.DiagnosisKey;
 import org.tosl.coronawarncompanion.gmsreadout.ContactRecordsProtos;
 import org.tosl.coronawarncompanion.rpis.RpiList;
+import org.tosl.coronawarncompanion.rpis.SortedRpiTable;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import io.reactivex.Observable;
 import io.reactivex.ObservableEmitter;
 import io.reactivex.ObservableOnSubscribe;
 
-import static org.tosl.coronawarncompanion.CWCApplication.backgroundThreadsShouldStop;
 import static org.tosl.coronawarncompanion.matcher.Crypto.decryptAem;
 import static org.tosl.coronawarncompanion.matcher.Crypto.deriveAemKey;
 import static org.tosl.coronawarncompanion.matcher.Crypto.deriveRpiKey;
+import static org.tosl.coronawarncompanion.matcher.Crypto.rpiLength;
 import static org.tosl.coronawarncompanion.tools.Utils.getDaysFromSeconds;
+import static org.tosl.coronawarncompanion.tools.Utils.standardRollingPeriod;
 
 public class Matcher {
 
     private static final String TAG = "Matcher";
+    private static final int sortMergeBatchSize = 1024;  // Diagnosis Keys per sort-merge join
+    private static final int tekLength = 16;
+
+    public enum MatchingEngine {
+        HASH,        // one hash lookup per generated RPI
+        SORT_MERGE   // generate the RPIs of a whole batch of Diagnosis Keys, sort them, and merge-join
+    }
 
     public static class MatchEntry {
+        private static final byte[] zeroAem = {0x00, 0x00, 0x00, 0x00};
+
         public final ContactRecordsProtos.ContactRecords contactRecords;
         public final int startTimestampUTC;
-        public final byte[] aemXorBytes;
+        private final byte[] aemKey;  // shared by all matches of a DK, null if aemXorBytes is given
+        private final RpiList.RpiBytes rpiBytes;
+        private volatile byte[] aemXorBytes;
 
         public MatchEntry(ContactRecordsProtos.ContactRecords contactRecords,
                           int startTimestampUTC, byte[] aemXorBytes) {
             this.contactRecords = contactRecords;
             this.startTimestampUTC = startTimestampUTC;
+            this.aemKey = null;
+            this.rpiBytes = null;
             this.aemXorBytes = aemXorBytes;
         }
+
+        /*
+         The AEM XOR bytes are only decrypted when they are needed (for the TX power).
+         */
+        public MatchEntry(ContactRecordsProtos.ContactRecords contactRecords,
+                          int startTimestampUTC, byte[] aemKey, RpiList.RpiBytes rpiBytes) {
+            this.contactRecords = contactRecords;
+            this.startTimestampUTC = startTimestampUTC;
+            this.aemKey = aemKey;
+            this.rpiBytes = rpiBytes;
+        }
+
+        public byte[] getAemKey() {
+            return aemKey;
+        }
+
+        public byte[] getAemXorBytes() {
+            byte[] result = aemXorBytes;
+            if (result == null) {
+                result = decryptAem(aemKey, zeroAem, rpiBytes.getBytes());
+                aemXorBytes = result;  // computing it twice on different threads doesn't hurt
+            }
+            return result;
+        }
     }
 
     public static class MatchEntryAndDkAndDay {
@@ -70,6 +111,20 @@ public class Matcher {
     private final RpiList rpiList;
     private final List<DiagnosisKey> diagnosisKeysList;
     private final int threadNumber;
+    private final MatchingEngine matchingEngine;
+    private final DerivedRpiCache derivedRpiCache;  // may be null
+    private SortedRpiTable sortedRpiTable = null;  // null: the table of the whole RpiList
+    private MatchingMetrics metrics = null;  // null: the stages are recorded, but not reported
+    private MatchingMetrics.Recorder recorder;
+    private byte[] rpis = new byte[standardRollingPeriod * rpiLength];  // the RPIs of the current DK, reused
+    private final byte[] tek = new byte[tekLength];     // the key data of the current DK, reused
+    private final byte[] rpiKey = new byte[tekLength];  // its RPI key, reused
+
+    // RPI filter counters of this thread, added to the RpiList's statistics when done.
+    // The positives without a match are counted without searching the RPI again (see RpiBloomFilter.Statistics).
+    private long filterQueries = 0;
+    private long filterPositives = 0;
+    private long filterPositivesWithoutMatch = 0;
 
     final int timeZoneOffsetSeconds;
 
@@ -85,53 +140,50 @@ public class Matcher {
         }
     }
 
+    /*
+     Receives the results of match(). Used by getMatchingObservable() and by the ForkJoinMatcher.
+     */
+    interface MatchingListener {
+        boolean shouldStop();
+        void onDiagnosisKeysProcessed(int numDiagnosisKeys);  // called for every DK, before its matches are reported
+        void onMatch(MatchEntryAndDkAndDay matchEntryAndDkAndDay, int intervalNumber, RpiList.RpiEntry rpiEntry);
+    }
+
     public Observable<ProgressAndMatchEntryAndDkAndDay> getMatchingObservable() {
         return Observable.create(new ObservableOnSubscribe<ProgressAndMatchEntryAndDkAndDay>() {
+            private int numProcessed = 0;
+            private int currentProgress = 0;
+
             @Override
-            public void subscribe(ObservableEmitter<ProgressAndMatchEntryAndDkAndDay> emitter) throws Exception {
+            public void subscribe(final ObservableEmitter<ProgressAndMatchEntryAndDkAndDay> emitter) throws Exception {
                 try {
-                    Log.d(TAG, "Started matching...");
-                    int diagnosisKeysListLength = diagnosisKeysList.size();
-                    int currentDiagnosisKey = 0;
-                    int lastProgress = 0;
-                    int currentProgress;
-                    Crypto crypto = new Crypto();
-                    for (DiagnosisKey dk : diagnosisKeysList) {
-                        if (backgroundThreadsShouldStop || emitter.isDisposed()) {
-                            break;
+                    Log.d(TAG, "Started matching ("+matchingEngine+")...");
+                    final int diagnosisKeysListLength = diagnosisKeysList.size();
+                    match(new MatchingListener() {
+                        @Override
+                        public boolean shouldStop() {
+                            return emitter.isDisposed();
                         }
-                        currentDiagnosisKey += 1;
-                        currentProgress = (int) (100f * currentDiagnosisKey / diagnosisKeysListLength);
-                        if (currentProgress != lastProgress) {
-                            lastProgress = currentProgress;
-                            emitter.onNext(new ProgressAndMatchEntryAndDkAndDay(currentProgress, threadNumber, null));
-                        }
-                        ArrayList<Crypto.RpiWithInterval> dkRpisWithIntervals =
-                                    crypto.createListOfRpisForIntervalRange(deriveRpiKey(dk.dk.getKeyData().toByteArray()),
-                                            dk.dk.getRollingStartIntervalNumber(), dk.dk.getRollingPeriod());
-                        for (Crypto.RpiWithInterval dkRpiWithInterval : dkRpisWithIntervals) {
-                            if (backgroundThreadsShouldStop || emitter.isDisposed()) {
-                                break;
+
+                        @Override
+                        public void onDiagnosisKeysProcessed(int numDiagnosisKeys) {
+                            numProcessed += numDiagnosisKeys;
+                            int newProgress = (int) (100f * numProcessed / diagnosisKeysListLength);
+                            if (newProgress != currentProgress) {
+                                currentProgress = newProgress;
+                                emitter.onNext(new ProgressAndMatchEntryAndDkAndDay(currentProgress, threadNumber, null));
                             }
-                            RpiList.RpiEntry rpiEntry =
-                                    rpiList.searchForRpiOnDaySinceEpochUTCWith2HoursTolerance(dkRpiWithInterval);
-                            if (rpiEntry != null) {
-                                Log.d(TAG, "Match found!");
-                                byte[] aemKey = deriveAemKey(dk.dk.getKeyData().toByteArray());
-                                byte[] zeroAem = {0x00, 0x00, 0x00, 0x00};
-                                byte[] aemXorBytes = decryptAem(aemKey, zeroAem, rpiEntry.rpiBytes.getBytes());
-
-                                MatchEntryAndDkAndDay matchEntryAndDkAndDay =
-                                        new MatchEntryAndDkAndDay(
-                                                new MatchEntry(rpiEntry.contactRecords, rpiEntry.startTimeStampUTC, aemXorBytes),
-                                                dk,
-                                                getDaysFromSeconds(rpiEntry.startTimeStampUTC + timeZoneOffsetSeconds));
-                                if (!emitter.isDisposed()) {
-                                    emitter.onNext(new ProgressAndMatchEntryAndDkAndDay(currentProgress, threadNumber, matchEntryAndDkAndDay));
-                                }
+                        }
+
+                        @Override
+                        public void onMatch(MatchEntryAndDkAndDay matchEntryAndDkAndDay, int intervalNumber,
+                                            RpiList.RpiEntry rpiEntry) {
+                            if (!emitter.isDisposed()) {
+                                emitter.onNext(new ProgressAndMatchEntryAndDkAndDay(currentProgress, threadNumber,
+                                        matchEntryAndDkAndDay));
                             }
                         }
-                    }
+                    });
                     Log.d(TAG, "Finished matching...");
                     emitter.onComplete();
                 } catch (Exception e) {
@@ -142,10 +194,236 @@ public class Matcher {
         });
     }
 
+    /*
+     Lets the sort-merge join use a slice of the observed RPIs (see RpiList.getSortedRpiTable(int, int)).
+     It must contain all RPIs that the Diagnosis Keys of this Matcher can match.
+     */
+    void setSortedRpiTable(SortedRpiTable sortedRpiTable) {
+        this.sortedRpiTable = sortedRpiTable;
+    }
+
+    void setMetrics(MatchingMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /*
+     Matches all Diagnosis Keys of this Matcher synchronously, on the calling thread.
+     */
+    void match(MatchingListener listener) {
+        recorder = new MatchingMetrics.Recorder();
+        MatchingMetrics.setCurrent(recorder);
+        try {
+            if (matchingEngine == MatchingEngine.SORT_MERGE) {
+                matchWithSortMergeJoin(listener);
+            } else {
+                matchWithHashSearch(listener);
+            }
+        } finally {
+            MatchingMetrics.setCurrent(null);
+            if (metrics != null) {
+                metrics.add(recorder);
+            }
+        }
+        rpiList.getRpiBloomFilterStatistics().add(filterQueries, filterPositives, filterPositivesWithoutMatch);
+        filterQueries = 0;
+        filterPositives = 0;
+        filterPositivesWithoutMatch = 0;
+    }
+
+    private void matchWithHashSearch(MatchingListener listener) {
+        Crypto crypto = new Crypto();
+        for (DiagnosisKey dk : diagnosisKeysList) {
+            if (listener.shouldStop()) {
+                break;
+            }
+            listener.onDiagnosisKeysProcessed(1);
+            recorder.count(MatchingMetrics.Stage.DIAGNOSIS_KEY, 1);
+            // clip to the intervals that could match at all (see DiagnosisKeyPruner)
+            int firstInterval = rpiList.getFirstMatchableInterval(dk.dk.getRollingStartIntervalNumber(), dk.dk.getRollingPeriod());
+            if (firstInterval < 0) {
+                continue;
+            }
+            int lastInterval = rpiList.getLastMatchableInterval(dk.dk.getRollingStartIntervalNumber(), dk.dk.getRollingPeriod());
+            int intervalCount = lastInterval - firstInterval + 1;
+            createRpis(crypto, dk, getDerivedRpiCacheEntry(dk), firstInterval, intervalCount);
+            byte[] aemKey = null;  // only derived if the DK matches, and then only once
+            for (int i = 0; i < intervalCount; i++) {
+                if (listener.shouldStop()) {
+                    break;
+                }
+                int intervalNumber = firstInterval + i;
+                long rpiHigh = RpiList.RpiBytes.getLongFromBytes(rpis, i * rpiLength);
+                long rpiLow = RpiList.RpiBytes.getLongFromBytes(rpis, i * rpiLength + 8);
+                filterQueries++;
+                long start = recorder.startTimer(MatchingMetrics.Stage.FILTER_PROBE);
+                boolean mightContainRpi = rpiList.mightContainRpi(rpiHigh, rpiLow);
+                recorder.stopTimer(MatchingMetrics.Stage.FILTER_PROBE, start);
+                if (!mightContainRpi) {
+                    continue;  // definitely not observed, skip the full search
+                }
+                filterPositives++;
+                RpiList.RpiEntry rpiEntry = rpiList.searchForRpiOnDaySinceEpochUTCWith2HoursTolerance(
+                        rpiHigh, rpiLow, intervalNumber);
+                if (rpiEntry == null) {
+                    filterPositivesWithoutMatch++;
+                } else {
+                    Log.d(TAG, "Match found!");
+                    if (aemKey == null) {
+                        aemKey = deriveAemKey(dk.dk.getKeyData().toByteArray());
+                    }
+                    start = recorder.startTimer(MatchingMetrics.Stage.MATCH_EMISSION);
+                    listener.onMatch(createMatchEntryAndDkAndDay(dk, rpiEntry, aemKey), intervalNumber, rpiEntry);
+                    recorder.stopTimer(MatchingMetrics.Stage.MATCH_EMISSION, start);
+                }
+            }
+        }
+    }
+
+    /*
+     Generates the RPIs of a whole batch of Diagnosis Keys, and merge-joins them against the sorted observed RPIs.
+     Finds exactly the same matches as matchWithHashSearch(), and reports them in the same order.
+     */
+    private void matchWithSortMergeJoin(MatchingListener listener) {
+        SortedRpiTable sortedRpiTable = (this.sortedRpiTable != null) ? this.sortedRpiTable : rpiList.getSortedRpiTable();
+        SortMergeJoin sortMergeJoin = new SortMergeJoin(Math.min(sortMergeBatchSize, diagnosisKeysList.size())
+                * standardRollingPeriod);
+        int diagnosisKeysListLength = diagnosisKeysList.size();
+        byte[][] aemKeys = new byte[sortMergeBatchSize][];  // only derived for the DKs that match
+        Crypto crypto = new Crypto();
+        for (int batchStart = 0; batchStart < diagnosisKeysListLength; batchStart += sortMergeBatchSize) {
+            int batchEnd = Math.min(batchStart + sortMergeBatchSize, diagnosisKeysListLength);
+            sortMergeJoin.clear();
+            int batchPositives = 0;
+            Arrays.fill(aemKeys, null);
+            for (int dkIndex = batchStart; dkIndex < batchEnd; dkIndex++) {
+                if (listener.shouldStop()) {
+                    return;
+                }
+                DiagnosisKey dk = diagnosisKeysList.get(dkIndex);
+                recorder.count(MatchingMetrics.Stage.DIAGNOSIS_KEY, 1);
+                // clip to the intervals that could match at all (see DiagnosisKeyPruner)
+                int firstInterval = rpiList.getFirstMatchableInterval(dk.dk.getRollingStartIntervalNumber(), dk.dk.getRollingPeriod());
+                if (firstInterval < 0) {
+                    continue;
+                }
+                int lastInterval = rpiList.getLastMatchableInterval(dk.dk.getRollingStartIntervalNumber(), dk.dk.getRollingPeriod());
+                int intervalCount = lastInterval - firstInterval + 1;
+                createRpis(crypto, dk, getDerivedRpiCacheEntry(dk), firstInterval, intervalCount);
+                for (int i = 0; i < intervalCount; i++) {
+                    long rpiHigh = RpiList.RpiBytes.getLongFromBytes(rpis, i * rpiLength);
+                    long rpiLow = RpiList.RpiBytes.getLongFromBytes(rpis, i * rpiLength + 8);
+                    filterQueries++;
+                    long start = recorder.startTimer(MatchingMetrics.Stage.FILTER_PROBE);
+                    boolean mightContainRpi = rpiList.mightContainRpi(rpiHigh, rpiLow);
+                    recorder.stopTimer(MatchingMetrics.Stage.FILTER_PROBE, start);
+                    if (mightContainRpi) {  // only sort and join RPIs that may have been observed
+                        filterPositives++;
+                        batchPositives++;
+                        sortMergeJoin.add(rpiHigh, rpiLow, dkIndex, firstInterval + i);
+                    }
+                }
+            }
+            listener.onDiagnosisKeysProcessed(batchEnd - batchStart);
+            long start = recorder.startTimer(MatchingMetrics.Stage.SORT_MERGE_JOIN);
+            List<SortMergeJoin.Match> matches = sortMergeJoin.join(sortedRpiTable);
+            recorder.stopTimer(MatchingMetrics.Stage.SORT_MERGE_JOIN, start);
+            filterPositivesWithoutMatch += batchPositives - matches.size();
+            for (SortMergeJoin.Match match : matches) {
+                if (listener.shouldStop()) {
+                    return;
+                }
+                Log.d(TAG, "Match found!");
+                DiagnosisKey dk = diagnosisKeysList.get(match.dkIndex);
+                int batchIndex = match.dkIndex - batchStart;
+                if (aemKeys[batchIndex] == null) {
+                    aemKeys[batchIndex] = deriveAemKey(dk.dk.getKeyData().toByteArray());
+                }
+                start = recorder.startTimer(MatchingMetrics.Stage.MATCH_EMISSION);
+                listener.onMatch(createMatchEntryAndDkAndDay(dk, match.rpiEntry, aemKeys[batchIndex]),
+                        match.intervalNumber, match.rpiEntry);
+                recorder.stopTimer(MatchingMetrics.Stage.MATCH_EMISSION, start);
+            }
+        }
+    }
+
+    /*
+     Returns null if there is no DerivedRpiCache, if the DK can't be cached, or on a cache miss.
+     */
+    private DerivedRpiCache.Entry getDerivedRpiCacheEntry(DiagnosisKey dk) {
+        if (derivedRpiCache == null ||
+                !DerivedRpiCache.isCacheable(dk.dk.getKeyData().size(), dk.dk.getRollingPeriod())) {
+            return null;
+        }
+        return derivedRpiCache.get(dk.dk.getKeyData().toByteArray(), dk.dk.getRollingStartIntervalNumber(),
+                dk.dk.getRollingPeriod());
+    }
+
+    /*
+     Fills the rpis buffer (16 bytes per interval), from the cache or with a single batch encryption.
+     Without the cache, nothing is allocated here: the key data and the RPI key go to reused buffers.
+     On a cache miss, the RPIs of the whole rolling period are derived and cached (so that a DK that is
+     clipped by the edge of the observed time range is read from the cache next time, too),
+     and the requested intervals are moved to the beginning of the buffer.
+     */
+    private void createRpis(Crypto crypto, DiagnosisKey dk, DerivedRpiCache.Entry cacheEntry,
+                            int startIntervalNumber, int intervalCount) {
+        if (cacheEntry == null) {
+            ByteString keyData = dk.dk.getKeyData();
+            boolean cacheable = (derivedRpiCache != null) &&
+                    DerivedRpiCache.isCacheable(keyData.size(), dk.dk.getRollingPeriod());
+            int deriveStartIntervalNumber = cacheable ? dk.dk.getRollingStartIntervalNumber() : startIntervalNumber;
+            int deriveIntervalCount = cacheable ? dk.dk.getRollingPeriod() : intervalCount;
+            if (rpis.length < deriveIntervalCount * rpiLength) {
+                rpis = new byte[deriveIntervalCount * rpiLength];
+            }
+            if (keyData.size() == tekLength) {
+                keyData.copyTo(tek, 0);
+                deriveRpiKey(tek, rpiKey);
+                crypto.createRpisForIntervalRange(rpiKey, deriveStartIntervalNumber, deriveIntervalCount, rpis);
+            } else {
+                crypto.createRpisForIntervalRange(deriveRpiKey(keyData.toByteArray()),
+                        deriveStartIntervalNumber, deriveIntervalCount, rpis);
+            }
+            if (cacheable) {
+                derivedRpiCache.put(keyData.toByteArray(), deriveStartIntervalNumber, deriveIntervalCount, rpis);
+                if (startIntervalNumber != deriveStartIntervalNumber) {
+                    System.arraycopy(rpis, (startIntervalNumber - deriveStartIntervalNumber) * rpiLength,
+                            rpis, 0, intervalCount * rpiLength);
+                }
+            }
+        } else {
+            if (rpis.length < intervalCount * rpiLength) {
+                rpis = new byte[intervalCount * rpiLength];
+            }
+            long start = recorder.startTimer(MatchingMetrics.Stage.CACHED_RPIS);
+            cacheEntry.copyRpis(startIntervalNumber, intervalCount, rpis);
+            recorder.stopTimer(MatchingMetrics.Stage.CACHED_RPIS, start);
+        }
+    }
+
+    private MatchEntryAndDkAndDay createMatchEntryAndDkAndDay(DiagnosisKey dk, RpiList.RpiEntry rpiEntry,
+                                                              byte[] aemKey) {
+        return new MatchEntryAndDkAndDay(
+                new MatchEntry(rpiEntry.contactRecords, rpiEntry.startTimeStampUTC, aemKey, rpiEntry.rpiBytes),
+                dk,
+                getDaysFromSeconds(rpiEntry.startTimeStampUTC + timeZoneOffsetSeconds));
+    }
+
     public Matcher(RpiList rpis, List<DiagnosisKey> diagnosisKeys, int threadNumber) {
+        this(rpis, diagnosisKeys, threadNumber, MatchingEngine.HASH);
+    }
+
+    public Matcher(RpiList rpis, List<DiagnosisKey> diagnosisKeys, int threadNumber, MatchingEngine matchingEngine) {
+        this(rpis, diagnosisKeys, threadNumber, matchingEngine, null);
+    }
+
+    public Matcher(RpiList rpis, List<DiagnosisKey> diagnosisKeys, int threadNumber, MatchingEngine matchingEngine,
+                   DerivedRpiCache derivedRpiCache) {
         this.rpiList = rpis;
         this.diagnosisKeysList = diagnosisKeys;
         this.threadNumber = threadNumber;
+        this.matchingEngine = matchingEngine;
+        this.derivedRpiCache = derivedRpiCache;
         timeZoneOffsetSeconds = CWCApplication.getTimeZoneOffsetSeconds();
     }
 }
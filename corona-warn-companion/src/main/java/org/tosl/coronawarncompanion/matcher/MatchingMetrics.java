@@ -0,0 +1,182 @@
+/*
+ * Corona-Warn-Companion. An app that shows COVID-19 Exposure Notifications details.
+ * Copyright (C) 2020  Michael Huebler <corona-warn-companion@tosl.org> and other contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.tosl.coronawarncompanion.matcher;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/*
+ Counters and timers for the stages of the matching hot path, to see where the matching time goes.
+ Every matching thread records into its own Recorder (plain fields, no synchronization), which is added
+ to the MatchingMetrics of the run when the thread is done with its DKs.
+ Every stage is counted, but only one in samplingInterval timers is actually measured with System.nanoTime(),
+ so the overhead stays small even for the per-RPI stages. The total time of a stage is estimated from its samples.
+ Crypto and RpiList find the Recorder of the current thread with MatchingMetrics.current().
+ */
+public class MatchingMetrics {
+    private static final String TAG = "MatchingMetrics";
+    private static final int samplingInterval = 16;
+
+    public enum Stage {
+        DIAGNOSIS_KEY,       // count only
+        RPI_KEY_DERIVATION,  // HKDF
+        AEM_KEY_DERIVATION,  // HKDF, only for DKs that match
+        RPI_ENCRYPTION,      // AES of all intervals of a DK
+        CACHED_RPIS,         // copy from the DerivedRpiCache instead of HKDF and AES
+        FILTER_PROBE,        // Bloom filter, per generated RPI
+        INDEX_SEARCH,        // RpiList search, for the RPIs that passed the filter
+        SORT_MERGE_JOIN,     // per batch
+        MATCH_EMISSION       // handing a match to the listener
+    }
+
+    private static final ThreadLocal<Recorder> currentRecorder = new ThreadLocal<>();
+
+    public static final class Recorder {
+        private final long[] counts = new long[Stage.values().length];
+        private final long[] samples = new long[Stage.values().length];
+        private final long[] sampledNanos = new long[Stage.values().length];
+        private final int[] countdowns = new int[Stage.values().length];  // per stage, so that stages don't alias
+
+        /*
+         Returns 0 if this timer is not sampled. The first call of each stage is sampled.
+         */
+        public long startTimer(Stage stage) {
+            if (--countdowns[stage.ordinal()] > 0) {
+                return 0;
+            }
+            countdowns[stage.ordinal()] = samplingInterval;
+            return System.nanoTime();
+        }
+
+        public void stopTimer(Stage stage, long startNanos) {
+            counts[stage.ordinal()]++;
+            if (startNanos != 0) {
+                sampledNanos[stage.ordinal()] += System.nanoTime() - startNanos;
+                samples[stage.ordinal()]++;
+            }
+        }
+
+        public void count(Stage stage, long count) {
+            counts[stage.ordinal()] += count;
+        }
+    }
+
+    /*
+     The Recorder of the current thread, or null if the metrics are not recorded.
+     */
+    public static Recorder current() {
+        return currentRecorder.get();
+    }
+
+    static void setCurrent(Recorder recorder) {
+        if (recorder != null) {
+            currentRecorder.set(recorder);
+        } else {
+            currentRecorder.remove();
+        }
+    }
+
+    private final long[] counts = new long[Stage.values().length];
+    private final long[] samples = new long[Stage.values().length];
+    private final long[] sampledNanos = new long[Stage.values().length];
+    private long wallNanos = 0;
+
+    synchronized void add(Recorder recorder) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += recorder.counts[i];
+            samples[i] += recorder.samples[i];
+            sampledNanos[i] += recorder.sampledNanos[i];
+        }
+    }
+
+    synchronized void setWallNanos(long wallNanos) {
+        this.wallNanos = wallNanos;
+    }
+
+    public synchronized long getCount(Stage stage) {
+        return counts[stage.ordinal()];
+    }
+
+    /*
+     Estimated total time of the stage, summed over all threads.
+     */
+    public synchronized long getEstimatedNanos(Stage stage) {
+        int i = stage.ordinal();
+        return (samples[i] > 0) ? sampledNanos[i] * counts[i] / samples[i] : 0;
+    }
+
+    public synchronized long getMeanNanos(Stage stage) {
+        int i = stage.ordinal();
+        return (samples[i] > 0) ? sampledNanos[i] / samples[i] : 0;
+    }
+
+    public synchronized long getWallNanos() {
+        return wallNanos;
+    }
+
+    /*
+     DKs per second of wall time.
+     */
+    public synchronized double getDiagnosisKeysPerSecond() {
+        return (wallNanos > 0) ? counts[Stage.DIAGNOSIS_KEY.ordinal()] * 1e9 / wallNanos : 0.0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "Matching metrics: %d DKs in %d ms, %.0f DKs/s",
+                counts[Stage.DIAGNOSIS_KEY.ordinal()], wallNanos / 1000000, getDiagnosisKeysPerSecond()));
+        for (Stage stage : Stage.values()) {
+            if (stage != Stage.DIAGNOSIS_KEY) {
+                sb.append(String.format(Locale.ROOT, "\n  %s: %d times, %d ns each, %d ms total (%d samples)",
+                        stage, getCount(stage), getMeanNanos(stage), getEstimatedNanos(stage) / 1000000,
+                        samples[stage.ordinal()]));
+            }
+        }
+        return sb.toString();
+    }
+
+    public synchronized String toJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "{\"wallNanos\":%d,\"diagnosisKeysPerSecond\":%.1f,\"stages\":{",
+                wallNanos, getDiagnosisKeysPerSecond()));
+        for (Stage stage : Stage.values()) {
+            int i = stage.ordinal();
+            sb.append(String.format(Locale.ROOT,
+                    "%s\"%s\":{\"count\":%d,\"samples\":%d,\"meanNanos\":%d,\"estimatedNanos\":%d}",
+                    (i > 0) ? "," : "", stage, counts[i], samples[i], getMeanNanos(stage), getEstimatedNanos(stage)));
+        }
+        sb.append("}}");
+        return sb.toString();
+    }
+
+    public void writeJson(File file) {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writer.write(toJson());
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write " + file, e);
+        }
+    }
+}
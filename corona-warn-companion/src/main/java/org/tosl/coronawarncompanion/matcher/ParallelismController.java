@@ -0,0 +1,237 @@
+/*
+ * Corona-Warn-Companion. An app that shows COVID-19 Exposure Notifications details.
+ * Copyright (C) 2020  Michael Huebler <corona-warn-companion@tosl.org> and other contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.tosl.coronawarncompanion.matcher;
+
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+
+/*
+ Chooses the number of matcher threads by measuring the throughput, instead of always using all cores:
+ on big.LITTLE SoCs, and when the phone is throttled, fewer threads are often faster.
+ The ForkJoinPool keeps all its workers, but a worker has to get a permit for every chunk it matches,
+ and there are only as many permits as active workers; the others wait.
+ During the first seconds of a run, after a warm-up window, every candidate worker count is active for
+ one probe window, and the DKs matched per second are measured. Then the best count stays active.
+ It is saved, and the next run on this device only probes the counts next to it.
+ */
+public class ParallelismController {
+    private static final String TAG = "ParallelismController";
+    private static final int magic = 0x43575050;  // "CWPP"
+    private static final int version = 1;
+    private static final long defaultWarmUpMillis = 300;
+    private static final long defaultProbeWindowMillis = 500;
+
+    public interface NanoClock {
+        long nanoTime();
+    }
+
+    private static final NanoClock systemClock = System::nanoTime;
+
+    private static class ResizableSemaphore extends Semaphore {
+        ResizableSemaphore(int permits) {
+            super(permits);
+        }
+
+        void reduce(int reduction) {
+            reducePermits(reduction);
+        }
+    }
+
+    private final File file;  // may be null
+    private final int maxWorkers;
+    private final long warmUpNanos;
+    private final long probeWindowNanos;
+    private final NanoClock clock;
+    private final List<Integer> candidates = new ArrayList<>();
+    private final double[] candidateRates;  // DKs per second
+    private final ResizableSemaphore permits;
+    private int activeWorkers;
+    private int candidateIndex = -1;  // -1: warming up
+    private boolean probing = true;
+    private long windowStartNanos = 0;
+    private int windowDiagnosisKeys = 0;
+    private final StringBuilder decisions = new StringBuilder();
+
+    public ParallelismController(File file, int maxWorkers) {
+        this(file, maxWorkers, defaultWarmUpMillis, defaultProbeWindowMillis);
+    }
+
+    public ParallelismController(File file, int maxWorkers, long warmUpMillis, long probeWindowMillis) {
+        this(file, maxWorkers, warmUpMillis, probeWindowMillis, systemClock);
+    }
+
+    /*
+     The windows are measured with the clock, e.g. a fake one in tests.
+     */
+    public ParallelismController(File file, int maxWorkers, long warmUpMillis, long probeWindowMillis,
+                                 NanoClock clock) {
+        this.file = file;
+        this.clock = clock;
+        this.maxWorkers = Math.max(1, maxWorkers);
+        this.warmUpNanos = warmUpMillis * 1000000L;
+        this.probeWindowNanos = probeWindowMillis * 1000000L;
+        int savedWorkers = load();
+        if (savedWorkers > 0) {
+            addCandidate(savedWorkers);
+            addCandidate(savedWorkers + 1);
+            addCandidate(savedWorkers - 1);
+        } else {
+            addCandidate(this.maxWorkers);
+            addCandidate((3 * this.maxWorkers + 3) / 4);
+            addCandidate(this.maxWorkers / 2);
+            addCandidate(this.maxWorkers / 4);
+        }
+        candidateRates = new double[candidates.size()];
+        activeWorkers = candidates.get(0);
+        permits = new ResizableSemaphore(activeWorkers);
+        probing = candidates.size() > 1;
+        log(String.format(Locale.ROOT, "%d cores, %s, candidates %s", this.maxWorkers,
+                (savedWorkers > 0) ? "saved " + savedWorkers + " workers" : "nothing saved", candidates));
+    }
+
+    private void addCandidate(int numWorkers) {
+        if (numWorkers >= 1 && numWorkers <= maxWorkers && !candidates.contains(numWorkers)) {
+            candidates.add(numWorkers);
+        }
+    }
+
+    /*
+     Called by a worker before it matches a chunk. Blocks while too many other workers are active.
+     */
+    public void acquire() {
+        permits.acquireUninterruptibly();
+        synchronized (this) {
+            if (windowStartNanos == 0) {
+                windowStartNanos = clock.nanoTime();
+            }
+        }
+    }
+
+    /*
+     Called by a worker after it has matched a chunk of numDiagnosisKeys DKs.
+     */
+    public void release(int numDiagnosisKeys) {
+        permits.release();
+        synchronized (this) {
+            if (!probing) {
+                return;
+            }
+            windowDiagnosisKeys += numDiagnosisKeys;
+            long now = clock.nanoTime();
+            long windowNanos = now - windowStartNanos;
+            if (windowNanos < ((candidateIndex < 0) ? warmUpNanos : probeWindowNanos)) {
+                return;
+            }
+            if (candidateIndex >= 0) {
+                candidateRates[candidateIndex] = windowDiagnosisKeys * 1e9 / windowNanos;
+                log(String.format(Locale.ROOT, "%d workers: %.0f DKs/s", activeWorkers,
+                        candidateRates[candidateIndex]));
+            }
+            candidateIndex++;
+            if (candidateIndex < candidates.size()) {
+                setActiveWorkers(candidates.get(candidateIndex));
+            } else {
+                int best = 0;
+                for (int i = 1; i < candidates.size(); i++) {
+                    if (candidateRates[i] > candidateRates[best]) {
+                        best = i;
+                    }
+                }
+                setActiveWorkers(candidates.get(best));
+                probing = false;
+                log("chose " + activeWorkers + " workers");
+                save();
+            }
+            windowStartNanos = now;
+            windowDiagnosisKeys = 0;
+        }
+    }
+
+    private void setActiveWorkers(int numWorkers) {
+        if (numWorkers > activeWorkers) {
+            permits.release(numWorkers - activeWorkers);
+        } else if (numWorkers < activeWorkers) {
+            permits.reduce(activeWorkers - numWorkers);
+        }
+        activeWorkers = numWorkers;
+    }
+
+    public synchronized int getActiveWorkers() {
+        return activeWorkers;
+    }
+
+    /*
+     False if the run was too short to try all candidates (then nothing is saved).
+     */
+    public synchronized boolean isDecided() {
+        return !probing;
+    }
+
+    private void log(String decision) {
+        Log.d(TAG, decision);
+        decisions.append(decision).append('\n');
+    }
+
+    public synchronized String getDecisions() {
+        return decisions.toString();
+    }
+
+    private int load() {
+        if (file == null || !file.exists()) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != magic || in.readInt() != version) {
+                throw new IOException("Invalid header");
+            }
+            int savedMaxWorkers = in.readInt();
+            int savedWorkers = in.readInt();
+            if (savedMaxWorkers != maxWorkers) {
+                return 0;  // another device, or cores have been switched off
+            }
+            return savedWorkers;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read saved parallelism: " + e);
+            return 0;
+        }
+    }
+
+    private void save() {
+        if (file == null) {
+            return;
+        }
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(magic);
+            out.writeInt(version);
+            out.writeInt(maxWorkers);
+            out.writeInt(activeWorkers);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save parallelism.", e);
+        }
+    }
+}
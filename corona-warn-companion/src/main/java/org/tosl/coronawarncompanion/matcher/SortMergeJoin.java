@@ -0,0 +1,131 @@
+/*
+ * Corona-Warn-Companion. An app that shows COVID-19 Exposure Notifications details.
+ * Copyright (C) 2020  Michael Huebler <corona-warn-companion@tosl.org> and other contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tosl.coronawarncompanion.matcher;
+
+import org.tosl.coronawarncompanion.rpis.RpiIntervalIndex;
+import org.tosl.coronawarncompanion.rpis.RpiList;
+import org.tosl.coronawarncompanion.rpis.SortedRpiTable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ Collects the generated RPIs of a batch of Diagnosis Keys in packed arrays,
+ sorts them, and merge-joins them against the sorted observed RPIs.
+ The matches are exactly the ones that RpiList.searchForRpiOnDaySinceEpochUTCWith2HoursTolerance() would find.
+ */
+class SortMergeJoin {
+
+    static class Match {
+        final int dkIndex;
+        final int intervalNumber;
+        final RpiList.RpiEntry rpiEntry;
+
+        Match(int dkIndex, int intervalNumber, RpiList.RpiEntry rpiEntry) {
+            this.dkIndex = dkIndex;
+            this.intervalNumber = intervalNumber;
+            this.rpiEntry = rpiEntry;
+        }
+    }
+
+    private long[] high;
+    private long[] low;
+    private long[] payload;  // dkIndex (upper 32 bits), intervalNumber (lower 32 bits)
+    private int count = 0;
+
+    SortMergeJoin(int initialCapacity) {
+        high = new long[initialCapacity];
+        low = new long[initialCapacity];
+        payload = new long[initialCapacity];
+    }
+
+    void clear() {
+        count = 0;
+    }
+
+    void add(long rpiHigh, long rpiLow, int dkIndex, int intervalNumber) {
+        if (count == high.length) {
+            int newCapacity = 2 * high.length + 1;
+            high = Arrays.copyOf(high, newCapacity);
+            low = Arrays.copyOf(low, newCapacity);
+            payload = Arrays.copyOf(payload, newCapacity);
+        }
+        high[count] = rpiHigh;
+        low[count] = rpiLow;
+        payload[count] = ((long) dkIndex << 32) | (intervalNumber & 0xFFFFFFFFL);
+        count++;
+    }
+
+    /*
+     Returns the matches, sorted by dkIndex and intervalNumber,
+     i.e. in the order in which the hash engine finds them.
+     */
+    List<Match> join(SortedRpiTable observed) {
+        SortedRpiTable.sort(high, low, payload, 0, count);
+
+        List<Match> matches = new ArrayList<>();
+        int g = 0;
+        int o = 0;
+        while (g < count && o < observed.size) {
+            int cmp = SortedRpiTable.compare(high[g], low[g], observed.rpiHigh[o], observed.rpiLow[o]);
+            if (cmp < 0) {
+                g++;
+            } else if (cmp > 0) {
+                o++;
+            } else {
+                int oEnd = o + 1;
+                while (oEnd < observed.size && observed.rpiHigh[oEnd] == high[g] && observed.rpiLow[oEnd] == low[g]) {
+                    oEnd++;
+                }
+                long rpiHigh = high[g];
+                long rpiLow = low[g];
+                while (g < count && high[g] == rpiHigh && low[g] == rpiLow) {
+                    int dkIndex = (int) (payload[g] >>> 32);
+                    int intervalNumber = (int) payload[g];
+                    RpiList.RpiEntry rpiEntry = findInRun(observed, o, oEnd, intervalNumber);
+                    if (rpiEntry != null) {
+                        matches.add(new Match(dkIndex, intervalNumber, rpiEntry));
+                    }
+                    g++;
+                }
+                o = oEnd;
+            }
+        }
+        Collections.sort(matches, (m1, m2) -> (m1.dkIndex != m2.dkIndex) ?
+                Integer.compare(m1.dkIndex, m2.dkIndex) : Integer.compare(m1.intervalNumber, m2.intervalNumber));
+        return matches;
+    }
+
+    // same tolerance check as in the hash search, which also finds the earliest entry within the tolerance
+    private static RpiList.RpiEntry findInRun(SortedRpiTable observed, int from, int to, int intervalNumber) {
+        RpiList.RpiEntry result = null;
+        int resultStartInterval = Integer.MAX_VALUE;
+        for (int o = from; o < to; o++) {
+            int startInterval = observed.startIntervals[o];
+            if (Math.abs(intervalNumber - startInterval) <= RpiIntervalIndex.toleranceIntervals &&
+                    startInterval < resultStartInterval) {
+                result = observed.entries[o];
+                resultStartInterval = startInterval;
+            }
+        }
+        return result;
+    }
+}
@@ -10,11 +10,15 @@ import android.util.Log;
 import com.google.protobuf.ByteString;
 
 import org.tosl.coronawarncompanion.gmsreadout.ContactRecordsProtos;
+import org.tosl.coronawarncompanion.gmsreadout.RootShell;
 import org.tosl.coronawarncompanion.rpis.RpiList;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 
-import static org.tosl.coronawarncompanion.gmsreadout.Sudo.sudo;
+import static org.tosl.coronawarncompanion.gmsreadout.Sudo.openFile;
 import static org.tosl.coronawarncompanion.tools.Utils.byteArrayToHexString;
 import static org.tosl.coronawarncompanion.tools.Utils.getDaysFromMillis;
 
@@ -36,25 +40,43 @@ public class MicroGDbOnDisk {
     }
 
     public void copyFromGMS() {
-        // Copy the microG GMS database to local app cache
+        // Stream the microG GMS database through the root shell into the app's private cache,
+        // without renaming or copying anything in the GMS directory.
+        // The copy only replaces the previous one if cat has read the whole database.
         Log.d(TAG, "Trying to copy microG database");
-        File cacheDir = context.getExternalCacheDir();
-        if (cacheDir == null) {
-            cacheDir = context.getCacheDir();
-        }
-        assert cacheDir != null;
+        File cacheDir = context.getCacheDir();
         cachePathStr = cacheDir.getPath();
-
-        // First rename the database, then copy it, then rename to the original name
-        String result = sudo(
-                "rm "+cachePathStr+"/"+dbNameModified,
-                "mv "+gmsPathStr+"/"+dbName+" "+gmsPathStr+"/"+dbNameModified,
-                "cp "+gmsPathStr+"/"+dbNameModified+" "+cachePathStr+"/",
-                "mv "+gmsPathStr+"/"+dbNameModified+" "+gmsPathStr+"/"+dbName,
-                "ls -la "+cachePathStr+"/"+dbNameModified
-        );
-        Log.d(TAG, "Result from trying to copy LevelDB: "+result);
-        if (result.length() < 10) {
+        File dbFile = new File(cacheDir, dbNameModified);
+        File tempFile = new File(cacheDir, dbNameModified + ".tmp");
+
+        long numBytes = 0;
+        byte[] buffer = new byte[65536];
+        try {
+            try (RootShell.CommandOutput inputStream = openFile(gmsPathStr+"/"+dbName);
+                 OutputStream outputStream = new FileOutputStream(tempFile)) {
+                int read;
+                while ((read = inputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, read);
+                    numBytes += read;
+                }
+                if (inputStream.getExitCode() != 0) {
+                    throw new IOException("cat exited with " + inputStream.getExitCode());
+                }
+            }
+            if (!tempFile.renameTo(dbFile)) {
+                throw new IOException("Could not rename " + tempFile);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not copy the microG database", e);
+            numBytes = 0;
+            // don't read a partial copy, or an outdated one
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            //noinspection ResultOfMethodCallIgnored
+            dbFile.delete();
+        }
+        Log.d(TAG, "Copied microG database: " + numBytes + " bytes");
+        if (numBytes == 0) {
             Log.e(TAG, "ERROR: Super User rights not granted!");
         }
     }
@@ -0,0 +1,128 @@
+/*
+ * Corona-Warn-Companion. An app that shows COVID-19 Exposure Notifications details.
+ * Copyright (C) 2020  Michael Huebler <corona-warn-companion@tosl.org> and other contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tosl.coronawarncompanion.rpis;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ Blocked Bloom filter over RPIs: each RPI sets 7 bits inside one 512-bit block (one cache line),
+ so a query touches a single cache line.
+ RPIs are AES output, i.e. uniformly distributed, so their bits are used directly instead of hash functions:
+ the high half selects the block, the low half provides the 7 bit positions (9 bits each).
+ */
+public class RpiBloomFilter {
+    public static final int defaultBitsPerRpi = 12;  // gives about 1% false positives
+    private static final int numBitsPerBlock = 512;
+    private static final int numLongsPerBlock = numBitsPerBlock / 64;
+    private static final int numBitsSetPerRpi = 7;
+
+    private final long[] bits;
+    private final int blockMask;
+
+    public RpiBloomFilter(int expectedNumRpis, int bitsPerRpi) {
+        int numBlocks = 1;
+        while ((long) numBlocks * numBitsPerBlock < (long) expectedNumRpis * bitsPerRpi) {
+            numBlocks <<= 1;
+        }
+        bits = new long[numBlocks * numLongsPerBlock];
+        blockMask = numBlocks - 1;
+    }
+
+    private int blockStart(long high) {
+        return ((int) (high >>> 32) & blockMask) * numLongsPerBlock;
+    }
+
+    public void add(long high, long low) {
+        int blockStart = blockStart(high);
+        for (int i = 0; i < numBitsSetPerRpi; i++) {
+            int bit = (int) (low >>> (9 * i)) & (numBitsPerBlock - 1);
+            bits[blockStart + (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /*
+     Returns false if the RPI is definitely not in the filter.
+     */
+    public boolean mightContain(long high, long low) {
+        int blockStart = blockStart(high);
+        for (int i = 0; i < numBitsSetPerRpi; i++) {
+            int bit = (int) (low >>> (9 * i)) & (numBitsPerBlock - 1);
+            if ((bits[blockStart + (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long getSizeInBytes() {
+        return 8L * bits.length;
+    }
+
+    /*
+     Counters for sizing the filter. Matcher threads count locally and add their totals at the end.
+     The matcher doesn't check whether an RPI is in the RpiList at all, only whether it matches, so the
+     positives without a match are counted instead of the false positives. They also include the RPIs that were
+     observed, but not within the 2 hours tolerance, so they are an upper bound of the false positives.
+     */
+    public static class Statistics {
+        private final AtomicLong numQueries = new AtomicLong();
+        private final AtomicLong numPositives = new AtomicLong();
+        private final AtomicLong numPositivesWithoutMatch = new AtomicLong();
+
+        public void add(long queries, long positives, long positivesWithoutMatch) {
+            numQueries.addAndGet(queries);
+            numPositives.addAndGet(positives);
+            numPositivesWithoutMatch.addAndGet(positivesWithoutMatch);
+        }
+
+        public long getNumQueries() {
+            return numQueries.get();
+        }
+
+        public long getNumPositives() {
+            return numPositives.get();
+        }
+
+        // positive answers for RPIs that don't match: the false positives, and the rare RPIs observed at another time
+        public long getNumPositivesWithoutMatch() {
+            return numPositivesWithoutMatch.get();
+        }
+
+        public double getHitRate() {
+            long queries = getNumQueries();
+            return (queries > 0) ? (double) getNumPositives() / queries : 0.0;
+        }
+
+        // an upper bound of the false positive rate
+        public double getPositiveWithoutMatchRate() {
+            long nonMatching = getNumQueries() - (getNumPositives() - getNumPositivesWithoutMatch());
+            return (nonMatching > 0) ? (double) getNumPositivesWithoutMatch() / nonMatching : 0.0;
+        }
+
+        @Override
+        public String toString() {
+            return "RPI filter: " + getNumQueries() + " queries, " + getNumPositives() + " positives (hit rate " +
+                    String.format(Locale.ROOT, "%.4f", getHitRate()) + "), " +
+                    getNumPositivesWithoutMatch() + " positives without match (rate " +
+                    String.format(Locale.ROOT, "%.4f", getPositiveWithoutMatchRate()) +
+                    ", an upper bound of the false positive rate)";
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Corona-Warn-Companion. An app that shows COVID-19 Exposure Notifications details.
+ * Copyright (C) 2020  Michael Huebler <corona-warn-companion@tosl.org> and other contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tosl.coronawarncompanion.rpis;
+
+import java.util.Collection;
+
+/*
+ Frozen, read-optimized hash index of RPIs.
+ Each RPI is stored as two longs (the big endian halves of the 16 RPI bytes) in flat arrays,
+ using open addressing with linear probing, so a lookup does not need to follow any pointers until there's a hit.
+ In fingerprint-only mode, the table only keeps a 64-bit fingerprint per RPI,
+ and the full RPI is compared against the referenced RpiEntry only if the fingerprint matches.
+ RpiList looks RPIs up in the RpiIntervalIndex instead, because a match also depends on the start time of the RPI.
+ This index is for lookups by the RPI alone.
+ */
+public class RpiIndex {
+    private static final int REFERENCE_SIZE = 4;  // bytes per object reference (compressed references on ART)
+    private static final int ARRAY_HEADER_SIZE = 16;
+
+    private final boolean fingerprintOnly;
+    private final int mask;
+    private final long[] keysHigh;  // fingerprints in fingerprint-only mode
+    private final long[] keysLow;   // null in fingerprint-only mode
+    private final RpiList.RpiEntry[] entries;
+    private RpiList.RpiEntry zeroKeyEntry = null;  // the all-zero RPI can't be stored in the table (0 marks empty slots)
+    private int size = 0;
+
+    private RpiIndex(int expectedSize, boolean fingerprintOnly) {
+        int capacity = 4;
+        while (capacity < 2 * expectedSize) {  // keep the load factor <= 0.5
+            capacity <<= 1;
+        }
+        this.fingerprintOnly = fingerprintOnly;
+        this.mask = capacity - 1;
+        this.keysHigh = new long[capacity];
+        this.keysLow = fingerprintOnly ? null : new long[capacity];
+        this.entries = new RpiList.RpiEntry[capacity];
+    }
+
+    public static RpiIndex build(Collection<RpiList.RpiEntry> rpiEntries, boolean fingerprintOnly) {
+        RpiIndex index = new RpiIndex(rpiEntries.size(), fingerprintOnly);
+        for (RpiList.RpiEntry rpiEntry : rpiEntries) {
+            index.put(rpiEntry);
+        }
+        return index;
+    }
+
+    private static int slotFor(long high, long low) {
+        long h = (high ^ low) * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32);
+    }
+
+    private static long fingerprint(long high, long low) {
+        long fp = high ^ Long.rotateLeft(low, 32);
+        return (fp != 0) ? fp : 1;
+    }
+
+    private void put(RpiList.RpiEntry rpiEntry) {
+        long high = rpiEntry.rpiBytes.getHigh();
+        long low = rpiEntry.rpiBytes.getLow();
+        if (high == 0 && low == 0) {
+            if (zeroKeyEntry == null) {
+                size++;
+            }
+            zeroKeyEntry = rpiEntry;
+            return;
+        }
+        long key = fingerprintOnly ? fingerprint(high, low) : high;
+        int slot = slotFor(high, low) & mask;
+        while (entries[slot] != null) {
+            if (keysHigh[slot] == key && (fingerprintOnly ? entries[slot].rpiBytes.equals(rpiEntry.rpiBytes) :
+                    keysLow[slot] == low)) {
+                entries[slot] = rpiEntry;  // same RPI again: replace, like HashMap.put()
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keysHigh[slot] = key;
+        if (!fingerprintOnly) {
+            keysLow[slot] = low;
+        }
+        entries[slot] = rpiEntry;
+        size++;
+    }
+
+    /*
+     Returns the RpiEntry for the RPI given by its two big endian halves, or null if the RPI is not in the index.
+     */
+    public RpiList.RpiEntry get(long high, long low) {
+        if (high == 0 && low == 0) {
+            return zeroKeyEntry;
+        }
+        int slot = slotFor(high, low) & mask;
+        if (fingerprintOnly) {
+            long fp = fingerprint(high, low);
+            long key;
+            while ((key = keysHigh[slot]) != 0) {
+                if (key == fp) {
+                    RpiList.RpiEntry rpiEntry = entries[slot];
+                    if (rpiEntry.rpiBytes.getHigh() == high && rpiEntry.rpiBytes.getLow() == low) {
+                        return rpiEntry;
+                    }
+                }
+                slot = (slot + 1) & mask;
+            }
+        } else {
+            while (keysHigh[slot] != 0 || keysLow[slot] != 0) {
+                if (keysHigh[slot] == high && keysLow[slot] == low) {
+                    return entries[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFingerprintOnly() {
+        return fingerprintOnly;
+    }
+
+    public RpiList.RpiEntry[] getEntries() {
+        RpiList.RpiEntry[] result = new RpiList.RpiEntry[size];
+        int pos = 0;
+        if (zeroKeyEntry != null) {
+            result[pos++] = zeroKeyEntry;
+        }
+        for (RpiList.RpiEntry rpiEntry : entries) {
+            if (rpiEntry != null) {
+                result[pos++] = rpiEntry;
+            }
+        }
+        return result;
+    }
+
+    /*
+     Estimated heap size of the index tables, not including the RpiEntries themselves.
+     */
+    public long getMemoryFootprintBytes() {
+        int capacity = mask + 1;
+        long bytes = ARRAY_HEADER_SIZE + 8L * capacity;
+        if (!fingerprintOnly) {
+            bytes += ARRAY_HEADER_SIZE + 8L * capacity;
+        }
+        bytes += ARRAY_HEADER_SIZE + (long) REFERENCE_SIZE * capacity;
+        return bytes;
+    }
+}
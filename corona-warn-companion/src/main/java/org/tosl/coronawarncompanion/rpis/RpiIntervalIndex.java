@@ -0,0 +1,229 @@
+/*
+ * Corona-Warn-Companion. An app that shows COVID-19 Exposure Notifications details.
+ * Copyright (C) 2020  Michael Huebler <corona-warn-companion@tosl.org> and other contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tosl.coronawarncompanion.rpis;
+
+import java.util.Collection;
+
+import static org.tosl.coronawarncompanion.tools.Utils.getENINFromSeconds;
+
+/*
+ Frozen index of all observed RPIs, bucketed by the ENIN (10-minute interval) of their start time.
+ Each RPI is stored once, as two longs (the big endian halves of the 16 RPI bytes) in flat arrays,
+ grouped by bucket and sorted by RPI within each bucket.
+ A lookup for a generated RPI only binary-searches the buckets that overlap the 2 hours tolerance window
+ around its interval, and then checks the tolerance exactly.
+ The bucket width is configurable, from one ENIN (10 minutes) up to whole days.
+ */
+public class RpiIntervalIndex {
+    public static final int toleranceIntervals = 6 * 2;  // 2 hours
+    public static final int defaultBucketWidth = 6;      // 1 hour: up to 5 buckets per lookup
+    private static final int REFERENCE_SIZE = 4;  // bytes per object reference (compressed references on ART)
+    private static final int ARRAY_HEADER_SIZE = 16;
+
+    private final int bucketWidth;
+    private final int baseInterval;    // ENIN of the start of the first bucket
+    private final int[] bucketOffsets;  // rows of bucket b: [bucketOffsets[b], bucketOffsets[b + 1])
+    private final long[] rpiHigh;
+    private final long[] rpiLow;
+    private final int[] startIntervals;  // ENIN of the start time of each entry
+    private final RpiList.RpiEntry[] entries;
+
+    private RpiIntervalIndex(int bucketWidth, int baseInterval, int[] bucketOffsets, long[] rpiHigh, long[] rpiLow,
+                             int[] startIntervals, RpiList.RpiEntry[] entries) {
+        this.bucketWidth = bucketWidth;
+        this.baseInterval = baseInterval;
+        this.bucketOffsets = bucketOffsets;
+        this.rpiHigh = rpiHigh;
+        this.rpiLow = rpiLow;
+        this.startIntervals = startIntervals;
+        this.entries = entries;
+    }
+
+    public static RpiIntervalIndex build(Collection<RpiList.RpiEntry> rpiEntries, int bucketWidth) {
+        if (bucketWidth < 1) {
+            throw new IllegalArgumentException("Invalid bucket width: " + bucketWidth);
+        }
+        int size = rpiEntries.size();
+        int minInterval = Integer.MAX_VALUE;
+        int maxInterval = Integer.MIN_VALUE;
+        for (RpiList.RpiEntry rpiEntry : rpiEntries) {
+            int interval = getENINFromSeconds(rpiEntry.startTimeStampUTC);
+            minInterval = Math.min(minInterval, interval);
+            maxInterval = Math.max(maxInterval, interval);
+        }
+        int baseInterval = (size > 0) ? minInterval - (minInterval % bucketWidth) : 0;
+        int numBuckets = (size > 0) ? (maxInterval - baseInterval) / bucketWidth + 1 : 0;
+
+        // counting sort by bucket
+        int[] bucketOffsets = new int[numBuckets + 1];
+        for (RpiList.RpiEntry rpiEntry : rpiEntries) {
+            bucketOffsets[(getENINFromSeconds(rpiEntry.startTimeStampUTC) - baseInterval) / bucketWidth + 1]++;
+        }
+        for (int b = 0; b < numBuckets; b++) {
+            bucketOffsets[b + 1] += bucketOffsets[b];
+        }
+        int[] nextRow = new int[numBuckets];
+        System.arraycopy(bucketOffsets, 0, nextRow, 0, numBuckets);
+        long[] rpiHigh = new long[size];
+        long[] rpiLow = new long[size];
+        long[] rowIndex = new long[size];
+        RpiList.RpiEntry[] unsortedEntries = new RpiList.RpiEntry[size];
+        int i = 0;
+        for (RpiList.RpiEntry rpiEntry : rpiEntries) {
+            int row = nextRow[(getENINFromSeconds(rpiEntry.startTimeStampUTC) - baseInterval) / bucketWidth]++;
+            rpiHigh[row] = rpiEntry.rpiBytes.getHigh();
+            rpiLow[row] = rpiEntry.rpiBytes.getLow();
+            rowIndex[row] = i;
+            unsortedEntries[i++] = rpiEntry;
+        }
+
+        // sort by RPI within each bucket
+        RpiList.RpiEntry[] entries = new RpiList.RpiEntry[size];
+        int[] startIntervals = new int[size];
+        for (int b = 0; b < numBuckets; b++) {
+            SortedRpiTable.sort(rpiHigh, rpiLow, rowIndex, bucketOffsets[b], bucketOffsets[b + 1]);
+        }
+        for (int row = 0; row < size; row++) {
+            entries[row] = unsortedEntries[(int) rowIndex[row]];
+            startIntervals[row] = getENINFromSeconds(entries[row].startTimeStampUTC);
+        }
+        for (int b = 0; b < numBuckets; b++) {
+            sortSameRpisByStartInterval(rpiHigh, rpiLow, startIntervals, entries, bucketOffsets[b], bucketOffsets[b + 1]);
+        }
+        return new RpiIntervalIndex(bucketWidth, baseInterval, bucketOffsets, rpiHigh, rpiLow, startIntervals, entries);
+    }
+
+    // the same RPI can have several entries (on different days): the earliest one is found first
+    private static void sortSameRpisByStartInterval(long[] rpiHigh, long[] rpiLow, int[] startIntervals,
+                                                    RpiList.RpiEntry[] entries, int from, int to) {
+        for (int i = from + 1; i < to; i++) {
+            for (int j = i; j > from && rpiHigh[j] == rpiHigh[j - 1] && rpiLow[j] == rpiLow[j - 1] &&
+                    startIntervals[j] < startIntervals[j - 1]; j--) {
+                int tmpInterval = startIntervals[j]; startIntervals[j] = startIntervals[j - 1]; startIntervals[j - 1] = tmpInterval;
+                RpiList.RpiEntry tmpEntry = entries[j]; entries[j] = entries[j - 1]; entries[j - 1] = tmpEntry;
+            }
+        }
+    }
+
+    // -1 for intervals before the first bucket
+    private int getBucket(int intervalNumber) {
+        int offset = intervalNumber - baseInterval;
+        return (offset >= 0) ? offset / bucketWidth : -1;
+    }
+
+    /*
+     Returns the first row in [from, to) whose RPI is not smaller than the given one.
+     */
+    private int lowerBound(long high, long low, int from, int to) {
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (SortedRpiTable.compare(rpiHigh[mid], rpiLow[mid], high, low) < 0) {
+                from = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+        return from;
+    }
+
+    /*
+     Returns the entry with the given RPI whose start time is within the 2 hours tolerance around intervalNumber
+     (the earliest one, if there are several), or null if there is none.
+     */
+    public RpiList.RpiEntry get(long high, long low, int intervalNumber) {
+        int firstBucket = Math.max(getBucket(intervalNumber - toleranceIntervals), 0);
+        int lastBucket = Math.min(getBucket(intervalNumber + toleranceIntervals), bucketOffsets.length - 2);
+        for (int b = firstBucket; b <= lastBucket; b++) {
+            int end = bucketOffsets[b + 1];
+            for (int row = lowerBound(high, low, bucketOffsets[b], end);
+                 row < end && rpiHigh[row] == high && rpiLow[row] == low; row++) {
+                if (Math.abs(intervalNumber - startIntervals[row]) <= toleranceIntervals) {
+                    return entries[row];
+                }
+            }
+        }
+        return null;
+    }
+
+    /*
+     Returns the entries whose start interval is in [fromInterval, toInterval] as a table sorted by RPI bytes.
+     Only the rows of the buckets that overlap the range are looked at.
+     */
+    public SortedRpiTable getSortedRpiTable(int fromInterval, int toInterval) {
+        int numBuckets = bucketOffsets.length - 1;
+        int firstRow = bucketOffsets[Math.min(Math.max(getBucket(fromInterval), 0), numBuckets)];
+        int endRow = bucketOffsets[Math.min(getBucket(toInterval) + 1, numBuckets)];
+        int size = 0;
+        for (int row = firstRow; row < endRow; row++) {
+            if (startIntervals[row] >= fromInterval && startIntervals[row] <= toInterval) {
+                size++;
+            }
+        }
+        long[] sliceHigh = new long[size];
+        long[] sliceLow = new long[size];
+        int[] sliceStartIntervals = new int[size];
+        RpiList.RpiEntry[] sliceEntries = new RpiList.RpiEntry[size];
+        int i = 0;
+        for (int row = firstRow; row < endRow; row++) {
+            if (startIntervals[row] >= fromInterval && startIntervals[row] <= toInterval) {
+                sliceHigh[i] = rpiHigh[row];
+                sliceLow[i] = rpiLow[row];
+                sliceStartIntervals[i] = startIntervals[row];
+                sliceEntries[i++] = entries[row];
+            }
+        }
+        return new SortedRpiTable(sliceHigh, sliceLow, sliceStartIntervals, sliceEntries, size);
+    }
+
+    public int size() {
+        return entries.length;
+    }
+
+    public int getBucketWidth() {
+        return bucketWidth;
+    }
+
+    /*
+     All entries, grouped by bucket. Don't modify.
+     */
+    public RpiList.RpiEntry[] getEntries() {
+        return entries;
+    }
+
+    public long[] getRpiHigh() {
+        return rpiHigh;
+    }
+
+    public long[] getRpiLow() {
+        return rpiLow;
+    }
+
+    public int[] getStartIntervals() {
+        return startIntervals;
+    }
+
+    /*
+     Estimated heap size of the index tables, not including the RpiEntries themselves.
+     */
+    public long getMemoryFootprintBytes() {
+        int size = entries.length;
+        return 4 * ARRAY_HEADER_SIZE + 8L * size + 8L * size + 4L * size + (long) REFERENCE_SIZE * size +
+                ARRAY_HEADER_SIZE + 4L * bucketOffsets.length;
+    }
+}
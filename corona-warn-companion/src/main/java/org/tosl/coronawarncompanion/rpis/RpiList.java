@@ -23,6 +23,7 @@ import android.util.Log;
 import org.tosl.coronawarncompanion.CWCApplication;
 import org.tosl.coronawarncompanion.gmsreadout.ContactRecordsProtos;
 import org.tosl.coronawarncompanion.matcher.Crypto;
+import org.tosl.coronawarncompanion.matcher.MatchingMetrics;
 
 import java.util.*;
 
@@ -31,7 +32,7 @@ import static java.lang.Math.abs;
 import static org.tosl.coronawarncompanion.tools.Utils.getDaysFromSeconds;
 import static org.tosl.coronawarncompanion.tools.Utils.getDaysSinceEpochFromENIN;
 import static org.tosl.coronawarncompanion.tools.Utils.getENINFromSeconds;
-import static org.tosl.coronawarncompanion.tools.Utils.getMillisFromSeconds;
+import static org.tosl.coronawarncompanion.tools.Utils.standardRollingPeriod;
 
 public class RpiList {
     private static final String TAG = "RpiList";
@@ -45,11 +46,19 @@ public class RpiList {
     private final int timeZoneOffsetSeconds;
     private final Random rand;
     private boolean haveLoc;
+    private int intervalBucketWidth;
+    private volatile boolean frozen;
+    private RpiIntervalIndex rpiIntervalIndex;
+    private SortedRpiTable sortedRpiTable;
+    private RpiBloomFilter rpiBloomFilter;
+    private final RpiBloomFilter.Statistics rpiBloomFilterStatistics;
+    private BitSet matchableIntervals;  // ENINs for which a generated RPI could match, relative to matchableIntervalsBase
+    private int matchableIntervalsBase;
+    private final Map<Integer, Long> dayFingerprints = new HashMap<>();  // daysSinceEpochUTC, fingerprint of the entries
 
     public static class ListsPerDayUTC {
+        // used while loading, cleared by freeze(), which moves all entries to the RpiIntervalIndex:
         public final HashMap<RpiBytes, RpiEntry> rpiEntries = new HashMap<>(2048);     // RpiEntries
-        public final HashMap<RpiBytes, RpiEntry> rpiEntriesEarly = new HashMap<>(512); // (same) - first 2 hours of the day only
-        public final HashMap<RpiBytes, RpiEntry> rpiEntriesLate = new HashMap<>(512);  // (same) - last 2 hours of the day only
     }
 
     public static class RpiBytes {
@@ -74,6 +83,26 @@ public class RpiList {
                     ((bytes[15] & 0xFF));
         }
 
+        public long getHigh() {
+            return ((long) values[0] << 32) | (values[1] & 0xFFFFFFFFL);
+        }
+
+        public long getLow() {
+            return ((long) values[2] << 32) | (values[3] & 0xFFFFFFFFL);
+        }
+
+        // read 8 bytes in big endian order, i.e. the same way getHigh() and getLow() see the RPI bytes
+        public static long getLongFromBytes(byte[] bytes, int offset) {
+            return ((long) (bytes[offset] & 0xFF) << 56) |
+                    ((long) (bytes[offset + 1] & 0xFF) << 48) |
+                    ((long) (bytes[offset + 2] & 0xFF) << 40) |
+                    ((long) (bytes[offset + 3] & 0xFF) << 32) |
+                    ((long) (bytes[offset + 4] & 0xFF) << 24) |
+                    ((long) (bytes[offset + 5] & 0xFF) << 16) |
+                    ((long) (bytes[offset + 6] & 0xFF) << 8) |
+                    ((long) (bytes[offset + 7] & 0xFF));
+        }
+
         public byte[] getBytes() {
             byte[] bytes = new byte[16];
             bytes[0] =  (byte) ((values[0] & 0xFF000000) >> 24);
@@ -130,6 +159,11 @@ public class RpiList {
         timeZoneOffsetSeconds = CWCApplication.getTimeZoneOffsetSeconds();
         rand = new Random();  // not very random, but sufficient for the use case here
         haveLoc = false;
+        intervalBucketWidth = RpiIntervalIndex.defaultBucketWidth;
+        frozen = false;
+        sortedRpiTable = null;
+        rpiBloomFilter = null;
+        rpiBloomFilterStatistics = new RpiBloomFilter.Statistics();
     }
 
     public boolean getHaveLocation() {
@@ -140,17 +174,160 @@ public class RpiList {
         haveLoc = value;
     }
 
+    /*
+     Bucket width of the RpiIntervalIndex in ENINs (10 minutes), only effective before freeze().
+     */
+    public void setIntervalBucketWidth(int intervalBucketWidth) {
+        this.intervalBucketWidth = intervalBucketWidth;
+    }
+
+    /*
+     Called when loading has finished: builds the read-optimized RpiIntervalIndex over all days
+     and the Bloom filter over all RPIs, and drops the HashMaps that were only needed while loading.
+     No more entries can be added afterwards.
+     */
+    public synchronized void freeze() {
+        if (frozen) {
+            return;
+        }
+        int numRpis = 0;
+        for (ListsPerDayUTC listsPerDayUTC : mapOfDaysUTCAndListsOfRPIs.values()) {
+            numRpis += listsPerDayUTC.rpiEntries.size();
+        }
+        rpiBloomFilter = new RpiBloomFilter(numRpis, RpiBloomFilter.defaultBitsPerRpi);
+        dayFingerprints.clear();
+        List<RpiEntry> allRpiEntries = new ArrayList<>(numRpis);
+        for (Map.Entry<Integer, ListsPerDayUTC> dayEntry : mapOfDaysUTCAndListsOfRPIs.entrySet()) {
+            ListsPerDayUTC listsPerDayUTC = dayEntry.getValue();
+            long dayFingerprint = listsPerDayUTC.rpiEntries.size();
+            for (RpiEntry rpiEntry : listsPerDayUTC.rpiEntries.values()) {
+                rpiBloomFilter.add(rpiEntry.rpiBytes.getHigh(), rpiEntry.rpiBytes.getLow());
+                dayFingerprint += getFingerprint(rpiEntry);  // a sum, so the order of the entries doesn't matter
+            }
+            dayFingerprints.put(dayEntry.getKey(), dayFingerprint);
+            allRpiEntries.addAll(listsPerDayUTC.rpiEntries.values());
+            listsPerDayUTC.rpiEntries.clear();
+        }
+        rpiIntervalIndex = RpiIntervalIndex.build(allRpiEntries, intervalBucketWidth);
+        buildMatchableIntervals();
+        frozen = true;
+        Log.d(TAG, "Built RPI filter for " + numRpis + " RPIs: " + rpiBloomFilter.getSizeInBytes() + " bytes");
+        Log.d(TAG, "Built RPI index for " + numRpis + " RPIs: " + rpiIntervalIndex.getMemoryFootprintBytes() +
+                " bytes (" + getIndexBytesPerRpi() + " bytes per RPI, buckets of " + intervalBucketWidth + " ENINs)");
+    }
+
+    /*
+     Memory of the RPI index per RPI, not including the RpiEntries themselves.
+     */
+    public long getIndexBytesPerRpi() {
+        if (!frozen) {
+            freeze();
+        }
+        return rpiIntervalIndex.getMemoryFootprintBytes() / Math.max(1, rpiIntervalIndex.size());
+    }
+
+    /*
+     64 bit FNV-1a hash of everything of the entry that can end up in a match, mixed with the SplitMix64 finalizer.
+     */
+    private static long getFingerprint(RpiEntry rpiEntry) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : rpiEntry.rpiBytes.getBytes()) {
+            hash = (hash ^ (b & 0xFF)) * 0x100000001b3L;
+        }
+        for (byte b : rpiEntry.contactRecords.toByteArray()) {
+            hash = (hash ^ (b & 0xFF)) * 0x100000001b3L;
+        }
+        hash = (hash ^ rpiEntry.startTimeStampUTC) * 0x100000001b3L;
+        hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+        return hash ^ (hash >>> 31);
+    }
+
+    /*
+     Returns a fingerprint of all entries of the day (UTC), 0 if there are none.
+     If it is the same as in an earlier RpiList, the day's entries are the same.
+     */
+    public long getDayFingerprint(int daysSinceEpochUTC) {
+        if (!frozen) {
+            freeze();
+        }
+        Long dayFingerprint = dayFingerprints.get(daysSinceEpochUTC);
+        return (dayFingerprint != null) ? dayFingerprint : 0L;
+    }
+
+    public Map<Integer, Long> getDayFingerprints() {
+        if (!frozen) {
+            freeze();
+        }
+        return Collections.unmodifiableMap(dayFingerprints);
+    }
+
+    /*
+     Marks every interval (ENIN) for which searchForRpiOnDaySinceEpochUTCWith2HoursTolerance() could find a match:
+     there must be an entry whose start time is within the 2 hours tolerance.
+     */
+    private void buildMatchableIntervals() {
+        matchableIntervals = new BitSet();
+        matchableIntervalsBase = 0;
+        int[] startIntervals = rpiIntervalIndex.getStartIntervals();
+        if (startIntervals.length == 0) {
+            return;
+        }
+        matchableIntervalsBase = startIntervals[0] - RpiIntervalIndex.toleranceIntervals;
+        for (int startInterval : startIntervals) {
+            matchableIntervalsBase = Math.min(matchableIntervalsBase, startInterval - RpiIntervalIndex.toleranceIntervals);
+        }
+        for (int startInterval : startIntervals) {
+            int from = startInterval - RpiIntervalIndex.toleranceIntervals - matchableIntervalsBase;
+            matchableIntervals.set(from, from + 2 * RpiIntervalIndex.toleranceIntervals + 1);
+        }
+    }
+
+    /*
+     Returns the first interval in [startIntervalNumber, startIntervalNumber + intervalCount)
+     whose RPI could match an observed RPI, or -1 if there is none.
+     */
+    public int getFirstMatchableInterval(int startIntervalNumber, int intervalCount) {
+        if (!frozen) {
+            freeze();
+        }
+        int from = Math.max(startIntervalNumber - matchableIntervalsBase, 0);
+        int to = startIntervalNumber + intervalCount - matchableIntervalsBase;
+        if (from >= to) {
+            return -1;
+        }
+        int first = matchableIntervals.nextSetBit(from);
+        return (first >= 0 && first < to) ? first + matchableIntervalsBase : -1;
+    }
+
+    /*
+     Returns the last interval in [startIntervalNumber, startIntervalNumber + intervalCount)
+     whose RPI could match an observed RPI, or -1 if there is none.
+     */
+    public int getLastMatchableInterval(int startIntervalNumber, int intervalCount) {
+        if (!frozen) {
+            freeze();
+        }
+        int from = Math.max(startIntervalNumber - matchableIntervalsBase, 0);
+        int to = startIntervalNumber + intervalCount - matchableIntervalsBase;
+        if (from >= to) {
+            return -1;
+        }
+        int last = matchableIntervals.previousSetBit(to - 1);
+        return (last >= from) ? last + matchableIntervalsBase : -1;
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
     public void addEntry(Integer daysSinceEpochUTC, byte[] rpiBytes, ContactRecordsProtos.ContactRecords contactRecords) {
+        if (frozen) {
+            throw new IllegalStateException("RpiList is frozen, no more entries can be added");
+        }
         if (contactRecords.getRecordCount() > 0) {  // this check should be required only for DEMO mode --> ignore entries with empty contactRecords
-            // get start and end timestamps of the scan records (UTC)
+            // get the start timestamp of the scan records (UTC)
             int startTimeStampUTC = contactRecords.getRecord(0).getTimestamp();
-            int endTimeStampUTC = contactRecords.getRecord(contactRecords.getRecordCount() - 1).getTimestamp();
-
-            Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
-            calendar.setTimeInMillis(getMillisFromSeconds(startTimeStampUTC));
-            boolean early = (calendar.get(Calendar.HOUR_OF_DAY) <= 1);
-            calendar.setTimeInMillis(getMillisFromSeconds(endTimeStampUTC));
-            boolean late = (calendar.get(Calendar.HOUR_OF_DAY) >= 22);
 
             // also get the start timestamp in local time zone
             int startTimeStampInLocalTZ = startTimeStampUTC + timeZoneOffsetSeconds;
@@ -178,106 +355,132 @@ public class RpiList {
                     startTimeStampUTC);
             if (listsPerDayUTC != null) {
                 listsPerDayUTC.rpiEntries.put(rpiEntry.rpiBytes, rpiEntry);
-                if (early) {
-                    listsPerDayUTC.rpiEntriesEarly.put(rpiEntry.rpiBytes, rpiEntry);
-                }
-                if (late) {
-                    listsPerDayUTC.rpiEntriesLate.put(rpiEntry.rpiBytes, rpiEntry);
-                }
                 mapOfDaysUTCAndListsOfRPIs.put(daysSinceEpochUTC, listsPerDayUTC);
             }
         }
     }
 
+    /*
+     Moves all entries of the segment (e.g. loaded in parallel with this list) into this list,
+     as if they had been added with addEntry() after the entries of this list. The segment must not be used afterwards.
+     */
+    public void merge(RpiList segment) {
+        if (frozen || segment.frozen) {
+            throw new IllegalStateException("RpiList is frozen, no more entries can be added");
+        }
+        for (Map.Entry<Integer, ListsPerDayUTC> dayEntry : segment.mapOfDaysUTCAndListsOfRPIs.entrySet()) {
+            ListsPerDayUTC listsPerDayUTC = mapOfDaysUTCAndListsOfRPIs.get(dayEntry.getKey());
+            if (listsPerDayUTC == null) {
+                mapOfDaysUTCAndListsOfRPIs.put(dayEntry.getKey(), dayEntry.getValue());
+            } else {
+                listsPerDayUTC.rpiEntries.putAll(dayEntry.getValue().rpiEntries);
+            }
+        }
+        for (Map.Entry<Integer, Integer> countEntry : segment.mapOfDailyCountsLocalTZ.entrySet()) {
+            Integer dailyCount = mapOfDailyCountsLocalTZ.get(countEntry.getKey());
+            mapOfDailyCountsLocalTZ.put(countEntry.getKey(),
+                    (dailyCount != null) ? dailyCount + countEntry.getValue() : countEntry.getValue());
+        }
+        haveLoc |= segment.haveLoc;
+        segment.mapOfDaysUTCAndListsOfRPIs.clear();
+        segment.mapOfDailyCountsLocalTZ.clear();
+    }
+
     public Integer getRpiCountForDaysSinceEpochLocalTZ(Integer daysSinceEpochLocalTZ) {
         return mapOfDailyCountsLocalTZ.get(daysSinceEpochLocalTZ);
     }
 
     /*
-     Search for an RPI on a specific day,
-     but also in the "late" entries (last 2 hours) of the previous day,
-     and in the "early" entries (first 2 hours) of the next day.
+     Search for an RPI observed within 2 hours of its interval,
+     i.e. also in the last 2 hours of the previous day and in the first 2 hours of the next day.
      */
     public RpiEntry searchForRpiOnDaySinceEpochUTCWith2HoursTolerance(Crypto.RpiWithInterval searchRpiWithInterval) {
-        int daysSinceEpochUTC = getDaysSinceEpochFromENIN(searchRpiWithInterval.intervalNumber);
         RpiEntry matchingRpiEntry = null;
         //noinspection ConstantConditions
         if (searchRpiWithInterval != null) {
-            RpiBytes rpiBytes = new RpiBytes(searchRpiWithInterval.rpiBytes);
-
-            for (int i=1; i<=3; i++) {  // search in (1) yesterday's "late" list, (2) today's full list, and (3) tomorrow's "early" list
-                ListsPerDayUTC listsPerDayUTC = null;
-                switch (i) {
-                    case 1:
-                        listsPerDayUTC = mapOfDaysUTCAndListsOfRPIs.get(daysSinceEpochUTC - 1);
-                        break;
-                    case 2:
-                        listsPerDayUTC = mapOfDaysUTCAndListsOfRPIs.get(daysSinceEpochUTC);
-                        break;
-                    case 3:
-                        listsPerDayUTC = mapOfDaysUTCAndListsOfRPIs.get(daysSinceEpochUTC + 1);
-                        break;
-                }
-                if (listsPerDayUTC != null) {  // is null e.g. at the first available day - 1
-                    RpiEntry rpiEntry = null;
-                    switch (i) {
-                        case 1:
-                            if (listsPerDayUTC.rpiEntriesLate.containsKey(rpiBytes)) {
-                                rpiEntry = listsPerDayUTC.rpiEntriesLate.get(rpiBytes);
-                            }
-                            break;
-                        case 2:
-                            if (listsPerDayUTC.rpiEntries.containsKey(rpiBytes)) {
-                                rpiEntry = listsPerDayUTC.rpiEntries.get(rpiBytes);
-                            }
-                            break;
-                        case 3:
-                            if (listsPerDayUTC.rpiEntriesEarly.containsKey(rpiBytes)) {
-                                rpiEntry = listsPerDayUTC.rpiEntriesEarly.get(rpiBytes);
-                            }
-                            break;
-                    }
-                    if (rpiEntry != null && abs(searchRpiWithInterval.intervalNumber -
-                            getENINFromSeconds(rpiEntry.startTimeStampUTC)) <= 6 * 2) {  // max diff: 2 hours
-                        Log.d(TAG, "Match confirmed!");
-                        //Log.d(TAG, "ENIN used for RPI generation: "+searchRpiWithInterval.intervalNumber+
-                        //        " ("+getDateFromENIN(searchRpiWithInterval.intervalNumber)+")");
-                        //Log.d(TAG, "ENIN when scan was recorded:  "+getENINFromSeconds(rpiEntry.startTimeStampUTC)+
-                        //        " ("+getDateFromENIN(getENINFromSeconds(rpiEntry.startTimeStampUTC))+")");
-
-                        matchingRpiEntry = rpiEntry;
-                        break;  // each RPI is assumed to be unique,
-                        // so once it is found, there's no need to search any further on the next day.
-                    }
-                }
-            }
+            matchingRpiEntry = searchForRpiOnDaySinceEpochUTCWith2HoursTolerance(
+                    RpiBytes.getLongFromBytes(searchRpiWithInterval.rpiBytes, 0),
+                    RpiBytes.getLongFromBytes(searchRpiWithInterval.rpiBytes, 8),
+                    searchRpiWithInterval.intervalNumber);
+        }
+        return matchingRpiEntry;
+    }
+
+    public RpiEntry searchForRpiOnDaySinceEpochUTCWith2HoursTolerance(long rpiHigh, long rpiLow, int intervalNumber) {
+        if (!frozen) {
+            freeze();
+        }
+        // only the buckets within the 2 hours tolerance around the interval are searched, across day boundaries
+        MatchingMetrics.Recorder recorder = MatchingMetrics.current();
+        long start = (recorder != null) ? recorder.startTimer(MatchingMetrics.Stage.INDEX_SEARCH) : 0;
+        RpiEntry matchingRpiEntry = rpiIntervalIndex.get(rpiHigh, rpiLow, intervalNumber);
+        if (recorder != null) {
+            recorder.stopTimer(MatchingMetrics.Stage.INDEX_SEARCH, start);
+        }
+        if (matchingRpiEntry != null) {
+            Log.d(TAG, "Match confirmed!");
+        }
 
-            if (addFakeMatches) {
-                // Add some random matches, for test purposes only!
-                // TODO: THIS MUST NOT BE ACTIVE FOR RELEASES!
-                if (rand.nextInt(100000) >= 99955) {
-                    ListsPerDayUTC listsPerDayUTC = mapOfDaysUTCAndListsOfRPIs.get(daysSinceEpochUTC);
-                    if (listsPerDayUTC != null) {
-
-                        int numEntries = listsPerDayUTC.rpiEntries.size();
-                        int randomPos = rand.nextInt(numEntries) + 1;
-                        // The following random selection process is not 100% correct, but sufficient.
-                        Iterator<RpiEntry> it = listsPerDayUTC.rpiEntries.values().iterator();
-                        while (it.hasNext() && randomPos > 0) {
-                            matchingRpiEntry = it.next();
-                            randomPos--;
-                        }
-                        if (matchingRpiEntry != null) {
-                            Log.d(TAG, "Reporting fake match: matchingRpiEntry.startTimeStampUTC: " +
-                                    matchingRpiEntry.startTimeStampUTC);
-                        }
-                    }
+        if (addFakeMatches) {
+            // Add some random matches, for test purposes only!
+            // TODO: THIS MUST NOT BE ACTIVE FOR RELEASES!
+            if (rand.nextInt(100000) >= 99955) {
+                RpiEntry[] entries = rpiIntervalIndex.getEntries();
+                if (entries.length > 0) {
+                    matchingRpiEntry = entries[rand.nextInt(entries.length)];
+                    Log.d(TAG, "Reporting fake match: matchingRpiEntry.startTimeStampUTC: " +
+                            matchingRpiEntry.startTimeStampUTC);
                 }
             }
         }
         return matchingRpiEntry;
     }
 
+    /*
+     Quick pre-check before searching: if this returns false, the RPI is not in the list (on any day).
+     */
+    public boolean mightContainRpi(long rpiHigh, long rpiLow) {
+        if (!frozen) {
+            freeze();
+        }
+        return rpiBloomFilter.mightContain(rpiHigh, rpiLow);
+    }
+
+    public RpiBloomFilter.Statistics getRpiBloomFilterStatistics() {
+        return rpiBloomFilterStatistics;
+    }
+
+    public static boolean isWithin2HoursTolerance(int intervalNumber, RpiEntry rpiEntry) {
+        return abs(intervalNumber - getENINFromSeconds(rpiEntry.startTimeStampUTC)) <= RpiIntervalIndex.toleranceIntervals;
+    }
+
+    /*
+     Returns all RPIs as a table sorted by RPI bytes, for the sort-merge join.
+     Contains the same rows as the RpiIntervalIndex that searchForRpiOnDaySinceEpochUTCWith2HoursTolerance() looks at.
+     The table is built on the first call, and then shared.
+     */
+    public synchronized SortedRpiTable getSortedRpiTable() {
+        if (sortedRpiTable == null) {
+            freeze();
+            int size = rpiIntervalIndex.size();
+            sortedRpiTable = new SortedRpiTable(rpiIntervalIndex.getRpiHigh().clone(),
+                    rpiIntervalIndex.getRpiLow().clone(), rpiIntervalIndex.getStartIntervals(),
+                    rpiIntervalIndex.getEntries(), size);
+        }
+        return sortedRpiTable;
+    }
+
+    /*
+     Returns the RPIs that RPIs generated for the intervals [firstInterval, lastInterval] can match,
+     i.e. the ones starting within the 2 hours tolerance around the range, as a table sorted by RPI bytes.
+     Much smaller than getSortedRpiTable() for a single day. Not cached, each call builds a new table.
+     */
+    public SortedRpiTable getSortedRpiTable(int firstInterval, int lastInterval) {
+        freeze();
+        return rpiIntervalIndex.getSortedRpiTable(firstInterval - RpiIntervalIndex.toleranceIntervals,
+                lastInterval + RpiIntervalIndex.toleranceIntervals);
+    }
+
     public SortedSet<Integer> getAvailableDaysSinceEpochLocalTZ() {
         return (SortedSet<Integer>) mapOfDailyCountsLocalTZ.keySet();
     }
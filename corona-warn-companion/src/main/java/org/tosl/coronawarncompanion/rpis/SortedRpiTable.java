@@ -0,0 +1,105 @@
+/*
+ * Corona-Warn-Companion. An app that shows COVID-19 Exposure Notifications details.
+ * Copyright (C) 2020  Michael Huebler <corona-warn-companion@tosl.org> and other contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tosl.coronawarncompanion.rpis;
+
+/*
+ All observed RPIs of an RpiList, sorted by their RPI bytes, for the sort-merge join in the Matcher.
+ Each row also carries the ENIN of the entry's start time, for the 2 hours tolerance check.
+ */
+public class SortedRpiTable {
+    public final int size;
+    public final long[] rpiHigh;
+    public final long[] rpiLow;
+    public final int[] startIntervals;
+    public final RpiList.RpiEntry[] entries;
+
+    /*
+     Sorts rpiHigh and rpiLow in place, startIntervals and entries are copied.
+     */
+    SortedRpiTable(long[] rpiHigh, long[] rpiLow, int[] startIntervals, RpiList.RpiEntry[] entries, int size) {
+        long[] rowIndex = new long[size];
+        for (int i = 0; i < size; i++) {
+            rowIndex[i] = i;
+        }
+        sort(rpiHigh, rpiLow, rowIndex, 0, size);
+
+        this.size = size;
+        this.rpiHigh = rpiHigh;
+        this.rpiLow = rpiLow;
+        this.startIntervals = new int[size];
+        this.entries = new RpiList.RpiEntry[size];
+        for (int i = 0; i < size; i++) {
+            int row = (int) rowIndex[i];
+            this.startIntervals[i] = startIntervals[row];
+            this.entries[i] = entries[row];
+        }
+    }
+
+    public static int compare(long high1, long low1, long high2, long low2) {
+        if (high1 != high2) {
+            return (high1 < high2) ? -1 : 1;
+        }
+        return Long.compare(low1, low2);
+    }
+
+    /*
+     Sorts the range [from, to) of the parallel arrays by (high, low), the payload is moved along.
+     */
+    public static void sort(long[] high, long[] low, long[] payload, int from, int to) {
+        while (to - from > 16) {
+            int mid = (from + to) >>> 1;
+            // median of three as pivot
+            if (compare(high[mid], low[mid], high[from], low[from]) < 0) swap(high, low, payload, mid, from);
+            if (compare(high[to - 1], low[to - 1], high[from], low[from]) < 0) swap(high, low, payload, to - 1, from);
+            if (compare(high[to - 1], low[to - 1], high[mid], low[mid]) < 0) swap(high, low, payload, to - 1, mid);
+            long pivotHigh = high[mid];
+            long pivotLow = low[mid];
+            int i = from;
+            int j = to - 1;
+            while (i <= j) {
+                while (compare(high[i], low[i], pivotHigh, pivotLow) < 0) i++;
+                while (compare(high[j], low[j], pivotHigh, pivotLow) > 0) j--;
+                if (i <= j) {
+                    swap(high, low, payload, i, j);
+                    i++;
+                    j--;
+                }
+            }
+            // recurse into the smaller part, loop on the larger one
+            if (j + 1 - from < to - i) {
+                sort(high, low, payload, from, j + 1);
+                from = i;
+            } else {
+                sort(high, low, payload, i, to);
+                to = j + 1;
+            }
+        }
+        for (int i = from + 1; i < to; i++) {  // insertion sort for short ranges
+            for (int j = i; j > from && compare(high[j], low[j], high[j - 1], low[j - 1]) < 0; j--) {
+                swap(high, low, payload, j, j - 1);
+            }
+        }
+    }
+
+    private static void swap(long[] high, long[] low, long[] payload, int i, int j) {
+        long tmp = high[i]; high[i] = high[j]; high[j] = tmp;
+        tmp = low[i]; low[i] = low[j]; low[j] = tmp;
+        tmp = payload[i]; payload[i] = payload[j]; payload[j] = tmp;
+    }
+}
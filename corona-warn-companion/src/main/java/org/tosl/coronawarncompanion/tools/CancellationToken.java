@@ -0,0 +1,141 @@
+/*
+ * Corona-Warn-Companion. An app that shows COVID-19 Exposure Notifications details.
+ * Copyright (C) 2020  Michael Huebler <corona-warn-companion@tosl.org> and other contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.tosl.coronawarncompanion.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Completable;
+
+/*
+ Cancellation of one run of the download, ingestion and matching pipeline.
+ The work of the run checks isCancelled() (the matcher once per DK), or completes whenCancelled()
+ to stop an Rx chain. Work that must not overlap with the next run (e.g. because it writes the cache files)
+ is bracketed by enter() and exit(), so the next run can wait until this one is quiescent.
+ */
+public class CancellationToken {
+    private volatile boolean cancelled = false;
+    private final List<Runnable> onCancelActions = new ArrayList<>();  // guarded by this
+    private int numRunning = 0;  // guarded by this
+    private long cancelNanos = 0;
+    private long quiescentNanos = 0;
+
+    public void cancel() {
+        List<Runnable> actions;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            cancelNanos = System.nanoTime();
+            if (numRunning == 0) {
+                quiescentNanos = cancelNanos;
+                notifyAll();
+            }
+            actions = new ArrayList<>(onCancelActions);
+            onCancelActions.clear();
+        }
+        for (Runnable action : actions) {
+            action.run();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /*
+     Runs the action on the thread that calls cancel(), or right away if that has already happened.
+     */
+    public void onCancel(Runnable action) {
+        synchronized (this) {
+            if (!cancelled) {
+                onCancelActions.add(action);
+                return;
+            }
+        }
+        action.run();
+    }
+
+    private synchronized void removeOnCancel(Runnable action) {
+        onCancelActions.remove(action);
+    }
+
+    /*
+     Completes when the token is cancelled, e.g. for takeUntil().
+     */
+    public Completable whenCancelled() {
+        return Completable.create(emitter -> {
+            Runnable action = emitter::onComplete;
+            onCancel(action);
+            emitter.setCancellable(() -> removeOnCancel(action));
+        });
+    }
+
+    /*
+     Returns false if the token has already been cancelled: the work must not start then.
+     Otherwise, the caller must call exit() when it's done.
+     */
+    public synchronized boolean enter() {
+        if (cancelled) {
+            return false;
+        }
+        numRunning++;
+        return true;
+    }
+
+    public synchronized void exit() {
+        if (--numRunning == 0) {
+            if (cancelled) {
+                quiescentNanos = System.nanoTime();
+            }
+            notifyAll();
+        }
+    }
+
+    /*
+     Quiescent: no work between enter() and exit() is running any more, and none can start.
+     */
+    public synchronized boolean isQuiescent() {
+        return cancelled && numRunning == 0;
+    }
+
+    /*
+     Blocks until the token is quiescent, or the timeout has expired. Never call this on the main thread.
+     */
+    public synchronized boolean awaitQuiescence(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!isQuiescent()) {
+            long remainingNanos = deadline - System.nanoTime();
+            if (remainingNanos <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+        }
+        return true;
+    }
+
+    /*
+     Time from cancel() to quiescence, or -1 if not quiescent yet.
+     */
+    public synchronized long getStopLatencyNanos() {
+        return isQuiescent() ? quiescentNanos - cancelNanos : -1;
+    }
+}
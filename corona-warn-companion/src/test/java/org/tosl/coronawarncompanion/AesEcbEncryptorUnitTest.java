@@ -0,0 +1,91 @@
+package org.tosl.coronawarncompanion;
+
+import org.junit.Test;
+import org.tosl.coronawarncompanion.crypto.AesEcbEncryptor;
+import org.tosl.coronawarncompanion.crypto.CryptoException;
+import org.tosl.coronawarncompanion.matcher.Crypto;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.tosl.coronawarncompanion.matcher.Crypto.deriveAemKey;
+import static org.tosl.coronawarncompanion.matcher.Crypto.deriveRpiKey;
+import static org.tosl.coronawarncompanion.tools.Utils.standardRollingPeriod;
+
+/**
+ * Checks all AesEcbEncryptor implementations against the FIPS-197 and Exposure Notification test vectors.
+ */
+public class AesEcbEncryptorUnitTest {
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    @Test
+    public void encrypt_givesFips197Result() throws CryptoException {
+        for (AesEcbEncryptor.Implementation implementation : AesEcbEncryptor.Implementation.values()) {
+            AesEcbEncryptor encryptor = implementation.create();
+            encryptor.init(fromHex("000102030405060708090a0b0c0d0e0f"));
+            assertArrayEquals(implementation.toString(), fromHex("69c4e0d86a7b0430d8cdb78070b4c55a"),
+                    encryptor.encrypt(fromHex("00112233445566778899aabbccddeeff")));
+        }
+    }
+
+    @Test
+    public void rpis_matchExposureNotificationTestVectors() {
+        byte[] tek = fromHex("75c734c6dd1a782de7a965da5eb93125");
+        int rollingStartIntervalNumber = 2642976;
+        byte[] rpiKey = deriveRpiKey(tek);
+        assertArrayEquals(fromHex("185ad91db69ec7dd048960f1f3ba6175"), rpiKey);
+        assertArrayEquals(fromHex("d57c46af7a1d83965b9bed8bd152936a"), deriveAemKey(tek));
+
+        byte[] expected = new byte[standardRollingPeriod * Crypto.rpiLength];
+        byte[] rpis = new byte[standardRollingPeriod * Crypto.rpiLength];
+        new Crypto(AesEcbEncryptor.Implementation.JCE).createRpisForIntervalRange(rpiKey, rollingStartIntervalNumber,
+                standardRollingPeriod, expected);
+        assertArrayEquals(fromHex("8be6cd371c5c891604bfbe49df845096" + "3c9a1de5dd6b02afa7fded7b570b3e56"),
+                Arrays.copyOf(expected, 2 * Crypto.rpiLength));
+        for (AesEcbEncryptor.Implementation implementation : AesEcbEncryptor.Implementation.values()) {
+            new Crypto(implementation).createRpisForIntervalRange(rpiKey, rollingStartIntervalNumber,
+                    standardRollingPeriod, rpis);
+            assertArrayEquals(implementation.toString(), expected, rpis);
+            // and the same as the single-block path
+            assertArrayEquals(implementation.toString(),
+                    new Crypto(implementation).encryptRpi(rpiKey, rollingStartIntervalNumber + 1),
+                    Arrays.copyOfRange(rpis, Crypto.rpiLength, 2 * Crypto.rpiLength));
+        }
+    }
+
+    @Test
+    public void tableImplementation_equalsJce() throws CryptoException {
+        Random random = new Random(12);
+        AesEcbEncryptor jce = AesEcbEncryptor.Implementation.JCE.create();
+        AesEcbEncryptor table = AesEcbEncryptor.Implementation.TABLE.create();
+        byte[] key = new byte[16];
+        byte[] input = new byte[7 + 32 * 16];
+        byte[] expected = new byte[32 * 16];
+        byte[] output = new byte[5 + 32 * 16];
+        for (int i = 0; i < 1000; i++) {
+            random.nextBytes(key);
+            random.nextBytes(input);
+            jce.init(key);
+            table.init(key);
+            int numBlocks = random.nextInt(33);
+            jce.encryptBlocks(input, 7, numBlocks, expected, 0);
+            table.encryptBlocks(input, 7, numBlocks, output, 5);
+            for (int j = 0; j < numBlocks * 16; j++) {
+                assertEquals(expected[j], output[5 + j]);
+            }
+        }
+    }
+
+    @Test(expected = CryptoException.class)
+    public void tableImplementation_rejectsAes256Keys() throws CryptoException {
+        AesEcbEncryptor.Implementation.TABLE.create().init(new byte[32]);
+    }
+}
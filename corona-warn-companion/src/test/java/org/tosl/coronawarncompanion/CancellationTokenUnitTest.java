@@ -0,0 +1,118 @@
+package org.tosl.coronawarncompanion;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.tosl.coronawarncompanion.diagnosiskeys.DiagnosisKey;
+import org.tosl.coronawarncompanion.matcher.ForkJoinMatcher;
+import org.tosl.coronawarncompanion.matcher.IncrementalMatchState;
+import org.tosl.coronawarncompanion.matcher.Matcher;
+import org.tosl.coronawarncompanion.rpis.RpiList;
+import org.tosl.coronawarncompanion.tools.CancellationToken;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.Flowable;
+import io.reactivex.disposables.Disposable;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures the time from cancelling a pipeline run to its quiescence, i.e. until no matching work is running.
+ */
+public class CancellationTokenUnitTest {
+    private static final long maxStopLatencyMillis = 1000;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static void awaitProgress(AtomicInteger progress, int minProgress) throws InterruptedException {
+        for (int i = 0; i < 200 && progress.get() < minProgress; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(progress.get() >= minProgress);
+    }
+
+    @Test
+    public void cancelledMatching_becomesQuiescentQuickly() throws InterruptedException, IOException {
+        Random random = new Random(23);
+        List<DiagnosisKey> diagnosisKeys = MatcherUnitTest.createDiagnosisKeys(random, 50000);
+        RpiList rpiList = MatcherUnitTest.createRpiList(random, diagnosisKeys, 20000);
+        File file = temporaryFolder.newFile();
+        assertTrue(file.delete());
+
+        CancellationToken cancellationToken = new CancellationToken();
+        AtomicInteger progress = new AtomicInteger();
+        AtomicBoolean completed = new AtomicBoolean();
+        new ForkJoinMatcher(rpiList, Flowable.just(diagnosisKeys), 4, Matcher.MatchingEngine.HASH, null,
+                new IncrementalMatchState(file), null, cancellationToken)
+                .getMatchingFlowable(ForkJoinMatcher.frameIntervalMillis)
+                .subscribe(matchingUpdate -> progress.set(matchingUpdate.progress), error -> { },
+                        () -> completed.set(true));
+        awaitProgress(progress, 5);
+
+        cancellationToken.cancel();
+        assertTrue(cancellationToken.awaitQuiescence(maxStopLatencyMillis, TimeUnit.MILLISECONDS));
+        long stopLatencyNanos = cancellationToken.getStopLatencyNanos();
+        assertTrue(stopLatencyNanos >= 0 && stopLatencyNanos < TimeUnit.MILLISECONDS.toNanos(maxStopLatencyMillis));
+        assertTrue(progress.get() < 100);
+        assertTrue(file.exists());  // the state has been saved before becoming quiescent
+        assertFalse(cancellationToken.enter());  // nothing can start any more
+    }
+
+    @Test
+    public void disposing_doesNotBlockAndStopsWaitingForDownloads() throws InterruptedException {
+        Random random = new Random(29);
+        List<DiagnosisKey> diagnosisKeys = MatcherUnitTest.createDiagnosisKeys(random, 2000);
+        RpiList rpiList = MatcherUnitTest.createRpiList(random, diagnosisKeys, 5000);
+
+        // the first file arrives, then the download hangs
+        AtomicBoolean downloadCancelled = new AtomicBoolean();
+        Flowable<List<DiagnosisKey>> diagnosisKeyBatches = Flowable.just(diagnosisKeys)
+                .concatWith(Flowable.never())
+                .doOnCancel(() -> downloadCancelled.set(true));
+        CancellationToken cancellationToken = new CancellationToken();
+        AtomicInteger progress = new AtomicInteger();
+        Disposable disposable = new ForkJoinMatcher(rpiList, diagnosisKeyBatches, 4, Matcher.MatchingEngine.HASH,
+                null, null, null, cancellationToken)
+                .getMatchingFlowable(ForkJoinMatcher.frameIntervalMillis)
+                .subscribe(matchingUpdate -> progress.set(matchingUpdate.progress));
+        awaitProgress(progress, 100);
+        assertFalse(cancellationToken.isQuiescent());
+
+        long start = System.nanoTime();
+        disposable.dispose();
+        long disposeNanos = System.nanoTime() - start;
+        assertTrue(cancellationToken.isCancelled());
+        assertTrue(cancellationToken.awaitQuiescence(maxStopLatencyMillis, TimeUnit.MILLISECONDS));
+        assertTrue(disposeNanos < TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(downloadCancelled.get());
+    }
+
+    @Test
+    public void whenCancelled_completesOnCancel() {
+        CancellationToken cancellationToken = new CancellationToken();
+        AtomicBoolean done = new AtomicBoolean();
+        Disposable disposable = cancellationToken.whenCancelled().subscribe(() -> done.set(true));
+        assertTrue(cancellationToken.enter());
+        assertFalse(done.get());
+        cancellationToken.cancel();
+        assertTrue(done.get());
+        assertTrue(disposable.isDisposed());
+        assertFalse(cancellationToken.isQuiescent());  // still running
+        assertEquals(-1, cancellationToken.getStopLatencyNanos());
+        cancellationToken.exit();
+        assertTrue(cancellationToken.isQuiescent());
+
+        // already cancelled
+        done.set(false);
+        cancellationToken.whenCancelled().subscribe(() -> done.set(true));
+        assertTrue(done.get());
+    }
+}
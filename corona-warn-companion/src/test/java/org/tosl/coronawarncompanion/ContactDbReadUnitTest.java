@@ -0,0 +1,114 @@
+package org.tosl.coronawarncompanion;
+
+import org.iq80.leveldb.CompressionType;
+import org.iq80.leveldb.CompressionType;
+import org.iq80.leveldb.DB;
+import org.iq80.leveldb.Options;
+import org.iq80.leveldb.impl.Iq80DBFactory;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.tosl.coronawarncompanion.gmsreadout.ContactDbOnDisk;
+import org.tosl.coronawarncompanion.gmsreadout.ContactRecordsProtos;
+import org.tosl.coronawarncompanion.rpis.RpiList;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that reading a contact record LevelDB with several workers gives the same RpiList as the serial scan.
+ */
+public class ContactDbReadUnitTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static void assertSameRpiList(RpiList expected, RpiList rpiList) {
+        assertEquals(expected.getAvailableDaysSinceEpochLocalTZ(), rpiList.getAvailableDaysSinceEpochLocalTZ());
+        for (Integer day : expected.getAvailableDaysSinceEpochLocalTZ()) {
+            assertEquals(expected.getRpiCountForDaysSinceEpochLocalTZ(day), rpiList.getRpiCountForDaysSinceEpochLocalTZ(day));
+        }
+        assertEquals(expected.getDayFingerprints(), rpiList.getDayFingerprints());
+        assertEquals(expected.getIndexBytesPerRpi(), rpiList.getIndexBytesPerRpi());
+    }
+
+    @Test
+    public void parallelRead_givesSameRpiListAsSerialRead() throws IOException {
+        Random random = new Random(53);
+        Options options = new Options();
+        options.createIfMissing(true);
+        options.compressionType(CompressionType.NONE);
+        try (DB db = new Iq80DBFactory().open(temporaryFolder.newFolder(), options)) {
+            for (int day = MatcherUnitTest.firstDaysSinceEpochUTC;
+                 day < MatcherUnitTest.firstDaysSinceEpochUTC + MatcherUnitTest.numDays; day++) {
+                int numRpis = 500 + random.nextInt(3000);
+                for (int i = 0; i < numRpis; i++) {
+                    byte[] rpiBytes = new byte[16];
+                    random.nextBytes(rpiBytes);
+                    int timestamp = day * 24 * 3600 + random.nextInt(24 * 3600);
+                    ContactRecordsProtos.ContactRecords.Builder contactRecords =
+                            ContactRecordsProtos.ContactRecords.newBuilder();
+                    for (int j = random.nextInt(4); j >= 0; j--) {  // some without scan records
+                        contactRecords.addRecord(ContactRecordsProtos.ScanRecord.newBuilder()
+                                .setTimestamp(timestamp + j * 60).setRssi(-50 - random.nextInt(40)));
+                    }
+                    db.put(ByteBuffer.allocate(18).putShort((short) day).put(rpiBytes).array(),
+                            contactRecords.build().toByteArray());
+                }
+            }
+
+            RpiList expected = ContactDbOnDisk.readToRpiList(db, 1);
+            assertFalse(expected.isEmpty());
+            for (int numWorkers : new int[]{2, 4, 32}) {
+                assertSameRpiList(expected, ContactDbOnDisk.readToRpiList(db, numWorkers));
+            }
+        }
+    }
+
+    @Test
+    public void parallelRead_ofDemoDatabase() throws IOException {
+        File demoDbDir = new File("src/main/assets/demo_rpi_db");  // the module directory is the working directory
+        Assume.assumeTrue(demoDbDir.isDirectory());
+        File dbDir = temporaryFolder.newFolder();
+        File[] files = demoDbDir.listFiles();
+        assertNotNull(files);
+        for (File file : files) {
+            Files.copy(file.toPath(), new File(dbDir, file.getName()).toPath());
+        }
+        Options options = new Options();
+        options.createIfMissing(false);
+        options.compressionType(CompressionType.NONE);
+        try (DB db = new Iq80DBFactory().open(dbDir, options)) {
+            RpiList expected = ContactDbOnDisk.readToRpiList(db, 1);
+            assertFalse(expected.isEmpty());
+            assertSameRpiList(expected, ContactDbOnDisk.readToRpiList(db, 4));
+        }
+    }
+
+    @Test
+    public void merge_addsTheEntriesOfTheSegment() {
+        byte[] rpiBytes = new byte[16];
+        int day = MatcherUnitTest.firstDaysSinceEpochUTC;
+        RpiList expected = new RpiList();
+        RpiList rpiList = new RpiList();
+        RpiList segment = new RpiList();
+        Random random = new Random(59);
+        for (int i = 0; i < 100; i++) {
+            random.nextBytes(rpiBytes);
+            int timestamp = (day + i % 3) * 24 * 3600 + random.nextInt(24 * 3600);
+            ContactRecordsProtos.ContactRecords contactRecords = ContactRecordsProtos.ContactRecords.newBuilder()
+                    .addRecord(ContactRecordsProtos.ScanRecord.newBuilder().setTimestamp(timestamp).setRssi(-60))
+                    .build();
+            expected.addEntry(day + i % 3, rpiBytes, contactRecords);
+            ((i < 50) ? rpiList : segment).addEntry(day + i % 3, rpiBytes, contactRecords);
+        }
+        rpiList.merge(segment);
+        assertSameRpiList(expected, rpiList);
+    }
+}
@@ -0,0 +1,185 @@
+package org.tosl.coronawarncompanion;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.tosl.coronawarncompanion.diagnosiskeys.DiagnosisKey;
+import org.tosl.coronawarncompanion.matcher.Crypto;
+import org.tosl.coronawarncompanion.matcher.DerivedRpiCache;
+import org.tosl.coronawarncompanion.matcher.Matcher;
+import org.tosl.coronawarncompanion.rpis.RpiList;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.tosl.coronawarncompanion.matcher.Crypto.deriveRpiKey;
+import static org.tosl.coronawarncompanion.tools.Utils.standardRollingPeriod;
+
+/**
+ * Checks that the DerivedRpiCache returns the same RPIs and matches as the key derivation,
+ * and that corrupt and old records are dropped.
+ */
+public class DerivedRpiCacheUnitTest {
+
+    private static final int currentIntervalNumber = (MatcherUnitTest.firstDaysSinceEpochUTC + MatcherUnitTest.numDays)
+            * standardRollingPeriod;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static List<Matcher.MatchEntryAndDkAndDay> runMatcher(RpiList rpiList, List<DiagnosisKey> diagnosisKeys,
+                                                                  DerivedRpiCache derivedRpiCache) {
+        List<Matcher.MatchEntryAndDkAndDay> matches = new ArrayList<>();
+        for (Matcher.ProgressAndMatchEntryAndDkAndDay progressAndMatch : new Matcher(rpiList, diagnosisKeys, 0,
+                Matcher.MatchingEngine.HASH, derivedRpiCache).getMatchingObservable().blockingIterable()) {
+            if (progressAndMatch.matchEntryAndDkAndDay != null) {
+                matches.add(progressAndMatch.matchEntryAndDkAndDay);
+            }
+        }
+        return matches;
+    }
+
+    @Test
+    public void cache_givesSameRpisAndMatches() throws IOException {
+        Random random = new Random(7);
+        List<DiagnosisKey> diagnosisKeys = MatcherUnitTest.createDiagnosisKeys(random, 500);
+        RpiList rpiList = MatcherUnitTest.createRpiList(random, diagnosisKeys, 5000);
+        List<Matcher.MatchEntryAndDkAndDay> expected = runMatcher(rpiList, diagnosisKeys, null);
+        assertTrue(expected.size() > 0);
+
+        File file = temporaryFolder.newFile();
+        assertTrue(file.delete());
+        DerivedRpiCache cache = new DerivedRpiCache(file);
+        cache.open(currentIntervalNumber);
+        MatcherUnitTest.assertSameMatches(expected, runMatcher(rpiList, diagnosisKeys, cache));  // derives and caches
+        assertEquals(0, cache.getNumHits());
+        int numCached = cache.getNumRecords();  // also the DKs clipped by the observed time range
+        assertTrue(numCached > 0);
+        cache.flush();
+
+        DerivedRpiCache reopenedCache = new DerivedRpiCache(file);
+        reopenedCache.open(currentIntervalNumber);
+        MatcherUnitTest.assertSameMatches(expected, runMatcher(rpiList, diagnosisKeys, reopenedCache));  // just reads
+        assertEquals(numCached, reopenedCache.getNumHits());
+        assertEquals(numCached, reopenedCache.getNumRecords());
+
+        Crypto crypto = new Crypto();
+        DerivedRpiCache.Entry entry = null;
+        DiagnosisKey dk = null;
+        for (int i = 0; entry == null; i++) {
+            dk = diagnosisKeys.get(i);
+            entry = reopenedCache.get(dk.dk.getKeyData().toByteArray(), dk.dk.getRollingStartIntervalNumber(),
+                    dk.dk.getRollingPeriod());
+        }
+        byte[] tek = dk.dk.getKeyData().toByteArray();
+        for (Crypto.RpiWithInterval rpiWithInterval : crypto.createListOfRpisForIntervalRange(deriveRpiKey(tek),
+                dk.dk.getRollingStartIntervalNumber(), dk.dk.getRollingPeriod())) {
+            assertArrayEquals(rpiWithInterval.rpiBytes, entry.getRpi(rpiWithInterval.intervalNumber));
+        }
+    }
+
+    @Test
+    public void open_dropsCorruptAndOldRecords() throws IOException {
+        Random random = new Random(8);
+        List<DiagnosisKey> diagnosisKeys = MatcherUnitTest.createDiagnosisKeys(random, 20);
+        File file = temporaryFolder.newFile();
+        assertTrue(file.delete());
+        DerivedRpiCache cache = new DerivedRpiCache(file);
+        cache.open(currentIntervalNumber);
+        for (DiagnosisKey dk : diagnosisKeys) {
+            byte[] rpis = new byte[dk.dk.getRollingPeriod() * 16];
+            random.nextBytes(rpis);
+            cache.put(dk.dk.getKeyData().toByteArray(), dk.dk.getRollingStartIntervalNumber(),
+                    dk.dk.getRollingPeriod(), rpis);
+        }
+        cache.flush();
+
+        // flip one bit in the RPIs of some record
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            long position = 8 + 5 * (28 + standardRollingPeriod * 16) + 100;
+            randomAccessFile.seek(position);
+            int b = randomAccessFile.read();
+            randomAccessFile.seek(position);
+            randomAccessFile.write(b ^ 0x01);
+        }
+        cache.open(currentIntervalNumber);
+        assertEquals(1, cache.getNumCorrupt());
+        assertEquals(0, cache.getNumEvicted());
+        int numFound = 0;
+        for (DiagnosisKey dk : diagnosisKeys) {
+            if (cache.get(dk.dk.getKeyData().toByteArray(), dk.dk.getRollingStartIntervalNumber(),
+                    dk.dk.getRollingPeriod()) != null) {
+                numFound++;
+            }
+        }
+        assertEquals(diagnosisKeys.size() - 1, numFound);
+
+        // the corrupt record has been removed from the file
+        cache.open(currentIntervalNumber);
+        assertEquals(0, cache.getNumCorrupt());
+
+        // a truncated record at the end is dropped
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(randomAccessFile.length() - 10);
+        }
+        cache.open(currentIntervalNumber);
+        assertEquals(1, cache.getNumCorrupt());
+
+        // 20 days later, all keys are older than 14 days
+        cache.open(currentIntervalNumber + 20 * standardRollingPeriod);
+        assertEquals(diagnosisKeys.size() - 2, cache.getNumEvicted());
+        cache.open(currentIntervalNumber);
+        assertEquals(0, cache.getNumEvicted() + cache.getNumCorrupt());
+        assertNull(cache.get(diagnosisKeys.get(0).dk.getKeyData().toByteArray(),
+                diagnosisKeys.get(0).dk.getRollingStartIntervalNumber(), diagnosisKeys.get(0).dk.getRollingPeriod()));
+    }
+
+    @Test
+    public void open_evictsOldestRecordsBeyondMaxFileLength() throws IOException {
+        Random random = new Random(9);
+        List<DiagnosisKey> diagnosisKeys = MatcherUnitTest.createDiagnosisKeys(random, 20);
+        int recordLength = 28 + standardRollingPeriod * 16;
+        File file = temporaryFolder.newFile();
+        assertTrue(file.delete());
+        DerivedRpiCache cache = new DerivedRpiCache(file, 8 + 10 * recordLength);
+        cache.open(currentIntervalNumber);
+        for (DiagnosisKey dk : diagnosisKeys) {
+            byte[] rpis = new byte[dk.dk.getRollingPeriod() * 16];
+            random.nextBytes(rpis);
+            cache.put(dk.dk.getKeyData().toByteArray(), dk.dk.getRollingStartIntervalNumber(),
+                    dk.dk.getRollingPeriod(), rpis);
+        }
+        cache.flush();  // only 10 of them fit
+        assertEquals(10, cache.getNumRecords());
+        assertEquals(8 + 10 * recordLength, file.length());
+        List<DiagnosisKey> flushedKeys = new ArrayList<>();
+        for (DiagnosisKey dk : diagnosisKeys) {
+            if (cache.get(dk.dk.getKeyData().toByteArray(), dk.dk.getRollingStartIntervalNumber(),
+                    dk.dk.getRollingPeriod()) != null) {
+                flushedKeys.add(dk);
+            }
+        }
+
+        // opened with a smaller budget, only the newest keys are kept
+        DerivedRpiCache smallerCache = new DerivedRpiCache(file, 8 + 8 * recordLength);
+        smallerCache.open(currentIntervalNumber);
+        assertEquals(10 - smallerCache.getNumRecords(), smallerCache.getNumEvicted());
+        assertTrue(file.length() <= 8 + 4 * recordLength);
+        int oldestKeptIntervalNumber = Integer.MAX_VALUE;
+        int newestEvictedIntervalNumber = Integer.MIN_VALUE;
+        for (DiagnosisKey dk : flushedKeys) {
+            if (smallerCache.get(dk.dk.getKeyData().toByteArray(), dk.dk.getRollingStartIntervalNumber(),
+                    dk.dk.getRollingPeriod()) != null) {
+                oldestKeptIntervalNumber = Math.min(oldestKeptIntervalNumber, dk.dk.getRollingStartIntervalNumber());
+            } else {
+                newestEvictedIntervalNumber = Math.max(newestEvictedIntervalNumber, dk.dk.getRollingStartIntervalNumber());
+            }
+        }
+        assertTrue(oldestKeptIntervalNumber >= newestEvictedIntervalNumber);
+    }
+}
@@ -0,0 +1,85 @@
+package org.tosl.coronawarncompanion;
+
+import org.junit.Test;
+import org.tosl.coronawarncompanion.diagnosiskeys.DiagnosisKey;
+import org.tosl.coronawarncompanion.diagnosiskeys.DiagnosisKeyDeduplicator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that duplicate Diagnosis Keys from several countries and batches are removed.
+ */
+public class DiagnosisKeyDeduplicatorUnitTest {
+
+    @Test
+    public void add_keepsFirstKeyAndCountsPerSource() {
+        List<DiagnosisKey> germanKeys = MatcherUnitTest.createDiagnosisKeys(new Random(15), 100);
+        List<DiagnosisKey> allKeys = new ArrayList<>(germanKeys);
+        for (int i = 0; i < 30; i++) {  // via EFGS
+            allKeys.add(new DiagnosisKey(germanKeys.get(i).dk, "NL"));
+        }
+        for (int i = 0; i < 10; i++) {  // in an overlapping batch
+            allKeys.add(new DiagnosisKey(germanKeys.get(i).dk, "DE"));
+        }
+        // same key data, but another day: not a duplicate
+        allKeys.add(new DiagnosisKey(germanKeys.get(0).dk.toBuilder().setRollingStartIntervalNumber(
+                germanKeys.get(0).dk.getRollingStartIntervalNumber() + 144).build(), "BE"));
+
+        DiagnosisKeyDeduplicator deduplicator = new DiagnosisKeyDeduplicator();
+        List<DiagnosisKey> diagnosisKeys = deduplicator.add(allKeys);
+        assertEquals(101, diagnosisKeys.size());
+        assertEquals(40, deduplicator.getNumDuplicates());
+        assertEquals(Integer.valueOf(30), deduplicator.getNumDuplicatesPerSource().get("NL"));
+        assertEquals(Integer.valueOf(10), deduplicator.getNumDuplicatesPerSource().get("DE"));
+        assertNull(deduplicator.getNumDuplicatesPerSource().get("BE"));
+        assertSame(germanKeys.get(0), diagnosisKeys.get(0));
+        assertEquals("DE", diagnosisKeys.get(0).countryCode);
+        assertSame(germanKeys.get(0).dk, diagnosisKeys.get(0).dk);  // the metadata of its own country
+        assertEquals(Arrays.asList("DE", "NL"), diagnosisKeys.get(0).getCountryCodes());
+        assertEquals(Arrays.asList("DE", "NL"), diagnosisKeys.get(29).getCountryCodes());
+        assertEquals(Collections.singletonList("DE"), diagnosisKeys.get(30).getCountryCodes());
+        assertEquals("BE", diagnosisKeys.get(100).countryCode);
+        assertEquals(Collections.singletonList("BE"), diagnosisKeys.get(100).getCountryCodes());
+    }
+
+    @Test
+    public void add_returnsOnlyNewKeysAndIntervals() {
+        List<DiagnosisKey> germanKeys = MatcherUnitTest.createDiagnosisKeys(new Random(16), 20);
+        DiagnosisKeyDeduplicator deduplicator = new DiagnosisKeyDeduplicator();
+        // the key of today, published before the day is over
+        DiagnosisKey partialKey = new DiagnosisKey(germanKeys.get(0).dk.toBuilder().setRollingPeriod(60).build(), "DE");
+        List<DiagnosisKey> firstFile = new ArrayList<>(germanKeys.subList(1, 10));
+        firstFile.add(partialKey);
+        assertEquals(firstFile, deduplicator.add(firstFile));
+
+        List<DiagnosisKey> secondFile = new ArrayList<>();
+        for (int i = 5; i < 10; i++) {
+            secondFile.add(new DiagnosisKey(germanKeys.get(i).dk, "NL"));
+        }
+        secondFile.addAll(germanKeys.subList(10, 20));
+        secondFile.add(germanKeys.get(0));  // now with the complete rolling period
+        List<DiagnosisKey> newKeys = deduplicator.add(secondFile);
+        assertEquals(11, newKeys.size());
+        assertEquals(germanKeys.subList(10, 20), newKeys.subList(0, 10));
+        // the first one may already have been matched, so it stays as it is, and only the rest is new
+        assertEquals(60, partialKey.dk.getRollingPeriod());
+        DiagnosisKey rest = newKeys.get(10);
+        assertEquals(germanKeys.get(0).dk.getKeyData(), rest.dk.getKeyData());
+        assertEquals(partialKey.dk.getRollingStartIntervalNumber() + 60, rest.dk.getRollingStartIntervalNumber());
+        assertEquals(144 - 60, rest.dk.getRollingPeriod());
+        assertSame(partialKey, rest.getMatchGroup());  // one DK in the results
+        assertSame(partialKey, partialKey.getMatchGroup());
+
+        assertEquals(6, deduplicator.getNumDuplicates());
+        assertEquals(Integer.valueOf(5), deduplicator.getNumDuplicatesPerSource().get("NL"));
+        assertEquals(Arrays.asList("DE", "NL"), germanKeys.get(5).getCountryCodes());
+        assertEquals(Collections.singletonList("DE"), partialKey.getCountryCodes());
+        assertTrue(deduplicator.add(secondFile).isEmpty());
+    }
+}
@@ -0,0 +1,113 @@
+package org.tosl.coronawarncompanion;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.tosl.coronawarncompanion.crypto.CryptoException;
+import org.tosl.coronawarncompanion.crypto.HkdfSha256;
+import org.tosl.coronawarncompanion.crypto.KeyDerivation;
+import org.tosl.coronawarncompanion.matcher.Crypto;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the thread-confined HKDF against RFC 5869 and KeyDerivation, and compares it with the
+ * KeyDerivation behind a global lock at 1, 4 and 8 threads (only with -Dbenchmark=true).
+ */
+public class HkdfSha256UnitTest {
+
+    private static final byte[] rpiKeyInfo = "EN-RPIK".getBytes(StandardCharsets.UTF_8);
+    private static final int numDerivations = 40000;
+
+    private interface Derivation {
+        void derive(byte[] tek) throws CryptoException;
+    }
+
+    private static byte[][] createTeks(Random random, int numTeks) {
+        byte[][] teks = new byte[numTeks][16];
+        for (byte[] tek : teks) {
+            random.nextBytes(tek);
+        }
+        return teks;
+    }
+
+    @Test
+    public void deriveKey_givesRfc5869Result() {
+        // test case 3: zero-length salt and info, first 16 bytes of the OKM
+        byte[] inputKeyingMaterial = new byte[22];
+        java.util.Arrays.fill(inputKeyingMaterial, (byte) 0x0b);
+        byte[] expected = {(byte) 0x8d, (byte) 0xa4, (byte) 0xe7, 0x75, (byte) 0xa5, 0x63, (byte) 0xc1, (byte) 0x8f,
+                0x71, 0x5f, (byte) 0x80, 0x2a, 0x06, 0x3c, 0x5a, 0x31};
+        assertArrayEquals(expected, new HkdfSha256().deriveKey(inputKeyingMaterial, new byte[0]));
+    }
+
+    @Test
+    public void deriveKey_equalsKeyDerivation() throws CryptoException {
+        HkdfSha256 hkdf = new HkdfSha256();
+        byte[] aemKey = new byte[HkdfSha256.outputLength];
+        for (byte[] tek : createTeks(new Random(13), 1000)) {
+            assertArrayEquals(KeyDerivation.hkdfSha256(tek, null, rpiKeyInfo, 16), hkdf.deriveKey(tek, rpiKeyInfo));
+            assertArrayEquals(KeyDerivation.hkdfSha256(tek, null, rpiKeyInfo, 16), Crypto.deriveRpiKey(tek));
+            hkdf.expand("EN-AEMK".getBytes(StandardCharsets.UTF_8), aemKey, 0);  // same PRK
+            assertArrayEquals(Crypto.deriveAemKey(tek), aemKey);
+        }
+    }
+
+    private static long runOnThreads(final byte[][] teks, int numThreads, final Derivation derivation)
+            throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            final int perThread = teks.length / numThreads;
+            for (int t = 0; t < numThreads; t++) {
+                final int from = t * perThread;
+                tasks.add(() -> {
+                    for (int i = from; i < from + perThread; i++) {
+                        derivation.derive(teks[i]);
+                    }
+                    return null;
+                });
+            }
+            long start = System.nanoTime();
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+            return System.nanoTime() - start;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void benchmark_lockedVsThreadConfined() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        final byte[][] teks = createTeks(new Random(14), numDerivations);
+        final Object lock = new Object();
+        Derivation locked = tek -> {
+            synchronized (lock) {  // the way Crypto used to derive keys
+                KeyDerivation.hkdfSha256(tek, null, rpiKeyInfo, 16);
+            }
+        };
+        Derivation threadConfined = Crypto::deriveRpiKey;
+        for (int numThreads : new int[]{1, 4, 8}) {
+            long lockedNanos = Long.MAX_VALUE;
+            long threadConfinedNanos = Long.MAX_VALUE;
+            for (int round = 0; round < 3; round++) {  // the best of 3, the first rounds warm up the JIT
+                lockedNanos = Math.min(lockedNanos, runOnThreads(teks, numThreads, locked));
+                threadConfinedNanos = Math.min(threadConfinedNanos, runOnThreads(teks, numThreads, threadConfined));
+            }
+            System.out.println(String.format(Locale.ROOT,
+                    "HKDF, %d threads: locked %.0f keys/ms, thread-confined %.0f keys/ms", numThreads,
+                    numDerivations * 1e6 / lockedNanos, numDerivations * 1e6 / threadConfinedNanos));
+        }
+    }
+}
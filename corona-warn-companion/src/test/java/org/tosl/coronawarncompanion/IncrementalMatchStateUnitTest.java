@@ -0,0 +1,164 @@
+package org.tosl.coronawarncompanion;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.tosl.coronawarncompanion.diagnosiskeys.DiagnosisKey;
+import org.tosl.coronawarncompanion.matcher.Crypto;
+import org.tosl.coronawarncompanion.matcher.ForkJoinMatcher;
+import org.tosl.coronawarncompanion.matcher.IncrementalMatchState;
+import org.tosl.coronawarncompanion.matcher.Matcher;
+import org.tosl.coronawarncompanion.rpis.RpiList;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.tosl.coronawarncompanion.matcher.Crypto.deriveRpiKey;
+import static org.tosl.coronawarncompanion.tools.Utils.standardRollingPeriod;
+
+/**
+ * Checks that incremental matching, with a state saved by the previous run, gives the same matches as a full match.
+ */
+public class IncrementalMatchStateUnitTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static class Observation {
+        final byte[] rpiBytes;
+        final int timestamp;
+
+        Observation(byte[] rpiBytes, int timestamp) {
+            this.rpiBytes = rpiBytes;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private static List<Observation> createObservations(Random random, List<DiagnosisKey> diagnosisKeys) {
+        List<Observation> observations = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            byte[] rpiBytes = new byte[16];
+            random.nextBytes(rpiBytes);
+            observations.add(new Observation(rpiBytes, MatcherUnitTest.firstDaysSinceEpochUTC * 24 * 3600 +
+                    random.nextInt(MatcherUnitTest.numDays * 24 * 3600)));
+        }
+        Crypto crypto = new Crypto();
+        for (int i = 0; i < diagnosisKeys.size(); i += 5) {
+            DiagnosisKey dk = diagnosisKeys.get(i);
+            for (Crypto.RpiWithInterval rpiWithInterval : crypto.createListOfRpisForIntervalRange(
+                    deriveRpiKey(dk.dk.getKeyData().toByteArray()),
+                    dk.dk.getRollingStartIntervalNumber(), dk.dk.getRollingPeriod())) {
+                if (random.nextInt(20) == 0) {
+                    int offsetSeconds = (random.nextInt(6 * 3600) - 3 * 3600);
+                    observations.add(new Observation(rpiWithInterval.rpiBytes.clone(),
+                            rpiWithInterval.intervalNumber * 600 + offsetSeconds));
+                }
+            }
+        }
+        return observations;
+    }
+
+    private static RpiList createRpiList(List<Observation> observations, int endTimestamp) {
+        RpiList rpiList = new RpiList();
+        for (Observation observation : observations) {
+            if (observation.timestamp < endTimestamp) {
+                MatcherUnitTest.addEntry(rpiList, observation.rpiBytes, observation.timestamp);
+            }
+        }
+        rpiList.freeze();
+        return rpiList;
+    }
+
+    private static List<Matcher.MatchEntryAndDkAndDay> match(RpiList rpiList, List<DiagnosisKey> diagnosisKeys,
+                                                             IncrementalMatchState incrementalMatchState) {
+        List<Matcher.MatchEntryAndDkAndDay> matches = new ArrayList<>();
+        for (ForkJoinMatcher.MatchingUpdate matchingUpdate : new ForkJoinMatcher(rpiList, diagnosisKeys, 4,
+                Matcher.MatchingEngine.HASH, null, incrementalMatchState)
+                .getMatchingFlowable(ForkJoinMatcher.frameIntervalMillis).blockingIterable()) {
+            matches.addAll(matchingUpdate.matches);
+        }
+        final IdentityHashMap<DiagnosisKey, Integer> dkIndex = new IdentityHashMap<>();
+        for (int i = 0; i < diagnosisKeys.size(); i++) {
+            dkIndex.put(diagnosisKeys.get(i), i);
+        }
+        Collections.sort(matches, (m1, m2) -> {
+            int c = Integer.compare(dkIndex.get(m1.diagnosisKey), dkIndex.get(m2.diagnosisKey));
+            return (c != 0) ? c : Integer.compare(m1.matchEntry.startTimestampUTC, m2.matchEntry.startTimestampUTC);
+        });
+        return matches;
+    }
+
+    @Test
+    public void incrementalMatching_givesSameMatchesAsFullMatching() throws IOException {
+        Random random = new Random(9);
+        List<DiagnosisKey> diagnosisKeys = MatcherUnitTest.createDiagnosisKeys(random, 2500);
+        List<DiagnosisKey> yesterdaysDiagnosisKeys = diagnosisKeys.subList(0, 2000);
+        List<Observation> observations = createObservations(random, diagnosisKeys);
+        int lastDay = MatcherUnitTest.firstDaysSinceEpochUTC + MatcherUnitTest.numDays - 1;
+        RpiList yesterdaysRpiList = createRpiList(observations, lastDay * 24 * 3600 + 12 * 3600);  // until yesterday noon
+        RpiList todaysRpiList = createRpiList(observations, Integer.MAX_VALUE);
+
+        File file = temporaryFolder.newFile();
+        assertTrue(file.delete());
+        IncrementalMatchState incrementalMatchState = new IncrementalMatchState(file);
+        List<Matcher.MatchEntryAndDkAndDay> yesterdaysMatches =
+                match(yesterdaysRpiList, yesterdaysDiagnosisKeys, incrementalMatchState);
+        MatcherUnitTest.assertSameMatches(match(yesterdaysRpiList, yesterdaysDiagnosisKeys, null), yesterdaysMatches);
+        assertTrue(file.exists());
+
+        // new DKs, and new RPIs on the last day
+        IncrementalMatchState.Plan plan = new IncrementalMatchState(file).plan(todaysRpiList, diagnosisKeys);
+        assertTrue(plan.numReusedDiagnosisKeys > yesterdaysDiagnosisKeys.size() / 2);
+        List<Matcher.MatchEntryAndDkAndDay> expected = match(todaysRpiList, diagnosisKeys, null);
+        List<Matcher.MatchEntryAndDkAndDay> matches = match(todaysRpiList, diagnosisKeys, new IncrementalMatchState(file));
+        assertTrue(expected.size() > yesterdaysMatches.size());
+        MatcherUnitTest.assertSameMatches(expected, matches);
+
+        // nothing new: everything is reused
+        plan = new IncrementalMatchState(file).plan(todaysRpiList, diagnosisKeys);
+        assertEquals(diagnosisKeys.size(), plan.numReusedDiagnosisKeys);
+        MatcherUnitTest.assertSameMatches(expected, match(todaysRpiList, diagnosisKeys, new IncrementalMatchState(file)));
+    }
+
+    @Test
+    public void stoppedMatching_resumesFromCheckpoint() throws IOException {
+        Random random = new Random(17);
+        List<DiagnosisKey> diagnosisKeys = MatcherUnitTest.createDiagnosisKeys(random, 3000);
+        RpiList rpiList = createRpiList(createObservations(random, diagnosisKeys), Integer.MAX_VALUE);
+        List<Matcher.MatchEntryAndDkAndDay> expected = match(rpiList, diagnosisKeys, null);
+
+        // stop (e.g. by rotating the device) after some DKs have been matched
+        File file = temporaryFolder.newFile();
+        assertTrue(file.delete());
+        List<Matcher.MatchEntryAndDkAndDay> matchesBeforeStop = new ArrayList<>();
+        for (ForkJoinMatcher.MatchingUpdate matchingUpdate : new ForkJoinMatcher(rpiList, diagnosisKeys, 4,
+                Matcher.MatchingEngine.HASH, null, new IncrementalMatchState(file))
+                .getMatchingFlowable(ForkJoinMatcher.frameIntervalMillis)
+                .takeUntil(matchingUpdate -> matchingUpdate.progress >= 30)  // cancels the matching
+                .blockingIterable(1)) {
+            matchesBeforeStop.addAll(matchingUpdate.matches);
+        }
+        // the state is saved after the workers have stopped
+        for (int i = 0; i < 100 && !file.exists(); i++) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        assertTrue(file.exists());
+
+        // a new run with the same inputs only matches the DKs that haven't been completed
+        IncrementalMatchState.Plan plan = new IncrementalMatchState(file).plan(rpiList, diagnosisKeys);
+        assertTrue(plan.numReusedDiagnosisKeys > 0);
+        assertTrue(plan.diagnosisKeysToMatch.size() > 0);
+        assertTrue(plan.reusedMatches.size() <= matchesBeforeStop.size());
+        MatcherUnitTest.assertSameMatches(expected, match(rpiList, diagnosisKeys, new IncrementalMatchState(file)));
+    }
+}
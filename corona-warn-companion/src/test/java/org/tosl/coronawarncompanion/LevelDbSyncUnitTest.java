@@ -0,0 +1,267 @@
+package org.tosl.coronawarncompanion;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.tosl.coronawarncompanion.gmsreadout.LevelDbSync;
+import org.tosl.coronawarncompanion.gmsreadout.RootShell;
+import org.tosl.coronawarncompanion.gmsreadout.Sudo;
+import org.tosl.coronawarncompanion.gmsreadout.TarReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Streams a fake LevelDB directory through sh (instead of su).
+ */
+public class LevelDbSyncUnitTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final Random random = new Random(37);
+    private File sourceDir;
+    private File destinationDir;
+
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeTrue(new File("/bin/sh").exists());
+        Sudo.rootShellCommand = "sh";
+        sourceDir = temporaryFolder.newFolder("app_contact-tracing-contact-record-db");
+        destinationDir = new File(temporaryFolder.newFolder("cache"), "app_contact-tracing-contact-record-db_");
+    }
+
+    @After
+    public void tearDown() {
+        Sudo.rootShellCommand = "su";
+    }
+
+    private LevelDbSync.Result sync() throws IOException {
+        String[] sourceNames = sourceDir.list();
+        LevelDbSync.Result result = LevelDbSync.sync(sourceDir.getPath(), destinationDir);
+        assertArrayEquals(sourceNames, sourceDir.list());  // nothing renamed or left behind
+        return result;
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int length;
+        while ((length = inputStream.read(buffer)) != -1) {
+            output.write(buffer, 0, length);
+        }
+        return output.toByteArray();
+    }
+
+    private static RootShell.CommandOutput commandOutput(byte[] output, final int exitCode) {
+        final ByteArrayInputStream inputStream = new ByteArrayInputStream(output);
+        return new RootShell.CommandOutput() {
+            @Override
+            public int read() {
+                return inputStream.read();
+            }
+
+            @Override
+            public int getExitCode() {
+                return inputStream.available() == 0 ? exitCode : -1;
+            }
+        };
+    }
+
+    private void writeFile(String name, int size) throws IOException {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        try (FileOutputStream outputStream = new FileOutputStream(new File(sourceDir, name))) {
+            outputStream.write(bytes);
+        }
+    }
+
+    private void assertSameFiles() throws IOException {
+        String[] sourceNames = sourceDir.list();
+        assertNotNull(sourceNames);
+        for (String name : sourceNames) {
+            if (!name.equals("LOCK")) {
+                assertArrayEquals(name, Files.readAllBytes(new File(sourceDir, name).toPath()),
+                        Files.readAllBytes(new File(destinationDir, name).toPath()));
+            }
+        }
+        String[] destinationNames = destinationDir.list();
+        assertNotNull(destinationNames);
+        assertEquals(sourceNames.length - 1, destinationNames.length);
+    }
+
+    @Test
+    public void sync_copiesOnlyNewTableFiles() throws IOException {
+        writeFile("000005.ldb", 20000);
+        writeFile("000007.ldb", 30000);
+        writeFile("000008.log", 1000);
+        writeFile("MANIFEST-000006", 200);
+        writeFile("CURRENT", 16);
+        writeFile("LOCK", 0);
+
+        // first launch: everything but the LOCK
+        LevelDbSync.Result result = sync();
+        assertEquals(5, result.numCopied);
+        assertEquals(0, result.numSkipped);
+        assertEquals(51216, result.bytesCopied);
+        assertSameFiles();
+
+        // nothing new: only the log and the metadata
+        writeFile("000008.log", 1500);
+        result = sync();
+        assertEquals(3, result.numCopied);
+        assertEquals(2, result.numSkipped);
+        assertEquals(50000, result.bytesSkipped);
+        assertEquals(1716, result.bytesCopied);
+        assertSameFiles();
+
+        // a compaction merged 000005 into 000009
+        assertTrue(new File(sourceDir, "000005.ldb").delete());
+        writeFile("000009.ldb", 25000);
+        writeFile("MANIFEST-000006", 300);
+        result = sync();
+        assertEquals(4, result.numCopied);
+        assertEquals(1, result.numSkipped);
+        assertEquals(1, result.numDeleted);
+        assertFalse(new File(destinationDir, "000005.ldb").exists());
+        assertSameFiles();
+
+        // a table file that doesn't match its copy (e.g. a copy of another database) is copied again
+        File table = new File(sourceDir, "000007.ldb");
+        assertTrue(table.setLastModified(table.lastModified() - 3600 * 1000));
+        result = sync();
+        assertEquals(4, result.numCopied);
+        assertEquals(1, result.numSkipped);
+        assertSameFiles();
+    }
+
+    @Test
+    public void extract_leavesTheCopyAsItWasOnError() throws IOException {
+        writeFile("000005.ldb", 20000);
+        writeFile("000008.log", 1000);
+        writeFile("CURRENT", 16);
+        writeFile("LOCK", 0);
+        sync();
+
+        // a compaction, but the tar stream breaks off
+        assertTrue(new File(sourceDir, "000005.ldb").delete());
+        writeFile("000009.ldb", 25000);
+        writeFile("000008.log", 1500);
+        byte[] tar;
+        try (InputStream inputStream = Sudo.openTar(sourceDir.getPath())) {
+            tar = readAll(inputStream);
+        }
+        byte[] copyBefore = Files.readAllBytes(new File(destinationDir, "000008.log").toPath());
+        LevelDbSync.Plan plan = LevelDbSync.plan(LevelDbSync.parseListing(Sudo.sudo(
+                LevelDbSync.getListCommand(sourceDir.getPath()))), destinationDir);
+        assertEquals(Collections.singletonList("000005.ldb"), plan.namesToDelete);
+        try {
+            LevelDbSync.extract(commandOutput(Arrays.copyOf(tar, tar.length - 3000), 0), plan, destinationDir);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(new HashSet<>(Arrays.asList("000005.ldb", "000008.log", "CURRENT")),
+                new HashSet<>(Arrays.asList(destinationDir.list())));
+        assertArrayEquals(copyBefore, Files.readAllBytes(new File(destinationDir, "000008.log").toPath()));
+
+        // the next sync completes it
+        sync();
+        assertSameFiles();
+    }
+
+    @Test
+    public void extract_leavesTheCopyAsItWasIfTarFails() throws IOException {
+        writeFile("000005.ldb", 20000);
+        writeFile("000008.log", 1000);
+        writeFile("CURRENT", 16);
+        writeFile("LOCK", 0);
+        sync();
+
+        // a compaction deletes a table file between the listing and tar
+        writeFile("000009.ldb", 25000);
+        writeFile("000008.log", 1500);
+        byte[] copyBefore = Files.readAllBytes(new File(destinationDir, "000008.log").toPath());
+        LevelDbSync.Plan plan = LevelDbSync.plan(LevelDbSync.parseListing(Sudo.sudo(
+                LevelDbSync.getListCommand(sourceDir.getPath()))), destinationDir);
+        assertTrue(new File(sourceDir, "000009.ldb").delete());
+        try {
+            LevelDbSync.extract(Sudo.openTar(sourceDir.getPath(), plan.namesToFetch.toArray(new String[0])),
+                    plan, destinationDir);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(new HashSet<>(Arrays.asList("000005.ldb", "000008.log", "CURRENT")),
+                new HashSet<>(Arrays.asList(destinationDir.list())));
+        assertArrayEquals(copyBefore, Files.readAllBytes(new File(destinationDir, "000008.log").toPath()));
+
+        // the next sync completes it
+        sync();
+        assertSameFiles();
+    }
+
+    @Test
+    public void openFile_streamsTheFile() throws IOException {
+        writeFile("contacts.db", 100000);
+        try (RootShell.CommandOutput inputStream = Sudo.openFile(new File(sourceDir, "contacts.db").getPath())) {
+            assertArrayEquals(Files.readAllBytes(new File(sourceDir, "contacts.db").toPath()), readAll(inputStream));
+            assertEquals(0, inputStream.getExitCode());
+        }
+        try (RootShell.CommandOutput inputStream = Sudo.openFile(new File(sourceDir, "missing.db").getPath())) {
+            assertEquals(0, readAll(inputStream).length);
+            assertNotEquals(0, inputStream.getExitCode());
+        }
+    }
+
+    @Test
+    public void openTar_streamsTheDirectory() throws IOException {
+        writeFile("000005.ldb", 20000);
+        writeFile("CURRENT", 16);
+        writeFile("LOCK", 0);
+        Set<String> names = new HashSet<>();
+        try (TarReader tarReader = new TarReader(Sudo.openTar(sourceDir.getPath()))) {
+            TarReader.Entry entry;
+            while ((entry = tarReader.next()) != null) {
+                File file = new File(sourceDir, entry.name);
+                assertEquals(file.length(), entry.size);
+                assertEquals(file.lastModified() / 1000, entry.mtimeSeconds);
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                byte[] buffer = new byte[1000];
+                int length;
+                while ((length = tarReader.read(buffer, 0, buffer.length)) != -1) {
+                    content.write(buffer, 0, length);
+                }
+                assertArrayEquals(entry.name, Files.readAllBytes(file.toPath()), content.toByteArray());
+                names.add(entry.name);
+            }
+        }
+        assertEquals(new HashSet<>(Arrays.asList("000005.ldb", "CURRENT", "LOCK")), names);
+    }
+
+    @Test
+    public void parseListing_readsNameSizeAndMtime() {
+        List<LevelDbSync.FileInfo> fileInfos = LevelDbSync.parseListing(
+                "000005.ldb 20000 1604232000\nCURRENT 16 1604232001\nstat: cannot stat\n");
+        assertEquals(2, fileInfos.size());
+        assertEquals("000005.ldb", fileInfos.get(0).name);
+        assertEquals(20000, fileInfos.get(0).size);
+        assertEquals(1604232000L, fileInfos.get(0).mtimeSeconds);
+    }
+}
@@ -0,0 +1,114 @@
+package org.tosl.coronawarncompanion;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.tosl.coronawarncompanion.crypto.AesEcbEncryptor;
+import org.tosl.coronawarncompanion.diagnosiskeys.DiagnosisKey;
+import org.tosl.coronawarncompanion.matcher.Crypto;
+import org.tosl.coronawarncompanion.matcher.Matcher;
+import org.tosl.coronawarncompanion.rpis.RpiList;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.tosl.coronawarncompanion.matcher.Crypto.deriveRpiKey;
+
+/**
+ * Counts the bytes allocated per Diagnosis Key by the hash matcher, which derives, encrypts and probes
+ * into reused buffers, and compares them with generating a list of RpiWithInterval objects per DK.
+ */
+public class MatcherAllocationUnitTest {
+    private static final int numDiagnosisKeys = 2000;
+    private static final int maxBytesPerDiagnosisKey = 64;  // the per-run setup, spread over all DKs
+
+    private com.sun.management.ThreadMXBean threadMXBean;
+    private AesEcbEncryptor.Implementation aesImplementation;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+        // JCE allocates in Cipher.init(), for every DK
+        aesImplementation = Crypto.aesImplementation;
+        Crypto.aesImplementation = AesEcbEncryptor.Implementation.TABLE;
+    }
+
+    @After
+    public void tearDown() {
+        if (aesImplementation != null) {
+            Crypto.aesImplementation = aesImplementation;
+        }
+    }
+
+    private long getAllocatedBytes() {
+        return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // only random RPIs, so that every DK is derived and probed completely, and nothing matches
+    private static RpiList createRpiList(Random random) {
+        RpiList rpiList = new RpiList();
+        for (int i = 0; i < 20000; i++) {
+            byte[] rpiBytes = new byte[16];
+            random.nextBytes(rpiBytes);
+            MatcherUnitTest.addEntry(rpiList, rpiBytes, MatcherUnitTest.firstDaysSinceEpochUTC * 24 * 3600 +
+                    random.nextInt(MatcherUnitTest.numDays * 24 * 3600));
+        }
+        rpiList.freeze();
+        return rpiList;
+    }
+
+    // runs synchronously, on this thread
+    private static int matchFused(RpiList rpiList, List<DiagnosisKey> diagnosisKeys) {
+        int[] numMatches = {0};
+        new Matcher(rpiList, diagnosisKeys, 0).getMatchingObservable().subscribe(progressAndMatch -> {
+            if (progressAndMatch.matchEntryAndDkAndDay != null) {
+                numMatches[0]++;
+            }
+        });
+        return numMatches[0];
+    }
+
+    private static int matchWithRpiObjects(RpiList rpiList, List<DiagnosisKey> diagnosisKeys) {
+        int numMatches = 0;
+        Crypto crypto = new Crypto();
+        for (DiagnosisKey dk : diagnosisKeys) {
+            for (Crypto.RpiWithInterval rpiWithInterval : crypto.createListOfRpisForIntervalRange(
+                    deriveRpiKey(dk.dk.getKeyData().toByteArray()),
+                    dk.dk.getRollingStartIntervalNumber(), dk.dk.getRollingPeriod())) {
+                if (rpiList.searchForRpiOnDaySinceEpochUTCWith2HoursTolerance(rpiWithInterval) != null) {
+                    numMatches++;
+                }
+            }
+        }
+        return numMatches;
+    }
+
+    @Test
+    public void fusedMatching_allocatesAlmostNothingPerDiagnosisKey() {
+        Random random = new Random(31);
+        List<DiagnosisKey> diagnosisKeys = MatcherUnitTest.createDiagnosisKeys(random, numDiagnosisKeys);
+        RpiList rpiList = createRpiList(random);
+
+        // warm up, so that the measurement doesn't include class loading and the thread-local buffers
+        matchFused(rpiList, diagnosisKeys);
+        matchWithRpiObjects(rpiList, diagnosisKeys);
+
+        long start = getAllocatedBytes();
+        int fusedMatches = matchFused(rpiList, diagnosisKeys);
+        long fusedBytes = getAllocatedBytes() - start;
+        start = getAllocatedBytes();
+        int rpiObjectMatches = matchWithRpiObjects(rpiList, diagnosisKeys);
+        long rpiObjectBytes = getAllocatedBytes() - start;
+
+        assertEquals(0, fusedMatches);
+        assertEquals(0, rpiObjectMatches);
+        assertTrue(fusedBytes / numDiagnosisKeys < maxBytesPerDiagnosisKey);
+        assertTrue(fusedBytes * 20 < rpiObjectBytes);
+    }
+}
@@ -0,0 +1,287 @@
+package org.tosl.coronawarncompanion;
+
+import com.google.protobuf.ByteString;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.tosl.coronawarncompanion.diagnosiskeys.DiagnosisKey;
+import org.tosl.coronawarncompanion.diagnosiskeys.DiagnosisKeysProtos;
+import org.tosl.coronawarncompanion.gmsreadout.ContactRecordsProtos;
+import org.tosl.coronawarncompanion.matcher.Crypto;
+import org.tosl.coronawarncompanion.matcher.DiagnosisKeyPruner;
+import org.tosl.coronawarncompanion.matcher.ForkJoinMatcher;
+import org.tosl.coronawarncompanion.matcher.Matcher;
+import org.tosl.coronawarncompanion.rpis.RpiList;
+import org.tosl.coronawarncompanion.tools.CancellationToken;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Flowable;
+
+import static org.junit.Assert.*;
+import static org.tosl.coronawarncompanion.matcher.Crypto.deriveAemKey;
+import static org.tosl.coronawarncompanion.matcher.Crypto.deriveRpiKey;
+import static org.tosl.coronawarncompanion.tools.Utils.getDaysFromSeconds;
+import static org.tosl.coronawarncompanion.tools.Utils.standardRollingPeriod;
+
+/**
+ * Runs the matching engines on the same synthetic RPIs and Diagnosis Keys.
+ * The throughput benchmark only runs with -Dbenchmark=true.
+ */
+public class MatcherUnitTest {
+
+    static final int firstDaysSinceEpochUTC = 18500;
+    static final int numDays = 14;
+
+    static List<DiagnosisKey> createDiagnosisKeys(Random random, int numKeys) {
+        List<DiagnosisKey> diagnosisKeys = new ArrayList<>();
+        for (int i = 0; i < numKeys; i++) {
+            byte[] keyBytes = new byte[16];
+            random.nextBytes(keyBytes);
+            int daysSinceEpochUTC = firstDaysSinceEpochUTC - 1 + random.nextInt(numDays + 1);
+            @SuppressWarnings("deprecation") DiagnosisKeysProtos.TemporaryExposureKey tek =
+                    DiagnosisKeysProtos.TemporaryExposureKey.newBuilder()
+                            .setKeyData(ByteString.copyFrom(keyBytes))
+                            .setTransmissionRiskLevel(5)
+                            .setRollingStartIntervalNumber(daysSinceEpochUTC * standardRollingPeriod)
+                            .setRollingPeriod(standardRollingPeriod)
+                            .build();
+            diagnosisKeys.add(new DiagnosisKey(tek, "DE"));
+        }
+        return diagnosisKeys;
+    }
+
+    static void addEntry(RpiList rpiList, byte[] rpiBytes, int timestamp) {
+        ContactRecordsProtos.ContactRecords contactRecords = ContactRecordsProtos.ContactRecords.newBuilder()
+                .addRecord(ContactRecordsProtos.ScanRecord.newBuilder().setTimestamp(timestamp).setRssi(-60))
+                .addRecord(ContactRecordsProtos.ScanRecord.newBuilder().setTimestamp(timestamp + 300).setRssi(-70))
+                .build();
+        rpiList.addEntry(getDaysFromSeconds(timestamp), rpiBytes, contactRecords);
+    }
+
+    /*
+     Creates an RpiList with random RPIs, plus some RPIs of the given Diagnosis Keys.
+     Some of these are observed more than 2 hours away from their interval, so they must not match,
+     and some are observed near midnight, so they are only found in the "early" or "late" lists.
+     */
+    static RpiList createRpiList(Random random, List<DiagnosisKey> diagnosisKeys, int numRandomRpis) {
+        RpiList rpiList = new RpiList();
+        for (int i = 0; i < numRandomRpis; i++) {
+            byte[] rpiBytes = new byte[16];
+            random.nextBytes(rpiBytes);
+            addEntry(rpiList, rpiBytes, firstDaysSinceEpochUTC * 24 * 3600 + random.nextInt(numDays * 24 * 3600));
+        }
+        Crypto crypto = new Crypto();
+        for (int i = 0; i < diagnosisKeys.size(); i += 7) {
+            DiagnosisKey dk = diagnosisKeys.get(i);
+            for (Crypto.RpiWithInterval rpiWithInterval : crypto.createListOfRpisForIntervalRange(
+                    deriveRpiKey(dk.dk.getKeyData().toByteArray()),
+                    dk.dk.getRollingStartIntervalNumber(), dk.dk.getRollingPeriod())) {
+                int intervalInDay = rpiWithInterval.intervalNumber % standardRollingPeriod;
+                if (random.nextInt(20) == 0 || intervalInDay < 3 || intervalInDay > standardRollingPeriod - 3) {
+                    int offsetSeconds = (random.nextInt(6 * 3600) - 3 * 3600);  // up to 3 hours early or late
+                    addEntry(rpiList, rpiWithInterval.rpiBytes.clone(), rpiWithInterval.intervalNumber * 600 + offsetSeconds);
+                }
+            }
+        }
+        rpiList.freeze();
+        return rpiList;
+    }
+
+    static List<Matcher.MatchEntryAndDkAndDay> runMatcher(RpiList rpiList, List<DiagnosisKey> diagnosisKeys,
+                                                          Matcher.MatchingEngine matchingEngine) {
+        List<Matcher.MatchEntryAndDkAndDay> matches = new ArrayList<>();
+        for (Matcher.ProgressAndMatchEntryAndDkAndDay progressAndMatch :
+                new Matcher(rpiList, diagnosisKeys, 0, matchingEngine).getMatchingObservable().blockingIterable()) {
+            if (progressAndMatch.matchEntryAndDkAndDay != null) {
+                matches.add(progressAndMatch.matchEntryAndDkAndDay);
+            }
+        }
+        return matches;
+    }
+
+    static void assertSameMatches(List<Matcher.MatchEntryAndDkAndDay> expected, List<Matcher.MatchEntryAndDkAndDay> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertSame(expected.get(i).diagnosisKey, actual.get(i).diagnosisKey);
+            assertEquals(expected.get(i).daysSinceEpochLocalTZ, actual.get(i).daysSinceEpochLocalTZ);
+            assertSame(expected.get(i).matchEntry.contactRecords, actual.get(i).matchEntry.contactRecords);
+            assertEquals(expected.get(i).matchEntry.startTimestampUTC, actual.get(i).matchEntry.startTimestampUTC);
+            assertArrayEquals(expected.get(i).matchEntry.getAemXorBytes(), actual.get(i).matchEntry.getAemXorBytes());
+        }
+    }
+
+    @Test
+    public void sortMergeEngine_findsSameMatchesAsHashEngine() {
+        Random random = new Random(3);
+        List<DiagnosisKey> diagnosisKeys = createDiagnosisKeys(random, 3000);
+        RpiList rpiList = createRpiList(random, diagnosisKeys, 20000);
+
+        List<Matcher.MatchEntryAndDkAndDay> hashMatches = runMatcher(rpiList, diagnosisKeys, Matcher.MatchingEngine.HASH);
+        List<Matcher.MatchEntryAndDkAndDay> sortMergeMatches = runMatcher(rpiList, diagnosisKeys, Matcher.MatchingEngine.SORT_MERGE);
+
+        assertTrue(hashMatches.size() > 0);
+        assertSameMatches(hashMatches, sortMergeMatches);
+        // the AEM key is the one of the matched DK, and the AEM XOR bytes are decrypted only once
+        Matcher.MatchEntryAndDkAndDay match = hashMatches.get(0);
+        byte[] aemKey = deriveAemKey(match.diagnosisKey.dk.getKeyData().toByteArray());
+        assertArrayEquals(aemKey, match.matchEntry.getAemKey());
+        assertSame(match.matchEntry.getAemXorBytes(), match.matchEntry.getAemXorBytes());
+    }
+
+    @Test
+    public void streamingMatcher_matchesEveryBatchAsItArrives() {
+        Random random = new Random(16);
+        List<DiagnosisKey> diagnosisKeys = createDiagnosisKeys(random, 3000);
+        RpiList rpiList = createRpiList(random, diagnosisKeys, 20000);
+        List<Matcher.MatchEntryAndDkAndDay> expected = runMatcher(rpiList, diagnosisKeys, Matcher.MatchingEngine.HASH);
+
+        // one "downloaded file" every 50 ms
+        List<List<DiagnosisKey>> batches = new ArrayList<>();
+        for (int i = 0; i < diagnosisKeys.size(); i += 500) {
+            batches.add(diagnosisKeys.subList(i, Math.min(i + 500, diagnosisKeys.size())));
+        }
+        final int[] numRequestedBatches = {0};
+        Flowable<List<DiagnosisKey>> diagnosisKeyBatches = Flowable.fromIterable(batches)
+                .doOnNext(batch -> numRequestedBatches[0]++)
+                .concatMap(batch -> Flowable.just(batch).delay(50, TimeUnit.MILLISECONDS), 1);
+        ForkJoinMatcher forkJoinMatcher = new ForkJoinMatcher(rpiList, diagnosisKeyBatches, 4,
+                Matcher.MatchingEngine.HASH, null, null, null, new CancellationToken());
+        List<Matcher.MatchEntryAndDkAndDay> matches = new ArrayList<>();
+        int numUpdatesWithMatches = 0;
+        for (ForkJoinMatcher.MatchingUpdate matchingUpdate :
+                forkJoinMatcher.getMatchingFlowable(ForkJoinMatcher.frameIntervalMillis).blockingIterable(1)) {
+            if (!matchingUpdate.matches.isEmpty()) {
+                numUpdatesWithMatches++;
+                // matches of the first batches arrive while the last ones haven't even been requested
+                assertTrue(matches.size() > 0 || numRequestedBatches[0] < batches.size());
+            }
+            matches.addAll(matchingUpdate.matches);
+        }
+        assertTrue(numUpdatesWithMatches >= batches.size() / 2);
+
+        final IdentityHashMap<DiagnosisKey, Integer> dkIndex = new IdentityHashMap<>();
+        for (int i = 0; i < diagnosisKeys.size(); i++) {
+            dkIndex.put(diagnosisKeys.get(i), i);
+        }
+        Comparator<Matcher.MatchEntryAndDkAndDay> comparator = (m1, m2) -> {
+            int c = Integer.compare(dkIndex.get(m1.diagnosisKey), dkIndex.get(m2.diagnosisKey));
+            return (c != 0) ? c : Integer.compare(m1.matchEntry.startTimestampUTC, m2.matchEntry.startTimestampUTC);
+        };
+        Collections.sort(expected, comparator);
+        Collections.sort(matches, comparator);
+        assertSameMatches(expected, matches);
+    }
+
+    @Test
+    public void dayAffinityPartitioning_throughput() {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        Random random = new Random(15);
+        List<DiagnosisKey> diagnosisKeys = createDiagnosisKeys(random, 6000);
+        RpiList rpiList = createRpiList(random, diagnosisKeys, 100000);
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        ForkJoinMatcher.Partitioning[] partitionings = ForkJoinMatcher.Partitioning.values();
+        for (Matcher.MatchingEngine matchingEngine : Matcher.MatchingEngine.values()) {
+            int[] numMatches = new int[partitionings.length];
+            long[] bestNanos = new long[partitionings.length];
+            Arrays.fill(bestNanos, Long.MAX_VALUE);
+            for (int round = 0; round < 5; round++) {  // alternating, and the best of all rounds, against JIT and GC noise
+                for (ForkJoinMatcher.Partitioning partitioning : partitionings) {
+                    ForkJoinMatcher forkJoinMatcher = new ForkJoinMatcher(rpiList, diagnosisKeys, parallelism,
+                            matchingEngine, null, null, partitioning);
+                    long start = System.nanoTime();
+                    numMatches[partitioning.ordinal()] = 0;
+                    for (ForkJoinMatcher.MatchingUpdate matchingUpdate :
+                            forkJoinMatcher.getMatchingFlowable(ForkJoinMatcher.frameIntervalMillis).blockingIterable()) {
+                        numMatches[partitioning.ordinal()] += matchingUpdate.matches.size();
+                    }
+                    bestNanos[partitioning.ordinal()] = Math.min(bestNanos[partitioning.ordinal()],
+                            System.nanoTime() - start);
+                }
+            }
+            for (ForkJoinMatcher.Partitioning partitioning : partitionings) {
+                assertEquals(numMatches[0], numMatches[partitioning.ordinal()]);
+                long nanos = bestNanos[partitioning.ordinal()];
+                System.out.printf("%s, %s: %d DKs in %d ms, %.0f DKs/s (%d workers)%n", matchingEngine, partitioning,
+                        diagnosisKeys.size(), nanos / 1000000, diagnosisKeys.size() * 1e9 / nanos, parallelism);
+            }
+        }
+    }
+
+    @Test
+    public void pruning_keepsAllMatches() {
+        Random random = new Random(5);
+        List<DiagnosisKey> diagnosisKeys = createDiagnosisKeys(random, 1000);
+        // only the RPIs of the DKs, and only on the first days, so that most DKs can't match at all
+        List<DiagnosisKey> observedKeys = new ArrayList<>();
+        for (DiagnosisKey dk : diagnosisKeys) {
+            if (dk.dk.getRollingStartIntervalNumber() < (firstDaysSinceEpochUTC + 3) * standardRollingPeriod) {
+                observedKeys.add(dk);
+            }
+        }
+        RpiList rpiList = createRpiList(random, observedKeys, 0);
+
+        DiagnosisKeyPruner.Result result = DiagnosisKeyPruner.prune(rpiList, diagnosisKeys);
+        assertTrue(result.numDroppedKeys > 0);
+        assertTrue(result.numSkippedIntervals > (long) result.numDroppedKeys * standardRollingPeriod);
+        assertEquals(diagnosisKeys.size() - result.numDroppedKeys, result.diagnosisKeys.size());
+
+        List<Matcher.MatchEntryAndDkAndDay> matches = runMatcher(rpiList, diagnosisKeys, Matcher.MatchingEngine.HASH);
+        assertTrue(matches.size() > 0);
+        assertSameMatches(matches, runMatcher(rpiList, result.diagnosisKeys, Matcher.MatchingEngine.HASH));
+        assertSameMatches(matches, runMatcher(rpiList, result.diagnosisKeys, Matcher.MatchingEngine.SORT_MERGE));
+    }
+
+    @Test
+    public void forkJoinMatcher_findsSameMatchesAndReportsProgress() {
+        Random random = new Random(6);
+        List<DiagnosisKey> diagnosisKeys = createDiagnosisKeys(random, 3000);
+        RpiList rpiList = createRpiList(random, diagnosisKeys, 20000);
+        List<Matcher.MatchEntryAndDkAndDay> expected = runMatcher(rpiList, diagnosisKeys, Matcher.MatchingEngine.HASH);
+
+        for (Matcher.MatchingEngine matchingEngine : Matcher.MatchingEngine.values()) {
+          for (ForkJoinMatcher.Partitioning partitioning : ForkJoinMatcher.Partitioning.values()) {
+            ForkJoinMatcher forkJoinMatcher = new ForkJoinMatcher(rpiList, diagnosisKeys, 4, matchingEngine,
+                    null, null, partitioning);
+            List<Matcher.MatchEntryAndDkAndDay> matches = new ArrayList<>();
+            int lastProgress = 0;
+            int numUpdates = 0;
+            for (ForkJoinMatcher.MatchingUpdate matchingUpdate :
+                    forkJoinMatcher.getMatchingFlowable(ForkJoinMatcher.frameIntervalMillis).blockingIterable(1)) {
+                assertTrue(matchingUpdate.progress >= lastProgress);
+                lastProgress = matchingUpdate.progress;
+                matches.addAll(matchingUpdate.matches);
+                numUpdates++;
+            }
+            assertEquals(100, lastProgress);
+            assertTrue(numUpdates < expected.size());  // matches are delivered in batches
+
+            // the workers report their matches in any order
+            final IdentityHashMap<DiagnosisKey, Integer> dkIndex = new IdentityHashMap<>();
+            for (int i = 0; i < diagnosisKeys.size(); i++) {
+                dkIndex.put(diagnosisKeys.get(i), i);
+            }
+            Comparator<Matcher.MatchEntryAndDkAndDay> comparator = (m1, m2) -> {
+                int c = Integer.compare(dkIndex.get(m1.diagnosisKey), dkIndex.get(m2.diagnosisKey));
+                return (c != 0) ? c : Integer.compare(m1.matchEntry.startTimestampUTC, m2.matchEntry.startTimestampUTC);
+            };
+            Collections.sort(expected, comparator);
+            Collections.sort(matches, comparator);
+            assertSameMatches(expected, matches);
+
+            int numDiagnosisKeys = 0;
+            for (ForkJoinMatcher.WorkerStatistics statistics : forkJoinMatcher.getWorkerStatistics()) {
+                numDiagnosisKeys += statistics.numDiagnosisKeys;
+            }
+            assertEquals(diagnosisKeys.size(), numDiagnosisKeys);
+          }
+        }
+    }
+}
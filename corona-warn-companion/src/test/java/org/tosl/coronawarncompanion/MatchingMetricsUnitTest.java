@@ -0,0 +1,58 @@
+package org.tosl.coronawarncompanion;
+
+import org.junit.Test;
+import org.tosl.coronawarncompanion.diagnosiskeys.DiagnosisKey;
+import org.tosl.coronawarncompanion.matcher.ForkJoinMatcher;
+import org.tosl.coronawarncompanion.matcher.Matcher;
+import org.tosl.coronawarncompanion.matcher.MatchingMetrics;
+import org.tosl.coronawarncompanion.rpis.RpiList;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the per-stage metrics of a matching run, and keeps a (loose) throughput budget.
+ */
+public class MatchingMetricsUnitTest {
+
+    private static MatchingMetrics runMatcher(RpiList rpiList, List<DiagnosisKey> diagnosisKeys,
+                                              Matcher.MatchingEngine matchingEngine) {
+        ForkJoinMatcher forkJoinMatcher = new ForkJoinMatcher(rpiList, diagnosisKeys, 2, matchingEngine, null, null);
+        forkJoinMatcher.getMatchingFlowable(ForkJoinMatcher.frameIntervalMillis).blockingLast();
+        return forkJoinMatcher.getMetrics();
+    }
+
+    @Test
+    public void matching_recordsEveryStage() {
+        Random random = new Random(19);
+        List<DiagnosisKey> diagnosisKeys = MatcherUnitTest.createDiagnosisKeys(random, 3000);
+        RpiList rpiList = MatcherUnitTest.createRpiList(random, diagnosisKeys, 20000);
+
+        for (Matcher.MatchingEngine matchingEngine : Matcher.MatchingEngine.values()) {
+            MatchingMetrics metrics = runMatcher(rpiList, diagnosisKeys, matchingEngine);
+            assertEquals(diagnosisKeys.size(), metrics.getCount(MatchingMetrics.Stage.DIAGNOSIS_KEY));
+            long rpiKeyDerivations = metrics.getCount(MatchingMetrics.Stage.RPI_KEY_DERIVATION);
+            assertTrue(rpiKeyDerivations > 0 && rpiKeyDerivations <= diagnosisKeys.size());
+            assertEquals(rpiKeyDerivations, metrics.getCount(MatchingMetrics.Stage.RPI_ENCRYPTION));
+            assertTrue(metrics.getCount(MatchingMetrics.Stage.FILTER_PROBE) > rpiKeyDerivations);
+            assertTrue(metrics.getCount(MatchingMetrics.Stage.MATCH_EMISSION) > 0);
+            assertTrue(metrics.getCount(MatchingMetrics.Stage.AEM_KEY_DERIVATION) > 0);
+            assertTrue(metrics.getEstimatedNanos(MatchingMetrics.Stage.RPI_ENCRYPTION) > 0);
+            if (matchingEngine == Matcher.MatchingEngine.SORT_MERGE) {
+                assertTrue(metrics.getCount(MatchingMetrics.Stage.SORT_MERGE_JOIN) > 0);
+            } else {
+                assertTrue(metrics.getCount(MatchingMetrics.Stage.INDEX_SEARCH) > 0);
+            }
+            assertTrue(metrics.getWallNanos() > 0);
+            // a budget that only catches gross regressions, even on a slow CI machine
+            assertTrue(metrics.getDiagnosisKeysPerSecond() > 500);
+
+            String json = metrics.toJson();
+            for (MatchingMetrics.Stage stage : MatchingMetrics.Stage.values()) {
+                assertTrue(json.contains("\"" + stage + "\":{\"count\":" + metrics.getCount(stage)));
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package org.tosl.coronawarncompanion;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.tosl.coronawarncompanion.diagnosiskeys.DiagnosisKey;
+import org.tosl.coronawarncompanion.matcher.ForkJoinMatcher;
+import org.tosl.coronawarncompanion.matcher.Matcher;
+import org.tosl.coronawarncompanion.matcher.ParallelismController;
+import org.tosl.coronawarncompanion.rpis.RpiList;
+import org.tosl.coronawarncompanion.tools.CancellationToken;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import io.reactivex.Flowable;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives a ParallelismController with a fake clock, and checks that the fastest number of workers is chosen,
+ * saved and used as the start of the next run. Also runs the ForkJoinMatcher with a ParallelismController.
+ */
+public class ParallelismControllerUnitTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static int match(RpiList rpiList, List<DiagnosisKey> diagnosisKeys,
+                             ParallelismController parallelismController) {
+        int numMatches = 0;
+        for (ForkJoinMatcher.MatchingUpdate matchingUpdate : new ForkJoinMatcher(rpiList, Flowable.just(diagnosisKeys),
+                4, Matcher.MatchingEngine.HASH, null, null, parallelismController, new CancellationToken())
+                .getMatchingFlowable(ForkJoinMatcher.frameIntervalMillis).blockingIterable()) {
+            numMatches += matchingUpdate.matches.size();
+        }
+        return numMatches;
+    }
+
+    private static class FakeClock implements ParallelismController.NanoClock {
+        long nanos = 1000000000L;
+
+        @Override
+        public long nanoTime() {
+            return nanos;
+        }
+    }
+
+    /*
+     Matches one chunk of numDiagnosisKeys DKs in the given time.
+     */
+    private static void matchChunk(ParallelismController parallelismController, FakeClock clock,
+                                   int numDiagnosisKeys, long millis) {
+        parallelismController.acquire();
+        clock.nanos += millis * 1000000L;
+        parallelismController.release(numDiagnosisKeys);
+    }
+
+    @Test
+    public void matcherWithController_findsAllMatches() {
+        Random random = new Random(18);
+        List<DiagnosisKey> diagnosisKeys = MatcherUnitTest.createDiagnosisKeys(random, 6000);
+        RpiList rpiList = MatcherUnitTest.createRpiList(random, diagnosisKeys, 20000);
+        int expectedNumMatches = match(rpiList, diagnosisKeys, null);
+        assertEquals(expectedNumMatches, match(rpiList, diagnosisKeys, new ParallelismController(null, 4, 5, 20)));
+    }
+
+    @Test
+    public void chosenWorkerCount_isSavedForTheNextRun() throws IOException {
+        File file = temporaryFolder.newFile();
+        assertTrue(file.delete());
+        FakeClock clock = new FakeClock();
+        ParallelismController parallelismController = new ParallelismController(file, 4, 5, 20, clock);
+        assertEquals(4, parallelismController.getActiveWorkers());
+        matchChunk(parallelismController, clock, 100, 5);  // warm-up
+        assertFalse(parallelismController.isDecided());
+        matchChunk(parallelismController, clock, 1000, 20);  // 4 workers
+        assertEquals(3, parallelismController.getActiveWorkers());
+        matchChunk(parallelismController, clock, 1500, 20);  // 3 workers: the fastest
+        matchChunk(parallelismController, clock, 1200, 20);  // 2 workers
+        assertFalse(parallelismController.isDecided());
+        matchChunk(parallelismController, clock, 600, 20);   // 1 worker
+        assertTrue(parallelismController.isDecided());
+        assertEquals(3, parallelismController.getActiveWorkers());
+        assertTrue(file.exists());
+
+        // the next run starts with the saved number of workers, and only probes the counts next to it
+        ParallelismController nextParallelismController = new ParallelismController(file, 4, 5, 20, clock);
+        assertEquals(3, nextParallelismController.getActiveWorkers());
+        assertTrue(nextParallelismController.getDecisions().contains("saved 3 workers, candidates [3, 4, 2]"));
+        matchChunk(nextParallelismController, clock, 100, 5);
+        matchChunk(nextParallelismController, clock, 1500, 20);  // 3 workers
+        matchChunk(nextParallelismController, clock, 1800, 20);  // 4 workers: now the fastest, e.g. not throttled
+        matchChunk(nextParallelismController, clock, 1200, 20);  // 2 workers
+        assertTrue(nextParallelismController.isDecided());
+        assertEquals(4, nextParallelismController.getActiveWorkers());
+        assertEquals(4, new ParallelismController(file, 4, 5, 20, clock).getActiveWorkers());
+
+        // another number of cores: the saved number isn't used
+        assertEquals(8, new ParallelismController(file, 8, 5, 20, clock).getActiveWorkers());
+    }
+
+    @Test
+    public void shortRun_isNotSaved() throws IOException {
+        File file = temporaryFolder.newFile();
+        assertTrue(file.delete());
+        FakeClock clock = new FakeClock();
+        ParallelismController parallelismController = new ParallelismController(file, 4, 5, 20, clock);
+        matchChunk(parallelismController, clock, 100, 5);
+        matchChunk(parallelismController, clock, 1000, 10);  // the probe window isn't over yet
+        assertFalse(parallelismController.isDecided());
+        assertEquals(4, parallelismController.getActiveWorkers());
+        assertFalse(file.exists());
+    }
+}
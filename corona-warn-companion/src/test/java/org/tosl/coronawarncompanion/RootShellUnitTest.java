@@ -0,0 +1,130 @@
+package org.tosl.coronawarncompanion;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.tosl.coronawarncompanion.gmsreadout.RootShell;
+import org.tosl.coronawarncompanion.gmsreadout.Sudo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the root shell session with sh (instead of su).
+ */
+public class RootShellUnitTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private RootShell rootShell;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(new File("/bin/sh").exists());
+        rootShell = new RootShell("sh");
+    }
+
+    @After
+    public void tearDown() {
+        if (rootShell != null) {
+            rootShell.close();
+        }
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[777];
+        int length;
+        while ((length = inputStream.read(buffer)) != -1) {
+            output.write(buffer, 0, length);
+        }
+        return output.toByteArray();
+    }
+
+    @Test
+    public void run_framesTheOutputOfEachCommand() throws IOException {
+        RootShell.Result result = rootShell.run("echo hello; echo world", 10000);
+        assertEquals("hello\nworld\n", result.output);
+        assertEquals(0, result.exitCode);
+
+        // pipelined, with and without a trailing newline, and with a failing command
+        List<RootShell.Result> results = rootShell.run(10000, "printf abc", "cd /; pwd", "pwd; exit 3",
+                "echo error >&2", "read line; echo \"$line\"");
+        assertEquals("abc", results.get(0).output);
+        assertEquals("/\n", results.get(1).output);
+        assertNotEquals("/\n", results.get(2).output);  // the directory of the shell isn't changed
+        assertEquals(3, results.get(2).exitCode);
+        assertEquals("", results.get(3).output);
+        assertEquals("\n", results.get(4).output);  // the commands can't read the following commands
+    }
+
+    @Test
+    public void run_usesOneShellProcess() throws IOException {
+        String pid = rootShell.run("echo $$", 10000).output;
+        for (int i = 0; i < 20; i++) {
+            assertEquals(pid, rootShell.run("echo $$", 10000).output);
+        }
+    }
+
+    @Test
+    public void openStream_streamsBinaryOutput() throws IOException {
+        byte[] bytes = new byte[300000];
+        new Random(41).nextBytes(bytes);
+        File file = temporaryFolder.newFile();
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(bytes);
+        }
+        try (InputStream inputStream = rootShell.openStream("cat " + Sudo.quote(file.getPath()), 10000)) {
+            assertArrayEquals(bytes, readAll(inputStream));
+        }
+
+        // closing the stream early skips the rest of the output
+        try (InputStream inputStream = rootShell.openStream("cat " + Sudo.quote(file.getPath()), 10000)) {
+            assertEquals(bytes[0] & 0xff, inputStream.read());
+        }
+        assertEquals("next\n", rootShell.run("echo next", 10000).output);
+    }
+
+    @Test
+    public void run_killsTheShellAfterTimeout() throws IOException {
+        String pid = rootShell.run("echo $$", 10000).output;
+        long startMillis = System.currentTimeMillis();
+        try {
+            rootShell.run("sleep 10", 300);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("timed out"));
+        }
+        assertTrue(System.currentTimeMillis() - startMillis < 5000);
+
+        // a new shell is started for the next command
+        RootShell.Result result = rootShell.run("echo $$", 10000);
+        assertEquals(0, result.exitCode);
+        assertNotEquals(pid, result.output);
+    }
+
+    @Test
+    public void sudo_usesTheSharedShell() {
+        Sudo.rootShellCommand = "sh";
+        try {
+            String pid = Sudo.sudo("cd /", "echo $$");
+            assertFalse(pid.isEmpty());
+            assertEquals(pid, Sudo.sudo("echo $$"));
+            assertEquals("x\n", new String(Sudo.sudo("echo x").getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8));
+        } finally {
+            Sudo.rootShellCommand = "su";
+        }
+    }
+}
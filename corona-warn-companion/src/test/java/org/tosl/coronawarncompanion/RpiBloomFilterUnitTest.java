@@ -0,0 +1,80 @@
+package org.tosl.coronawarncompanion;
+
+import org.junit.Test;
+import org.tosl.coronawarncompanion.gmsreadout.ContactRecordsProtos;
+import org.tosl.coronawarncompanion.rpis.RpiBloomFilter;
+import org.tosl.coronawarncompanion.rpis.RpiList;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the RpiBloomFilter (and RpiList.mightContainRpi(), which uses it) has no false negatives,
+ * and that its false positive rate is not above the one it's sized for.
+ */
+public class RpiBloomFilterUnitTest {
+
+    private static final int numRpis = 50000;
+    private static final int numQueries = 1000000;
+
+    private static List<byte[]> createRpis(Random random) {
+        List<byte[]> rpis = new ArrayList<>();
+        for (int i = 0; i < numRpis; i++) {
+            byte[] rpiBytes = new byte[16];
+            random.nextBytes(rpiBytes);
+            rpis.add(rpiBytes);
+        }
+        return rpis;
+    }
+
+    @Test
+    public void rpiBloomFilter_hasNoFalseNegativesAndFewFalsePositives() {
+        Random random = new Random(4);
+        List<byte[]> rpis = createRpis(random);
+        RpiBloomFilter filter = new RpiBloomFilter(rpis.size(), RpiBloomFilter.defaultBitsPerRpi);
+        for (byte[] rpi : rpis) {
+            filter.add(RpiList.RpiBytes.getLongFromBytes(rpi, 0), RpiList.RpiBytes.getLongFromBytes(rpi, 8));
+        }
+        for (byte[] rpi : rpis) {
+            assertTrue(filter.mightContain(RpiList.RpiBytes.getLongFromBytes(rpi, 0),
+                    RpiList.RpiBytes.getLongFromBytes(rpi, 8)));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < numQueries; i++) {
+            if (filter.mightContain(random.nextLong(), random.nextLong())) {
+                falsePositives++;
+            }
+        }
+        double falsePositiveRate = (double) falsePositives / numQueries;
+        assertTrue(falsePositiveRate > 0 && falsePositiveRate < 0.03);  // at most about 1%, the size is rounded up
+        assertTrue(filter.getSizeInBytes() * 8 >= (long) numRpis * RpiBloomFilter.defaultBitsPerRpi);
+    }
+
+    @Test
+    public void rpiList_mightContainEveryAddedRpi() {
+        Random random = new Random(5);
+        List<byte[]> rpis = createRpis(random);
+        RpiList rpiList = new RpiList();
+        int timestamp = MatcherUnitTest.firstDaysSinceEpochUTC * 24 * 3600;
+        ContactRecordsProtos.ContactRecords contactRecords = ContactRecordsProtos.ContactRecords.newBuilder()
+                .addRecord(ContactRecordsProtos.ScanRecord.newBuilder().setTimestamp(timestamp).setRssi(-50))
+                .build();
+        for (byte[] rpi : rpis) {
+            rpiList.addEntry(MatcherUnitTest.firstDaysSinceEpochUTC, rpi, contactRecords);
+        }
+        for (byte[] rpi : rpis) {
+            assertTrue(rpiList.mightContainRpi(RpiList.RpiBytes.getLongFromBytes(rpi, 0),
+                    RpiList.RpiBytes.getLongFromBytes(rpi, 8)));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < numQueries; i++) {
+            if (rpiList.mightContainRpi(random.nextLong(), random.nextLong())) {
+                falsePositives++;
+            }
+        }
+        assertTrue((double) falsePositives / numQueries < 0.03);
+    }
+}
@@ -0,0 +1,128 @@
+package org.tosl.coronawarncompanion;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.tosl.coronawarncompanion.crypto.AesEcbEncryptor;
+import org.tosl.coronawarncompanion.crypto.CryptoException;
+import org.tosl.coronawarncompanion.crypto.JceAesEcbEncryptor;
+import org.tosl.coronawarncompanion.matcher.Crypto;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.tosl.coronawarncompanion.matcher.Crypto.deriveRpiKey;
+import static org.tosl.coronawarncompanion.tools.Utils.standardRollingPeriod;
+
+/**
+ * Checks the batch RPI generation against one encryption per interval, and compares time and allocation per DK
+ * (only with -Dbenchmark=true).
+ */
+public class RpiGenerationUnitTest {
+
+    private static final int numKeys = 2000;
+
+    // the way the RPIs were generated before: one encryption and two objects per interval
+    private static List<Crypto.RpiWithInterval> createRpisPerInterval(AesEcbEncryptor encryptor, byte[] rpiKey,
+                                                                      int startIntervalNumber, int intervalCount)
+            throws CryptoException {
+        List<Crypto.RpiWithInterval> rpis = new ArrayList<>(intervalCount);
+        byte[] paddedData = {0x45, 0x4E, 0x2D, 0x52, 0x50, 0x49, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00};
+        encryptor.init(rpiKey);
+        for (int interval = startIntervalNumber; interval < startIntervalNumber + intervalCount; interval++) {
+            paddedData[12] = (byte) (interval & 0x000000ff);
+            paddedData[13] = (byte) ((interval & 0x0000ff00) >> 8);
+            paddedData[14] = (byte) ((interval & 0x00ff0000) >> 16);
+            paddedData[15] = (byte) ((interval & 0xff000000) >> 24);
+            rpis.add(new Crypto.RpiWithInterval(encryptor.encrypt(paddedData), interval));
+        }
+        return rpis;
+    }
+
+    private static byte[][] createRpiKeys(Random random) {
+        byte[][] rpiKeys = new byte[numKeys][];
+        for (int i = 0; i < numKeys; i++) {
+            byte[] tek = new byte[16];
+            random.nextBytes(tek);
+            rpiKeys[i] = deriveRpiKey(tek);
+        }
+        return rpiKeys;
+    }
+
+    private static long getAllocatedBytes() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    @Test
+    public void batchRpis_equalRpisPerInterval() throws CryptoException {
+        Random random = new Random(10);
+        AesEcbEncryptor encryptor = new JceAesEcbEncryptor();
+        Crypto crypto = new Crypto();
+        byte[] rpis = new byte[2 * standardRollingPeriod * Crypto.rpiLength];
+        for (byte[] rpiKey : Arrays.copyOf(createRpiKeys(random), 50)) {
+            int startIntervalNumber = random.nextInt(1 << 24);
+            int intervalCount = 1 + random.nextInt(2 * standardRollingPeriod);  // also more than the buffer size
+            crypto.createRpisForIntervalRange(rpiKey, startIntervalNumber, intervalCount, rpis);
+            List<Crypto.RpiWithInterval> expected =
+                    createRpisPerInterval(encryptor, rpiKey, startIntervalNumber, intervalCount);
+            for (int i = 0; i < intervalCount; i++) {
+                assertArrayEquals(expected.get(i).rpiBytes,
+                        Arrays.copyOfRange(rpis, i * Crypto.rpiLength, (i + 1) * Crypto.rpiLength));
+            }
+            List<Crypto.RpiWithInterval> list =
+                    crypto.createListOfRpisForIntervalRange(rpiKey, startIntervalNumber, intervalCount);
+            assertEquals(intervalCount, list.size());
+            assertEquals(startIntervalNumber + intervalCount - 1, list.get(intervalCount - 1).intervalNumber);
+        }
+    }
+
+    @Test
+    public void benchmark_batchVsPerInterval() throws CryptoException {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        byte[][] rpiKeys = createRpiKeys(new Random(11));
+        AesEcbEncryptor encryptor = new JceAesEcbEncryptor();
+        AesEcbEncryptor.Implementation[] implementations = AesEcbEncryptor.Implementation.values();
+        byte[] rpis = new byte[standardRollingPeriod * Crypto.rpiLength];
+        long[] perIntervalResult = new long[2];
+        long[][] batchResults = new long[implementations.length][2];
+        for (int round = 0; round < 10; round++) {  // the first rounds warm up the JIT
+            long allocatedBytes = getAllocatedBytes();
+            long start = System.nanoTime();
+            for (byte[] rpiKey : rpiKeys) {
+                createRpisPerInterval(encryptor, rpiKey, 0, standardRollingPeriod);
+            }
+            perIntervalResult[0] = (System.nanoTime() - start) / numKeys;
+            perIntervalResult[1] = (getAllocatedBytes() - allocatedBytes) / numKeys;
+
+            for (int i = 0; i < implementations.length; i++) {
+                Crypto crypto = new Crypto(implementations[i]);
+                allocatedBytes = getAllocatedBytes();
+                start = System.nanoTime();
+                for (byte[] rpiKey : rpiKeys) {
+                    crypto.createRpisForIntervalRange(rpiKey, 0, standardRollingPeriod, rpis);
+                }
+                batchResults[i][0] = (System.nanoTime() - start) / numKeys;
+                batchResults[i][1] = (getAllocatedBytes() - allocatedBytes) / numKeys;
+            }
+        }
+        System.out.println(String.format(Locale.ROOT, "Per DK: per interval %d ns, %d bytes allocated",
+                perIntervalResult[0], perIntervalResult[1]));
+        for (int i = 0; i < implementations.length; i++) {
+            System.out.println(String.format(Locale.ROOT, "Per DK: batch (%s) %d ns, %d bytes allocated",
+                    implementations[i], batchResults[i][0], batchResults[i][1]));
+            if (getAllocatedBytes() >= 0) {
+                // at least the 144 RPI arrays and RpiWithInterval objects are gone
+                assertTrue(batchResults[i][1] + standardRollingPeriod * 32 < perIntervalResult[1]);
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package org.tosl.coronawarncompanion;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.tosl.coronawarncompanion.gmsreadout.ContactRecordsProtos;
+import org.tosl.coronawarncompanion.rpis.RpiIndex;
+import org.tosl.coronawarncompanion.rpis.RpiList;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks RpiIndex against the HashMap it replaces, and compares memory and lookup throughput of both
+ * (only with -Dbenchmark=true).
+ */
+public class RpiIndexUnitTest {
+
+    private static final int numEntries = 50000;
+    private static final int numLookups = 2000000;
+
+    private static RpiList.RpiEntry createRpiEntry(Random random, int timestamp) {
+        byte[] rpiBytes = new byte[16];
+        random.nextBytes(rpiBytes);
+        ContactRecordsProtos.ContactRecords contactRecords = ContactRecordsProtos.ContactRecords.newBuilder()
+                .addRecord(ContactRecordsProtos.ScanRecord.newBuilder().setTimestamp(timestamp).setRssi(-50))
+                .build();
+        return new RpiList.RpiEntry(rpiBytes, contactRecords, timestamp);
+    }
+
+    private static List<RpiList.RpiEntry> createRpiEntries(Random random) {
+        List<RpiList.RpiEntry> list = new ArrayList<>();
+        for (int i = 0; i < numEntries; i++) {
+            list.add(createRpiEntry(random, 1600000000 + i));
+        }
+        list.add(new RpiList.RpiEntry(new byte[16], list.get(0).contactRecords, 1600000000));  // all-zero RPI
+        return list;
+    }
+
+    private static byte[][] createLookups(Random random, List<RpiList.RpiEntry> rpiEntries) {
+        // about 1 in 100 lookups is a hit, like in real matching
+        byte[][] lookups = new byte[numLookups][];
+        for (int i = 0; i < numLookups; i++) {
+            if (random.nextInt(100) == 0) {
+                lookups[i] = rpiEntries.get(random.nextInt(rpiEntries.size())).rpiBytes.getBytes();
+            } else {
+                lookups[i] = new byte[16];
+                random.nextBytes(lookups[i]);
+            }
+        }
+        return lookups;
+    }
+
+    @Test
+    public void rpiIndex_findsSameEntriesAsHashMap() {
+        Random random = new Random(1);
+        List<RpiList.RpiEntry> rpiEntries = createRpiEntries(random);
+        HashMap<RpiList.RpiBytes, RpiList.RpiEntry> map = new HashMap<>();
+        for (RpiList.RpiEntry rpiEntry : rpiEntries) {
+            map.put(rpiEntry.rpiBytes, rpiEntry);
+        }
+        RpiIndex index = RpiIndex.build(map.values(), false);
+        RpiIndex fingerprintIndex = RpiIndex.build(map.values(), true);
+        assertEquals(map.size(), index.size());
+        assertEquals(map.size(), fingerprintIndex.size());
+        assertEquals(map.size(), index.getEntries().length);
+
+        for (byte[] lookup : createLookups(random, rpiEntries)) {
+            RpiList.RpiEntry expected = map.get(new RpiList.RpiBytes(lookup));
+            long high = RpiList.RpiBytes.getLongFromBytes(lookup, 0);
+            long low = RpiList.RpiBytes.getLongFromBytes(lookup, 8);
+            assertSame(expected, index.get(high, low));
+            assertSame(expected, fingerprintIndex.get(high, low));
+        }
+    }
+
+    @Test
+    public void rpiIndex_compareMemoryAndThroughputWithHashMap() {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        Random random = new Random(2);
+        List<RpiList.RpiEntry> rpiEntries = createRpiEntries(random);
+        byte[][] lookups = createLookups(random, rpiEntries);
+        HashMap<RpiList.RpiBytes, RpiList.RpiEntry> map = new HashMap<>(2048);
+        for (RpiList.RpiEntry rpiEntry : rpiEntries) {
+            map.put(rpiEntry.rpiBytes, rpiEntry);
+        }
+        RpiIndex index = RpiIndex.build(map.values(), false);
+        RpiIndex fingerprintIndex = RpiIndex.build(map.values(), true);
+
+        int hashMapHits = 0, indexHits = 0, fingerprintIndexHits = 0;
+        long hashMapNanos = Long.MAX_VALUE, indexNanos = Long.MAX_VALUE, fingerprintIndexNanos = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {  // the first rounds are warm-up
+            long start = System.nanoTime();
+            hashMapHits = 0;
+            for (byte[] lookup : lookups) {
+                if (map.get(new RpiList.RpiBytes(lookup)) != null) hashMapHits++;
+            }
+            hashMapNanos = Math.min(hashMapNanos, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            indexHits = 0;
+            for (byte[] lookup : lookups) {
+                if (index.get(RpiList.RpiBytes.getLongFromBytes(lookup, 0),
+                        RpiList.RpiBytes.getLongFromBytes(lookup, 8)) != null) indexHits++;
+            }
+            indexNanos = Math.min(indexNanos, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            fingerprintIndexHits = 0;
+            for (byte[] lookup : lookups) {
+                if (fingerprintIndex.get(RpiList.RpiBytes.getLongFromBytes(lookup, 0),
+                        RpiList.RpiBytes.getLongFromBytes(lookup, 8)) != null) fingerprintIndexHits++;
+            }
+            fingerprintIndexNanos = Math.min(fingerprintIndexNanos, System.nanoTime() - start);
+        }
+        assertEquals(hashMapHits, indexHits);
+        assertEquals(hashMapHits, fingerprintIndexHits);
+
+        // HashMap: table slot (4 bytes, table size is a power of two >= size/0.75) plus one HashMap.Node (32 bytes)
+        // per entry. The RpiBytes key is not counted, because the RpiEntry references it anyway.
+        int tableSize = 1;
+        while (tableSize * 0.75 < map.size()) tableSize <<= 1;
+        long hashMapBytes = 16 + 4L * tableSize + 32L * map.size();
+
+        System.out.println("RpiIndex benchmark: " + map.size() + " RPIs, " + numLookups + " lookups");
+        System.out.printf("  HashMap:                 %6.1f bytes/RPI, %6.1f ns/lookup%n",
+                (double) hashMapBytes / map.size(), (double) hashMapNanos / numLookups);
+        System.out.printf("  RpiIndex:                %6.1f bytes/RPI, %6.1f ns/lookup%n",
+                (double) index.getMemoryFootprintBytes() / map.size(), (double) indexNanos / numLookups);
+        System.out.printf("  RpiIndex (fingerprints): %6.1f bytes/RPI, %6.1f ns/lookup%n",
+                (double) fingerprintIndex.getMemoryFootprintBytes() / map.size(),
+                (double) fingerprintIndexNanos / numLookups);
+    }
+}
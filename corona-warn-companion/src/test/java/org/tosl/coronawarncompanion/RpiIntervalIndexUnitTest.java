@@ -0,0 +1,107 @@
+package org.tosl.coronawarncompanion;
+
+import org.junit.Test;
+import org.tosl.coronawarncompanion.gmsreadout.ContactRecordsProtos;
+import org.tosl.coronawarncompanion.rpis.RpiIndex;
+import org.tosl.coronawarncompanion.rpis.RpiIntervalIndex;
+import org.tosl.coronawarncompanion.rpis.RpiList;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.tosl.coronawarncompanion.tools.Utils.getENINFromSeconds;
+
+/**
+ * Checks the RpiIntervalIndex against a linear search, for several bucket widths,
+ * and compares its memory per RPI with the per-day RpiIndexes (full, "early" and "late") it replaces.
+ */
+public class RpiIntervalIndexUnitTest {
+
+    private static final int numDays = 14;
+    private static final int numEntriesPerDay = 5000;
+    private static final int firstTimestamp = MatcherUnitTest.firstDaysSinceEpochUTC * 24 * 3600;
+
+    private static List<RpiList.RpiEntry> createRpiEntries(Random random) {
+        List<RpiList.RpiEntry> list = new ArrayList<>();
+        for (int i = 0; i < numDays * numEntriesPerDay; i++) {
+            byte[] rpiBytes = new byte[16];
+            random.nextBytes(rpiBytes);
+            int timestamp = firstTimestamp + random.nextInt(numDays * 24 * 3600);
+            ContactRecordsProtos.ContactRecords contactRecords = ContactRecordsProtos.ContactRecords.newBuilder()
+                    .addRecord(ContactRecordsProtos.ScanRecord.newBuilder().setTimestamp(timestamp).setRssi(-50))
+                    .addRecord(ContactRecordsProtos.ScanRecord.newBuilder().setTimestamp(timestamp + 600).setRssi(-60))
+                    .build();
+            list.add(new RpiList.RpiEntry(rpiBytes, contactRecords, timestamp));
+        }
+        // the same RPI again, 90 minutes later
+        RpiList.RpiEntry first = list.get(0);
+        list.add(new RpiList.RpiEntry(first.rpiBytes.getBytes(), first.contactRecords, first.startTimeStampUTC + 5400));
+        return list;
+    }
+
+    private static RpiList.RpiEntry linearSearch(List<RpiList.RpiEntry> rpiEntries, RpiList.RpiBytes rpiBytes,
+                                                 int intervalNumber) {
+        RpiList.RpiEntry result = null;
+        for (RpiList.RpiEntry rpiEntry : rpiEntries) {
+            if (rpiEntry.rpiBytes.equals(rpiBytes) && RpiList.isWithin2HoursTolerance(intervalNumber, rpiEntry) &&
+                    (result == null || rpiEntry.startTimeStampUTC < result.startTimeStampUTC)) {
+                result = rpiEntry;
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void get_findsSameEntriesAsLinearSearch() {
+        Random random = new Random(16);
+        List<RpiList.RpiEntry> rpiEntries = createRpiEntries(random);
+        for (int bucketWidth : new int[]{1, 6, 12, 144}) {
+            RpiIntervalIndex index = RpiIntervalIndex.build(rpiEntries, bucketWidth);
+            assertEquals(rpiEntries.size(), index.size());
+            for (int i = 0; i < 300; i++) {
+                RpiList.RpiEntry rpiEntry = (i == 0) ? rpiEntries.get(rpiEntries.size() - 1) :
+                        rpiEntries.get(random.nextInt(rpiEntries.size()));
+                int intervalNumber = getENINFromSeconds(rpiEntry.startTimeStampUTC) + random.nextInt(41) - 20;
+                long high = rpiEntry.rpiBytes.getHigh();
+                long low = rpiEntry.rpiBytes.getLow();
+                assertSame(linearSearch(rpiEntries, rpiEntry.rpiBytes, intervalNumber),
+                        index.get(high, low, intervalNumber));
+                assertNull(index.get(high ^ 1, low, intervalNumber));
+            }
+        }
+    }
+
+    @Test
+    public void memoryPerRpi_beforeAndAfter() {
+        List<RpiList.RpiEntry> rpiEntries = createRpiEntries(new Random(17));
+
+        // before: one RpiIndex per day, plus the "early" (first 2 hours) and "late" (last 2 hours) ones
+        long bytesBefore = 0;
+        for (int day = 0; day < numDays; day++) {
+            List<RpiList.RpiEntry> full = new ArrayList<>();
+            List<RpiList.RpiEntry> early = new ArrayList<>();
+            List<RpiList.RpiEntry> late = new ArrayList<>();
+            for (RpiList.RpiEntry rpiEntry : rpiEntries) {
+                int secondsOfDay = rpiEntry.startTimeStampUTC - firstTimestamp - day * 24 * 3600;
+                if (secondsOfDay >= 0 && secondsOfDay < 24 * 3600) {
+                    full.add(rpiEntry);
+                    if (secondsOfDay < 2 * 3600) {
+                        early.add(rpiEntry);
+                    }
+                    if (secondsOfDay + 600 >= 22 * 3600) {
+                        late.add(rpiEntry);
+                    }
+                }
+            }
+            bytesBefore += RpiIndex.build(full, false).getMemoryFootprintBytes() +
+                    RpiIndex.build(early, false).getMemoryFootprintBytes() +
+                    RpiIndex.build(late, false).getMemoryFootprintBytes();
+        }
+        for (int bucketWidth : new int[]{1, 6, 12, 144}) {
+            RpiIntervalIndex index = RpiIntervalIndex.build(rpiEntries, bucketWidth);
+            assertTrue(index.getMemoryFootprintBytes() < bytesBefore);
+        }
+    }
+}